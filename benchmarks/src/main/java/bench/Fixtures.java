@@ -0,0 +1,69 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import logic.BulkLoader;
+
+/**
+ * The fixed data of the benchmarks in src/main/resources/fixtures: 500
+ * movies in both IMDB formats, 300 recorded tweets as exported from the
+ * tweets collection and 5000 distinct movie titles to use as keywords.
+ */
+public class Fixtures {
+
+	public static final String MOVIES_NICER = "/fixtures/movies_nicer.tsv";
+	public static final String MOVIES_MEGA_NICE = "/fixtures/movies_megaNice.tsv";
+	public static final String TWEETS = "/fixtures/tweets.json";
+	public static final String TITLES = "/fixtures/titles.txt";
+
+	public static final int MOVIE_COUNT = 500;
+	public static final int TWEET_COUNT = 300;
+
+	private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+
+	/**
+	 * @return the lines of a fixture
+	 */
+	public static List<String> lines(String fixture) {
+		List<String> lines = new ArrayList<String>();
+		for (Iterator<String> i = BulkLoader.lines(fixture); i.hasNext();) {
+			String line = i.next();
+			if (!line.isEmpty())
+				lines.add(line);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the fixture, checked to have the number of lines the
+	 *         benchmarks divide their time by
+	 */
+	public static List<String> lines(String fixture, int expected) {
+		List<String> lines = lines(fixture);
+		if (lines.size() != expected) {
+			throw new IllegalStateException(fixture + " has " + lines.size() + " lines, expected " + expected);
+		}
+		return lines;
+	}
+
+	/**
+	 * @return the recorded tweets the way Twitter sent them, without the
+	 *         fields that were added when they were saved
+	 */
+	public static List<String> rawTweets() {
+		List<String> tweets = new ArrayList<String>();
+		for (String line : lines(TWEETS, TWEET_COUNT)) {
+			Document doc = Document.parse(line);
+			doc.remove("_id");
+			doc.remove("movie");
+			tweets.add(doc.toJson(JSON));
+		}
+		return tweets;
+	}
+}
@@ -0,0 +1,158 @@
+package bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import logic.GridFSStreamer;
+
+/**
+ * Streaming a large GridFS file to a channel, the way /images serves files
+ * that are too large for the file cache: the {@link GridFSStreamer} (the
+ * chunks that overlap the range, copied through pooled direct buffers)
+ * against the driver's downloadToStream / openDownloadStream. The output is
+ * written to the null device, so the copy into the channel is measured but
+ * not the disk.
+ * <p>
+ * The file is uploaded to an in-memory MongoDB, or to the server given with
+ * -Dbench.mongo=mongodb://... (into the database "bench", which is dropped
+ * afterwards).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GridFSStreamingBenchmark {
+
+	/** The size of the tail range */
+	private static final int RANGE = 1024 * 1024;
+
+	/**
+	 * 32 MB: the in-memory MongoDB answers downloadToStream's query (which
+	 * has no batch size) in one message, the driver rejects those above 48 MB
+	 */
+	@Param({ "33554432" })
+	public int fileSize;
+
+	private MongoServer server;
+	private MongoClient mongo;
+	private MongoDatabase db;
+	private GridFSBucket bucket;
+	private GridFSStreamer streamer;
+	private GridFSFile file;
+	private FileChannel channel;
+	private OutputStream out;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		String uri = System.getProperty("bench.mongo");
+		if (uri == null) {
+			server = new MongoServer(new MemoryBackend());
+			InetSocketAddress address = server.bind();
+			uri = "mongodb://127.0.0.1:" + address.getPort();
+		}
+		mongo = MongoClients.create(uri);
+		db = mongo.getDatabase("bench");
+		db.drop();
+		bucket = GridFSBuckets.create(db);
+		streamer = new GridFSStreamer(db.getCollection("fs.chunks"));
+		byte[] data = new byte[fileSize];
+		new Random(42).nextBytes(data);
+		ObjectId id = bucket.uploadFromStream("large.bin", new ByteArrayInputStream(data));
+		file = bucket.find(Filters.eq("_id", id)).first();
+		String nullDevice = System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null";
+		channel = FileChannel.open(Paths.get(nullDevice), StandardOpenOption.WRITE);
+		out = Channels.newOutputStream(channel);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		channel.close();
+		db.drop();
+		mongo.close();
+		if (server != null)
+			server.shutdownNow();
+	}
+
+	@Benchmark
+	public long streamer() throws IOException {
+		return streamer.copy(file, 0, file.getLength(), (WritableByteChannel) channel);
+	}
+
+	@Benchmark
+	public void downloadToStream() {
+		bucket.downloadToStream(file.getId(), out);
+	}
+
+	/**
+	 * The last megabyte of the file, e.g. a resumed download.
+	 */
+	@Benchmark
+	public long streamerRange() throws IOException {
+		return streamer.copy(file, file.getLength() - RANGE, RANGE, (WritableByteChannel) channel);
+	}
+
+	/**
+	 * The last megabyte with the driver: the download stream skips to it.
+	 */
+	@Benchmark
+	public long downloadStreamRange() throws IOException {
+		byte[] buffer = new byte[64 * 1024];
+		long written = 0;
+		try (GridFSDownloadStream in = bucket.openDownloadStream(file.getId())) {
+			skip(in, file.getLength() - RANGE);
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+				written += n;
+			}
+		}
+		return written;
+	}
+
+	private static void skip(InputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0)
+				throw new IOException("Unexpected end of the file");
+			bytes -= skipped;
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import logic.MovieService;
+import logic.MovieServiceBase;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+import web.JsonStreamWriter;
+
+/**
+ * Serialization of typical responses: a page of 100 movies with some of
+ * their tweets as returned by /movies, and 100 raw tweets as returned by
+ * /tweets. The legacy {@link JSON#serialize(Object)} builds the whole
+ * response as a String, the {@link JsonStreamWriter} of the server encodes
+ * it directly into the output stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class JsonSerializationBenchmark {
+
+	private static final int PAGE_SIZE = 100;
+	private static final int TWEETS_PER_MOVIE = 3;
+
+	@Param({ "movies", "tweets" })
+	public String payload;
+
+	private List<Document> documents;
+	private final DiscardingOutputStream out = new DiscardingOutputStream();
+
+	@Setup
+	public void setUp() throws TwitterException {
+		List<String> raw = Fixtures.rawTweets();
+		List<String> exported = Fixtures.lines(Fixtures.TWEETS, Fixtures.TWEET_COUNT);
+		documents = new ArrayList<Document>(PAGE_SIZE);
+		if (payload.equals("movies")) {
+			List<DBObject> movies = MovieServiceBase.loadMovies_megaNice(Fixtures.MOVIES_MEGA_NICE);
+			for (int i = 0; i < PAGE_SIZE; i++) {
+				// As read from MongoDB: the parsed String[] fields become lists
+				Document movie = Document.parse(toJson(movies.get(i)));
+				List<Document> tweets = new ArrayList<Document>();
+				for (int j = 0; j < TWEETS_PER_MOVIE; j++) {
+					String json = raw.get((i * TWEETS_PER_MOVIE + j) % raw.size());
+					tweets.add(MovieService.toTweet(TwitterObjectFactory.createStatus(json)));
+				}
+				documents.add(movie.append("tweets", tweets));
+			}
+		} else {
+			for (int i = 0; i < PAGE_SIZE; i++) {
+				documents.add(Document.parse(exported.get(i)));
+			}
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private static String toJson(DBObject movie) {
+		return JSON.serialize(movie);
+	}
+
+	@SuppressWarnings("deprecation")
+	@Benchmark
+	public String serialize() {
+		return JSON.serialize(documents);
+	}
+
+	@Benchmark
+	public long streamWriter() throws IOException {
+		JsonStreamWriter.write(documents, out);
+		return out.count;
+	}
+
+	/**
+	 * Counts the bytes instead of keeping them.
+	 */
+	private static class DiscardingOutputStream extends OutputStream {
+		long count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import twitter.KeywordMatcher;
+
+/**
+ * Matching of tweet texts against the keywords of a stream, as done for
+ * every tweet that {@link twitter.MovieTweetHandler} receives, by the number
+ * of keywords. The keywords are movie titles, the recorded tweets mention
+ * some of the first 500.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class KeywordMatchingBenchmark {
+
+	@Param({ "10", "100", "1000", "5000" })
+	public int keywords;
+
+	private KeywordMatcher matcher;
+	private List<String> texts;
+
+	@Setup
+	public void setUp() {
+		List<String> titles = new ArrayList<String>();
+		for (String title : Fixtures.lines(Fixtures.TITLES)) {
+			// The keywords a TweetListener accepts
+			if (title.length() >= 4 && title.length() <= 25)
+				titles.add(title);
+			if (titles.size() == keywords)
+				break;
+		}
+		matcher = new KeywordMatcher(titles.toArray(new String[0]));
+		texts = new ArrayList<String>();
+		for (String line : Fixtures.lines(Fixtures.TWEETS, Fixtures.TWEET_COUNT)) {
+			texts.add(Document.parse(line).getString("text"));
+		}
+	}
+
+	/**
+	 * Time per tweet.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.TWEET_COUNT)
+	public void forEachMatch(Blackhole bh) {
+		for (String text : texts) {
+			bh.consume(matcher.forEachMatch(text, bh::consume));
+		}
+	}
+}
@@ -0,0 +1,76 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.mongodb.DBObject;
+
+import logic.MovieServiceBase;
+import logic.MovieTsvParser;
+
+/**
+ * Parsing of the IMDB dumps, per line with {@link MovieTsvParser} and per
+ * file with {@link MovieServiceBase#loadMovies(String)} and
+ * {@link MovieServiceBase#loadMovies_megaNice(String)}, which also read the
+ * resource.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MovieParsingBenchmark {
+
+	@Param({ "nicer", "megaNice" })
+	public String format;
+
+	private List<String> lines;
+	private MovieTsvParser parser;
+	private String fixture;
+	private final MovieServiceBase service = new MovieServiceBase();
+
+	@Setup
+	public void setUp() {
+		boolean megaNice = format.equals("megaNice");
+		fixture = megaNice ? Fixtures.MOVIES_MEGA_NICE : Fixtures.MOVIES_NICER;
+		lines = Fixtures.lines(fixture, Fixtures.MOVIE_COUNT);
+		parser = megaNice ? MovieTsvParser.megaNice() : MovieTsvParser.nicer();
+	}
+
+	/**
+	 * Time per line.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.MOVIE_COUNT)
+	public void parseLine(Blackhole bh) {
+		for (String line : lines) {
+			bh.consume(parser.parseLine(line));
+		}
+	}
+
+	/**
+	 * Time per line, including reading the resource and collecting the
+	 * movies into a list.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.MOVIE_COUNT)
+	public List<DBObject> loadMovies() {
+		return format.equals("megaNice") ? MovieServiceBase.loadMovies_megaNice(fixture)
+				: service.loadMovies(fixture);
+	}
+}
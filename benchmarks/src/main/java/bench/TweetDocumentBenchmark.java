@@ -0,0 +1,69 @@
+package bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import logic.MovieService;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+/**
+ * Building the documents that are saved for a tweet, see
+ * {@link MovieService#saveTweet(String, List, org.bson.Document, org.bson.Document)}:
+ * the raw tweet for the tweets collection and the tweet that is appended to
+ * its movie.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TweetDocumentBenchmark {
+
+	private List<String> raw;
+	private List<Status> statuses;
+
+	@Setup
+	public void setUp() throws TwitterException {
+		raw = Fixtures.rawTweets();
+		statuses = new ArrayList<Status>(raw.size());
+		for (String json : raw) {
+			statuses.add(TwitterObjectFactory.createStatus(json));
+		}
+	}
+
+	/**
+	 * Time per tweet.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.TWEET_COUNT)
+	public void toRawTweet(Blackhole bh) {
+		for (int i = 0; i < raw.size(); i++) {
+			bh.consume(MovieService.toRawTweet(statuses.get(i), raw.get(i)));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.TWEET_COUNT)
+	public void toTweet(Blackhole bh) {
+		for (Status status : statuses) {
+			bh.consume(MovieService.toTweet(status));
+		}
+	}
+}
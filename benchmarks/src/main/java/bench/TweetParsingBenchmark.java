@@ -0,0 +1,74 @@
+package bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+/**
+ * Parsing of raw tweets: {@link Document#parse(String)} as done for the
+ * tweets collection and by the bulk import of /data/tweets.json, and
+ * twitter4j's parsing into a Status as done by the stream.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class TweetParsingBenchmark {
+
+	private List<String> exported;
+	private List<String> raw;
+
+	@Setup
+	public void setUp() {
+		exported = Fixtures.lines(Fixtures.TWEETS, Fixtures.TWEET_COUNT);
+		raw = Fixtures.rawTweets();
+	}
+
+	/**
+	 * Time per tweet of the export, with extended JSON for _id and the ids.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.TWEET_COUNT)
+	public void parseExported(Blackhole bh) {
+		for (String json : exported) {
+			bh.consume(Document.parse(json));
+		}
+	}
+
+	/**
+	 * Time per tweet as sent by Twitter.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.TWEET_COUNT)
+	public void parseRaw(Blackhole bh) {
+		for (String json : raw) {
+			bh.consume(Document.parse(json));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(Fixtures.TWEET_COUNT)
+	public void createStatus(Blackhole bh) throws TwitterException {
+		for (String json : raw) {
+			bh.consume(TwitterObjectFactory.createStatus(json));
+		}
+	}
+}
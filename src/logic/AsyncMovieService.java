@@ -0,0 +1,100 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import org.bson.Document;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import com.mongodb.reactivestreams.client.MongoDatabase;
+
+/**
+ * Runs {@link MovieQuery MovieQueries} with the MongoDB reactive streams
+ * driver. No thread is blocked while a query is running: the results are
+ * delivered through a {@link Publisher} or a {@link CompletableFuture} that
+ * completes on a driver thread.
+ */
+public class AsyncMovieService {
+
+	private final MongoClient mongo;
+	private final MongoCollection<Document> movies;
+	private final MongoCollection<Document> tweets;
+
+	/**
+	 * Connect to MongoDB with the reactive streams driver.
+	 *
+	 * @param connectionString
+	 *            the MongoDB connection string
+	 */
+	public AsyncMovieService(String connectionString) {
+		mongo = MongoClients.create(connectionString);
+		MongoDatabase db = mongo.getDatabase("imdb");
+		movies = db.getCollection("movies");
+		tweets = db.getCollection("tweets");
+	}
+
+	/**
+	 * Run a query.
+	 *
+	 * @return the publisher of the matching documents
+	 */
+	public Publisher<Document> publish(MovieQuery query) {
+		MongoCollection<Document> col = query.getTarget() == MovieQuery.Target.MOVIES ? movies : tweets;
+		return query.find(col);
+	}
+
+	/**
+	 * Run a query and collect the results.
+	 *
+	 * @return a future of the matching documents, or of the first document
+	 *         (possibly null) if the query is {@link MovieQuery#single()}
+	 */
+	public CompletableFuture<Object> find(MovieQuery query) {
+		CompletableFuture<List<Document>> all = collect(publish(query));
+		if (query.isSingle()) {
+			return all.thenApply(list -> list.isEmpty() ? null : list.get(0));
+		}
+		return all.thenApply(list -> query.rank(list));
+	}
+
+	/**
+	 * Subscribe to a publisher and collect all its items.
+	 */
+	public static <T> CompletableFuture<List<T>> collect(Publisher<T> publisher) {
+		CompletableFuture<List<T>> future = new CompletableFuture<List<T>>();
+		publisher.subscribe(new Subscriber<T>() {
+			private final List<T> items = new ArrayList<T>();
+
+			@Override
+			public void onSubscribe(Subscription s) {
+				s.request(Long.MAX_VALUE);
+			}
+
+			@Override
+			public void onNext(T item) {
+				items.add(item);
+			}
+
+			@Override
+			public void onError(Throwable t) {
+				future.completeExceptionally(t);
+			}
+
+			@Override
+			public void onComplete() {
+				future.complete(items);
+			}
+		});
+		return future;
+	}
+
+	public void close() {
+		mongo.close();
+	}
+}
@@ -0,0 +1,245 @@
+package logic;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import org.bson.Document;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.InsertManyOptions;
+
+/**
+ * Bulk import pipeline for the initial data files. Every source is read on
+ * its own thread and cut into batches of raw records. The batches are parsed
+ * on a pool of worker threads and sent to MongoDB as unordered insertMany
+ * calls. The number of batches that are parsed or on the wire at the same
+ * time is bounded, so a slow database holds back the readers instead of
+ * filling up the heap.
+ *
+ * <pre>
+ * new BulkLoader().add("/data/movies.json", movies).add("/data/tweets.json", tweets).run();
+ * </pre>
+ */
+public class BulkLoader {
+
+	public static final int DEFAULT_BATCH_SIZE = 1000;
+	public static final int DEFAULT_MAX_IN_FLIGHT = 8;
+	public static final long DEFAULT_PROGRESS_INTERVAL_MS = 2000;
+
+	private int batchSize = DEFAULT_BATCH_SIZE;
+	private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+	private int parserThreads = Runtime.getRuntime().availableProcessors();
+	private long progressIntervalMs = DEFAULT_PROGRESS_INTERVAL_MS;
+
+	private final List<Source<?, ?>> sources = new LinkedList<Source<?, ?>>();
+	private final AtomicLong inserted = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Number of documents per insertMany call.
+	 */
+	public BulkLoader batchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+		return this;
+	}
+
+	/**
+	 * Maximum number of batches that are parsed or inserted at the same time.
+	 */
+	public BulkLoader maxInFlight(int maxInFlight) {
+		this.maxInFlight = Math.max(1, maxInFlight);
+		return this;
+	}
+
+	/**
+	 * Number of worker threads that parse and insert batches.
+	 */
+	public BulkLoader parserThreads(int parserThreads) {
+		this.parserThreads = Math.max(1, parserThreads);
+		return this;
+	}
+
+	/**
+	 * Interval between two progress reports, 0 disables them.
+	 */
+	public BulkLoader progressInterval(long millis) {
+		this.progressIntervalMs = millis;
+		return this;
+	}
+
+	/**
+	 * Add a file with one JSON document per line.
+	 *
+	 * @param fileName
+	 *            the classpath resource to load
+	 * @param col
+	 *            the target collection
+	 */
+	public BulkLoader add(String fileName, MongoCollection<Document> col) {
+		return add(fileName, lines(fileName), Document::parse, col);
+	}
+
+	/**
+	 * Add an arbitrary source of raw records. The parser runs on the worker
+	 * threads and may return null to skip a record.
+	 *
+	 * @param name
+	 *            the name used in progress reports
+	 * @param records
+	 *            the raw records, consumed by a single reader thread
+	 * @param parser
+	 *            turns a raw record into a document
+	 * @param col
+	 *            the target collection
+	 */
+	public <R, T> BulkLoader add(String name, Iterator<R> records, Function<R, T> parser, MongoCollection<T> col) {
+		sources.add(new Source<R, T>(name, records, parser, col));
+		return this;
+	}
+
+	/**
+	 * Load all sources concurrently and block until every batch is written.
+	 *
+	 * @return the number of inserted documents
+	 */
+	public long run() {
+		long start = System.nanoTime();
+		ExecutorService readers = Executors.newFixedThreadPool(Math.max(1, sources.size()));
+		ExecutorService workers = Executors.newFixedThreadPool(parserThreads);
+		ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor();
+		Semaphore inFlight = new Semaphore(maxInFlight);
+		if (progressIntervalMs > 0) {
+			progress.scheduleAtFixedRate(() -> report(start, false), progressIntervalMs, progressIntervalMs,
+					TimeUnit.MILLISECONDS);
+		}
+		try {
+			List<Future<?>> readerFutures = new ArrayList<Future<?>>();
+			for (Source<?, ?> source : sources) {
+				readerFutures.add(readers.submit(() -> read(source, workers, inFlight)));
+			}
+			for (Future<?> f : readerFutures) {
+				f.get();
+			}
+			// Wait until the last batches are acknowledged
+			inFlight.acquire(maxInFlight);
+			inFlight.release(maxInFlight);
+		} catch (Exception e) {
+			e.printStackTrace();
+		} finally {
+			progress.shutdownNow();
+			readers.shutdown();
+			workers.shutdown();
+		}
+		report(start, true);
+		return inserted.get();
+	}
+
+	private <R, T> void read(Source<R, T> source, ExecutorService workers, Semaphore inFlight) {
+		List<R> batch = new ArrayList<R>(batchSize);
+		while (source.records.hasNext()) {
+			batch.add(source.records.next());
+			if (batch.size() == batchSize) {
+				submit(source, batch, workers, inFlight);
+				batch = new ArrayList<R>(batchSize);
+			}
+		}
+		if (!batch.isEmpty()) {
+			submit(source, batch, workers, inFlight);
+		}
+	}
+
+	private <R, T> void submit(Source<R, T> source, List<R> batch, ExecutorService workers, Semaphore inFlight) {
+		inFlight.acquireUninterruptibly();
+		workers.execute(() -> {
+			List<T> docs = new ArrayList<T>(batch.size());
+			try {
+				for (R record : batch) {
+					T doc = source.parser.apply(record);
+					if (doc != null) {
+						docs.add(doc);
+					}
+				}
+				if (!docs.isEmpty()) {
+					source.col.insertMany(docs, new InsertManyOptions().ordered(false));
+					inserted.addAndGet(docs.size());
+				}
+			} catch (MongoBulkWriteException e) {
+				int ok = e.getWriteResult().getInsertedCount();
+				inserted.addAndGet(ok);
+				// Records the parser dropped weren't sent
+				failed.addAndGet(docs.size() - ok);
+				System.err.println("Bulk insert into " + source.name + " failed partially: " + e.getMessage());
+			} catch (Exception e) {
+				failed.addAndGet(batch.size());
+				e.printStackTrace();
+			} finally {
+				inFlight.release();
+			}
+		});
+	}
+
+	private void report(long start, boolean done) {
+		double seconds = Math.max(1, System.nanoTime() - start) / 1e9;
+		long n = inserted.get();
+		System.out.format("%s %d documents in %.1f s (%.0f docs/s, %d failed)%n", done ? "Loaded" : "Loading...", n,
+				seconds, n / seconds, failed.get());
+	}
+
+	/**
+	 * Iterate over the lines of a classpath resource. The underlying stream is
+	 * closed after the last line.
+	 *
+	 * @param fileName
+	 *            the classpath resource to read
+	 * @return the lines of the resource
+	 */
+	public static Iterator<String> lines(String fileName) {
+		InputStream in = MovieServiceBase.class.getResourceAsStream(fileName);
+		if (in == null) {
+			throw new IllegalArgumentException("Resource not found: " + fileName);
+		}
+		Scanner scanner = new Scanner(in);
+		return new Iterator<String>() {
+			@Override
+			public boolean hasNext() {
+				if (scanner.hasNextLine()) {
+					return true;
+				}
+				scanner.close();
+				return false;
+			}
+
+			@Override
+			public String next() {
+				return scanner.nextLine();
+			}
+		};
+	}
+
+	private static class Source<R, T> {
+		final String name;
+		final Iterator<R> records;
+		final Function<R, T> parser;
+		final MongoCollection<T> col;
+
+		Source(String name, Iterator<R> records, Function<R, T> parser, MongoCollection<T> col) {
+			this.name = name;
+			this.records = records;
+			this.parser = parser;
+			this.col = col;
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package logic;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Content-addressed storage for GridFS files. Every distinct content is
+ * stored once, as a "blob": a GridFS file named by the SHA-256 of its
+ * content. The names the files are uploaded and requested with are aliases
+ * in the "file_aliases" collection:
+ *
+ * <pre>
+ * { _id: *name*, sha256: *hash of the content*, fileId: *_id of the blob*, length: ..., uploadDate: ... }
+ * </pre>
+ *
+ * Uploading content that is already stored only writes the alias. Small
+ * uploads are hashed in memory before anything is written, large ones are
+ * hashed while they are streamed into GridFS and the new blob is deleted
+ * again if it turns out to be a duplicate. Blobs no alias points to are
+ * garbage-collected in the background.
+ * <p>
+ * Aliases of derived files (e.g. thumbnails) have the hash of the content
+ * they were derived from as "source". They are deleted with the garbage
+ * when no other alias has that content anymore.
+ */
+public class ContentStore {
+
+	/** Uploads up to this size are buffered and hashed before writing */
+	public static final int INLINE_BYTES = 1024 * 1024;
+	/** Unreferenced blobs are kept this long, e.g. for uploads in progress */
+	public static final long GC_GRACE_MS = 60L * 60 * 1000;
+	private static final long GC_INTERVAL_MS = 10L * 60 * 1000;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private final GridFSBucket fs;
+	private final MongoCollection<Document> files;
+	private final MongoCollection<Document> aliases;
+	private final int chunkSize;
+	private ScheduledExecutorService collector;
+
+	/**
+	 * @param fs
+	 *            the GridFS bucket
+	 * @param files
+	 *            the files collection of the bucket ("fs.files")
+	 * @param aliases
+	 *            the collection of the aliases ("file_aliases")
+	 * @param chunkSize
+	 *            the chunk size of new blobs
+	 */
+	public ContentStore(GridFSBucket fs, MongoCollection<Document> files, MongoCollection<Document> aliases,
+			int chunkSize) {
+		this.fs = fs;
+		this.files = files;
+		this.aliases = aliases;
+		this.chunkSize = chunkSize;
+	}
+
+	public GridFSBucket getBucket() {
+		return fs;
+	}
+
+	public MongoCollection<Document> getAliases() {
+		return aliases;
+	}
+
+	/**
+	 * Collect garbage now and then every GC_INTERVAL_MS.
+	 */
+	public synchronized void start() {
+		if (collector != null)
+			return;
+		collector = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "content-gc");
+			t.setDaemon(true);
+			return t;
+		});
+		collector.scheduleWithFixedDelay(() -> {
+			try {
+				collectGarbage();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, 0, GC_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Store content under a name. If the name was used before, it points to
+	 * the new content afterwards.
+	 *
+	 * @param name
+	 *            the name of the file
+	 * @param in
+	 *            the content, it is read to the end but not closed
+	 * @param contentType
+	 *            the content type, stored with the blob
+	 * @return the alias
+	 * @throws IOException
+	 *             if reading the content failed, nothing is stored then
+	 */
+	public Document save(String name, InputStream in, String contentType) throws IOException {
+		return save(name, in, contentType, null);
+	}
+
+	/**
+	 * Store content under a name, with additional fields in the alias.
+	 *
+	 * @param fields
+	 *            the fields to add to the alias, e.g. "source", or null
+	 * @see #save(String, InputStream, String)
+	 */
+	public Document save(String name, InputStream in, String contentType, Document fields) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[chunkSize];
+		ByteArrayOutputStream head = new ByteArrayOutputStream();
+		int n = 0;
+		while (head.size() <= INLINE_BYTES && (n = in.read(buffer)) != -1) {
+			head.write(buffer, 0, n);
+		}
+		if (n == -1) {
+			byte[] content = head.toByteArray();
+			String hash = hex(digest.digest(content));
+			GridFSFile blob = findBlob(hash);
+			if (blob != null) {
+				Document alias = link(name, hash, blob.getId(), blob.getLength(), fields);
+				if (exists(blob.getId()))
+					return alias;
+				// Collected between the lookup and the alias, store it again
+			}
+			ObjectId id = fs.uploadFromStream(hash, new ByteArrayInputStream(content), options(contentType, hash));
+			return link(name, hash, new BsonObjectId(id), content.length, fields);
+		}
+
+		// Too large to buffer, hash while streaming it into a new blob
+		GridFSUploadStream upload = fs.openUploadStream(name, options(contentType, null));
+		long length = 0;
+		try {
+			byte[] content = head.toByteArray();
+			digest.update(content);
+			upload.write(content);
+			length = content.length;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+				upload.write(buffer, 0, n);
+				length += n;
+			}
+			upload.close();
+		} catch (IOException | RuntimeException e) {
+			upload.abort();
+			throw e;
+		}
+		String hash = hex(digest.digest());
+		BsonValue id = upload.getId();
+		GridFSFile blob = findBlob(hash);
+		if (blob != null) {
+			Document alias = link(name, hash, blob.getId(), blob.getLength(), fields);
+			if (exists(blob.getId())) {
+				fs.delete(id);
+				return alias;
+			}
+		}
+		seal(id, hash);
+		return link(name, hash, id, length, fields);
+	}
+
+	/**
+	 * @return the alias with the name, null if there is none
+	 */
+	public Document getAlias(String name) {
+		return aliases.find(Filters.eq("_id", name)).first();
+	}
+
+	/**
+	 * @return the blob the name points to, null if there is none
+	 */
+	public GridFSFile find(String name) {
+		Document alias = getAlias(name);
+		if (alias == null) {
+			return null;
+		}
+		return getBlob(alias);
+	}
+
+	/**
+	 * @return the blob the alias points to, null if there is none
+	 */
+	public GridFSFile getBlob(Document alias) {
+		return fs.find(Filters.eq("_id", alias.get("fileId"))).first();
+	}
+
+	/**
+	 * @return true if a file with the name is stored
+	 */
+	public boolean exists(String name) {
+		return aliases.countDocuments(Filters.eq("_id", name)) > 0;
+	}
+
+	/**
+	 * Delete the derived aliases whose source content is gone and then the
+	 * blobs no alias points to, if they are older than GC_GRACE_MS.
+	 *
+	 * @return the number of deleted blobs
+	 */
+	public int collectGarbage() {
+		List<String> sources = aliases.distinct("sha256", Filters.exists("source", false), String.class)
+				.into(new ArrayList<String>());
+		long orphans = aliases
+				.deleteMany(Filters.and(Filters.exists("source"), Filters.nin("source", sources)))
+				.getDeletedCount();
+		if (orphans > 0) {
+			System.out.println("Deleted " + orphans + " aliases of derived files");
+		}
+		Set<BsonValue> referenced = new HashSet<BsonValue>();
+		for (BsonValue id : aliases.distinct("fileId", BsonValue.class)) {
+			referenced.add(id);
+		}
+		Date cutoff = new Date(System.currentTimeMillis() - GC_GRACE_MS);
+		List<BsonValue> garbage = new ArrayList<BsonValue>();
+		for (GridFSFile file : fs.find(Filters.and(Filters.exists("metadata.sha256"), Filters.lt("uploadDate", cutoff)))) {
+			if (!referenced.contains(file.getId()))
+				garbage.add(file.getId());
+		}
+		int deleted = 0;
+		for (BsonValue id : garbage) {
+			// An upload of the same content may have linked it in the meantime
+			if (aliases.countDocuments(Filters.eq("fileId", id)) == 0) {
+				fs.delete(id);
+				deleted++;
+			}
+		}
+		if (deleted > 0) {
+			System.out.println("Deleted " + deleted + " unreferenced GridFS files");
+		}
+		return deleted;
+	}
+
+	/**
+	 * Turn GridFS files that were stored by name (before the content-addressed
+	 * store) into blobs with aliases. Files with the same content are stored
+	 * once, older versions of a name are left to the garbage collection.
+	 */
+	public void migrate() {
+		List<GridFSFile> legacy = fs.find(Filters.exists("metadata.sha256", false))
+				.sort(Sorts.ascending("uploadDate")).into(new ArrayList<GridFSFile>());
+		if (legacy.isEmpty()) {
+			return;
+		}
+		long start = System.nanoTime();
+		for (GridFSFile file : legacy) {
+			String hash;
+			try (GridFSDownloadStream in = fs.openDownloadStream(file.getId())) {
+				hash = hash(in);
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+			GridFSFile blob = findBlob(hash);
+			if (blob == null) {
+				seal(file.getId(), hash);
+				blob = file;
+			} else {
+				fs.delete(file.getId());
+			}
+			// Oldest first, so a name ends up with its newest version
+			link(file.getFilename(), hash, blob.getId(), blob.getLength(), null);
+		}
+		System.out.println("Moved " + legacy.size() + " GridFS files to the content-addressed store in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	private GridFSUploadOptions options(String contentType, String hash) {
+		Document metadata = new Document("contentType", contentType);
+		if (hash != null) {
+			metadata.append("sha256", hash);
+		}
+		return new GridFSUploadOptions().chunkSizeBytes(chunkSize).metadata(metadata);
+	}
+
+	/**
+	 * @return the oldest blob with the hash
+	 */
+	private GridFSFile findBlob(String hash) {
+		return fs.find(Filters.eq("filename", hash)).sort(Sorts.ascending("uploadDate")).first();
+	}
+
+	private boolean exists(BsonValue fileId) {
+		return files.countDocuments(Filters.eq("_id", fileId)) > 0;
+	}
+
+	/**
+	 * Name a GridFS file by its hash, which makes it a blob.
+	 */
+	private void seal(BsonValue fileId, String hash) {
+		files.updateOne(Filters.eq("_id", fileId),
+				Updates.combine(Updates.set("filename", hash), Updates.set("metadata.sha256", hash)));
+	}
+
+	private Document link(String name, String hash, BsonValue fileId, long length, Document fields) {
+		Document alias = new Document("_id", name)
+				.append("sha256", hash)
+				.append("fileId", fileId)
+				.append("length", length)
+				.append("uploadDate", new Date());
+		if (fields != null) {
+			alias.putAll(fields);
+		}
+		aliases.replaceOne(Filters.eq("_id", name), alias, new ReplaceOptions().upsert(true));
+		return alias;
+	}
+
+	private static String hash(InputStream in) throws IOException {
+		MessageDigest digest = sha256();
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			digest.update(buffer, 0, n);
+		}
+		return hex(digest.digest());
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JRE has SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[2 * i] = HEX[(bytes[i] >> 4) & 0xf];
+			chars[2 * i + 1] = HEX[bytes[i] & 0xf];
+		}
+		return new String(chars);
+	}
+}
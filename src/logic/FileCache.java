@@ -0,0 +1,229 @@
+package logic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * Size-bounded LRU cache for GridFS files. It holds the metadata of all
+ * recently used files and the content of the small ones, so serving an image
+ * usually doesn't query MongoDB at all. Names without a file map to the
+ * default file, which is loaded once and never evicted. Names are resolved
+ * through the aliases of the {@link ContentStore}.
+ * <p>
+ * The content is stored in heap byte arrays or, with offHeap, in direct
+ * buffers outside of the Java heap.
+ */
+public class FileCache {
+
+	public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+	public static final int DEFAULT_MAX_FILE_BYTES = 1024 * 1024;
+
+	private final ContentStore store;
+	private final GridFSBucket fs;
+	private final String defaultName;
+	private final long maxBytes;
+	private final int maxFileBytes;
+	private final boolean offHeap;
+	private final LinkedHashMap<String, ImageFile> entries = new LinkedHashMap<String, ImageFile>(256, 0.75f, true);
+	private long bytes;
+	private long version;
+	private volatile ImageFile defaultFile;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public FileCache(ContentStore store, String defaultName) {
+		this(store, defaultName, DEFAULT_MAX_BYTES, DEFAULT_MAX_FILE_BYTES, Boolean.getBoolean("images.offHeap"));
+	}
+
+	/**
+	 * @param store
+	 *            the store of the files
+	 * @param defaultName
+	 *            the name of the file that is returned for unknown names
+	 * @param maxBytes
+	 *            the maximum size of all cached files
+	 * @param maxFileBytes
+	 *            the maximum size of a file whose content is cached
+	 * @param offHeap
+	 *            store the content in direct buffers
+	 */
+	public FileCache(ContentStore store, String defaultName, long maxBytes, int maxFileBytes, boolean offHeap) {
+		this.store = store;
+		this.fs = store.getBucket();
+		this.defaultName = defaultName;
+		this.maxBytes = maxBytes;
+		this.maxFileBytes = maxFileBytes;
+		this.offHeap = offHeap;
+	}
+
+	/**
+	 * Get a file by name.
+	 *
+	 * @param name
+	 *            the name of the file
+	 * @return the newest file with the name or the default file if there is
+	 *         none
+	 */
+	public ImageFile get(String name) {
+		if (name == null || name.equals(defaultName)) {
+			return getDefault();
+		}
+		return get(name, true);
+	}
+
+	/**
+	 * Get a file by name, without falling back to the default file.
+	 *
+	 * @param name
+	 *            the name of the file
+	 * @return the file or null if there is none
+	 */
+	public ImageFile getExisting(String name) {
+		return get(name, false);
+	}
+
+	private ImageFile get(String name, boolean fallback) {
+		long loadVersion;
+		synchronized (this) {
+			ImageFile cached = entries.get(name);
+			if (cached != null) {
+				hits.incrementAndGet();
+				return cached;
+			}
+			loadVersion = version;
+		}
+		misses.incrementAndGet();
+		ImageFile image = load(name);
+		if (image == null) {
+			if (!fallback)
+				return null;
+			image = getDefault();
+		}
+		synchronized (this) {
+			if (image == null || loadVersion != version) {
+				// No default file or invalidated while loading
+				return image;
+			}
+			// Missing names are cached too, they point to the default file
+			remove(name);
+			entries.put(name, image);
+			if (image != defaultFile) {
+				bytes += image.getSize();
+			}
+			Iterator<Map.Entry<String, ImageFile>> it = entries.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				ImageFile eldest = it.next().getValue();
+				if (eldest != defaultFile) {
+					bytes -= eldest.getSize();
+				}
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		return image;
+	}
+
+	/**
+	 * @return the default file, it stays in memory
+	 */
+	public ImageFile getDefault() {
+		ImageFile file = defaultFile;
+		if (file == null) {
+			synchronized (this) {
+				if (defaultFile == null) {
+					defaultFile = load(defaultName);
+				}
+				file = defaultFile;
+			}
+		}
+		return file;
+	}
+
+	/**
+	 * Remove a file from the cache, e.g. because it was overwritten.
+	 *
+	 * @param name
+	 *            the name of the file
+	 */
+	public synchronized void invalidate(String name) {
+		version++;
+		if (defaultName.equals(name)) {
+			// Names without a file point to the old default file
+			entries.clear();
+			bytes = 0;
+			defaultFile = null;
+			return;
+		}
+		remove(name);
+	}
+
+	private void remove(String name) {
+		ImageFile old = entries.remove(name);
+		if (old != null && old != defaultFile) {
+			bytes -= old.getSize();
+		}
+	}
+
+	/**
+	 * @return the file the name points to, with the upload date of the name,
+	 *         null if there is none
+	 */
+	private ImageFile load(String name) {
+		Document alias = store.getAlias(name);
+		GridFSFile file = alias == null ? null : store.getBlob(alias);
+		return file == null ? null : load(file, alias.getDate("uploadDate"));
+	}
+
+	private ImageFile load(GridFSFile file, Date uploadDate) {
+		if (file.getLength() > maxFileBytes) {
+			return new ImageFile(file, uploadDate, null);
+		}
+		int length = (int) file.getLength();
+		ByteBuffer content = offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+		byte[] chunk = new byte[Math.max(1, Math.min(length, file.getChunkSize()))];
+		try (GridFSDownloadStream in = fs.openDownloadStream(file.getId())) {
+			readFully(in, content, chunk);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return new ImageFile(file, uploadDate, null);
+		}
+		content.flip();
+		return new ImageFile(file, uploadDate, content);
+	}
+
+	private static void readFully(InputStream in, ByteBuffer content, byte[] chunk) throws IOException {
+		int n;
+		while (content.hasRemaining()
+				&& (n = in.read(chunk, 0, Math.min(chunk.length, content.remaining()))) != -1) {
+			content.put(chunk, 0, n);
+		}
+	}
+
+	/**
+	 * @return hit/miss counters and the size of the cache
+	 */
+	public synchronized Document getStats() {
+		long h = hits.get(), m = misses.get();
+		return new Document("entries", entries.size())
+				.append("bytes", bytes)
+				.append("offHeap", offHeap)
+				.append("hits", h)
+				.append("misses", m)
+				.append("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m))
+				.append("evictions", evictions.get());
+	}
+}
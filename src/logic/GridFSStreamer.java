@@ -0,0 +1,143 @@
+package logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Streams byte ranges of GridFS files. Instead of reading the file from the
+ * start, only the chunks overlapping the range are queried from the
+ * "fs.chunks" collection (with the {files_id, n} index). Lengths and
+ * offsets are longs, so files larger than 2 GB work.
+ * <p>
+ * The chunks are copied through pooled direct buffers. Writing a direct
+ * buffer to a channel avoids the temporary direct buffer the JDK allocates
+ * for heap buffers.
+ */
+public class GridFSStreamer {
+
+	public static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+	public static final int DEFAULT_POOL_SIZE = 32;
+
+	private final MongoCollection<Document> chunks;
+	private final BufferPool pool;
+
+	public GridFSStreamer(MongoCollection<Document> chunks) {
+		this(chunks, DEFAULT_BUFFER_SIZE, DEFAULT_POOL_SIZE);
+	}
+
+	/**
+	 * @param chunks
+	 *            the "fs.chunks" collection
+	 * @param bufferSize
+	 *            the size of the pooled buffers
+	 * @param poolSize
+	 *            the maximum number of pooled buffers
+	 */
+	public GridFSStreamer(MongoCollection<Document> chunks, int bufferSize, int poolSize) {
+		this.chunks = chunks;
+		this.pool = new BufferPool(bufferSize, poolSize);
+	}
+
+	/**
+	 * Write a range of a file to a stream.
+	 *
+	 * @see #copy(GridFSFile, long, long, WritableByteChannel)
+	 */
+	public long copy(GridFSFile file, long start, long length, OutputStream out) throws IOException {
+		return copy(file, start, length, Channels.newChannel(out));
+	}
+
+	/**
+	 * Write a range of a file.
+	 *
+	 * @param file
+	 *            the file
+	 * @param start
+	 *            the offset of the first byte
+	 * @param length
+	 *            the number of bytes
+	 * @param channel
+	 *            the channel to write the buffers to
+	 * @return the number of bytes written
+	 */
+	public long copy(GridFSFile file, long start, long length, WritableByteChannel channel) throws IOException {
+		if (start < 0 || length < 0 || start + length > file.getLength()) {
+			throw new IllegalArgumentException("Range " + start + "+" + length + " outside of " + file.getLength());
+		}
+		if (length == 0) {
+			return 0;
+		}
+		long chunkSize = file.getChunkSize();
+		long end = start + length;
+		long first = start / chunkSize;
+		long last = (end - 1) / chunkSize;
+		ByteBuffer buffer = pool.acquire();
+		long written = 0;
+		try {
+			for (Document chunk : chunks
+					.find(Filters.and(Filters.eq("files_id", file.getId()), Filters.gte("n", first),
+							Filters.lte("n", last)))
+					.sort(Sorts.ascending("n")).batchSize(4)) {
+				long n = ((Number) chunk.get("n")).longValue();
+				byte[] data = ((Binary) chunk.get("data")).getData();
+				long chunkStart = n * chunkSize;
+				int from = (int) Math.max(0, start - chunkStart);
+				int to = (int) Math.min(data.length, end - chunkStart);
+				for (int offset = from; offset < to;) {
+					int count = Math.min(buffer.capacity(), to - offset);
+					buffer.clear();
+					buffer.put(data, offset, count);
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						channel.write(buffer);
+					}
+					offset += count;
+					written += count;
+				}
+			}
+		} finally {
+			pool.release(buffer);
+		}
+		if (written != length) {
+			throw new IOException("GridFS file " + file.getFilename() + " is missing chunks");
+		}
+		return written;
+	}
+
+	/**
+	 * A bounded pool of direct buffers. Buffers beyond the pool size are
+	 * allocated on demand and dropped when released.
+	 */
+	static class BufferPool {
+		private final int bufferSize;
+		private final BlockingQueue<ByteBuffer> buffers;
+
+		BufferPool(int bufferSize, int poolSize) {
+			this.bufferSize = bufferSize;
+			this.buffers = new ArrayBlockingQueue<ByteBuffer>(poolSize);
+		}
+
+		ByteBuffer acquire() {
+			ByteBuffer buffer = buffers.poll();
+			return buffer != null ? buffer : ByteBuffer.allocateDirect(bufferSize);
+		}
+
+		void release(ByteBuffer buffer) {
+			buffer.clear();
+			buffers.offer(buffer);
+		}
+	}
+}
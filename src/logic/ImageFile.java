@@ -0,0 +1,150 @@
+package logic;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Date;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+
+/**
+ * A GridFS file as held by the {@link FileCache}: its metadata and, for
+ * small files, its content.
+ */
+public class ImageFile {
+
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private final GridFSFile file;
+	private final ByteBuffer content;
+	private final String etag;
+	private final long lastModified;
+
+	/**
+	 * @param file
+	 *            the metadata of the file
+	 * @param uploadDate
+	 *            the upload date of the name of the file, see
+	 *            {@link ContentStore}, or null to use that of the file
+	 * @param content
+	 *            the content of the file or null if it is too large to be
+	 *            cached
+	 */
+	public ImageFile(GridFSFile file, Date uploadDate, ByteBuffer content) {
+		this.file = file;
+		this.content = content;
+		this.etag = "\"" + id(file.getId()) + "\"";
+		this.lastModified = (uploadDate != null ? uploadDate : file.getUploadDate()).getTime();
+	}
+
+	private static String id(BsonValue id) {
+		return id.isObjectId() ? id.asObjectId().getValue().toHexString() : id.toString();
+	}
+
+	public GridFSFile getFile() {
+		return file;
+	}
+
+	public String getFilename() {
+		return file.getFilename();
+	}
+
+	public long getLength() {
+		return file.getLength();
+	}
+
+	public String getContentType() {
+		Document metadata = file.getMetadata();
+		Object contentType = metadata == null ? null : metadata.get("contentType");
+		return contentType == null ? "application/octet-stream" : contentType.toString();
+	}
+
+	/**
+	 * @return the SHA-256 of the content, see {@link ContentStore}
+	 */
+	public String getHash() {
+		Document metadata = file.getMetadata();
+		return metadata == null ? null : metadata.getString("sha256");
+	}
+
+	/**
+	 * @return the entity tag, derived from the GridFS _id, which changes
+	 *         with every upload
+	 */
+	public String getETag() {
+		return etag;
+	}
+
+	/**
+	 * @return the date the name was last uploaded in milliseconds, the blob
+	 *         keeps the date of the first upload of its content
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return true if the content is held in memory
+	 */
+	public boolean isCached() {
+		return content != null;
+	}
+
+	/**
+	 * @return the number of bytes this file takes in the cache
+	 */
+	long getSize() {
+		return (content == null ? 0 : content.capacity()) + 512;
+	}
+
+	/**
+	 * Write the cached content.
+	 *
+	 * @throws IllegalStateException
+	 *             if the content isn't cached
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		if (content == null) {
+			throw new IllegalStateException(file.getFilename() + " is not cached");
+		}
+		ByteBuffer buffer = content.duplicate();
+		if (buffer.hasArray()) {
+			out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+			return;
+		}
+		byte[] copy = new byte[Math.min(COPY_BUFFER_SIZE, buffer.remaining())];
+		while (buffer.hasRemaining()) {
+			int n = Math.min(copy.length, buffer.remaining());
+			buffer.get(copy, 0, n);
+			out.write(copy, 0, n);
+		}
+	}
+
+	/**
+	 * Write a range of the cached content.
+	 *
+	 * @param channel
+	 *            the channel to write to
+	 * @param start
+	 *            the offset of the first byte
+	 * @param length
+	 *            the number of bytes
+	 * @throws IllegalStateException
+	 *             if the content isn't cached
+	 */
+	public void writeTo(WritableByteChannel channel, long start, long length) throws IOException {
+		if (content == null) {
+			throw new IllegalStateException(file.getFilename() + " is not cached");
+		}
+		ByteBuffer buffer = content.duplicate();
+		buffer.position((int) start);
+		buffer.limit((int) (start + length));
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+}
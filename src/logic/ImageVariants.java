@@ -0,0 +1,297 @@
+package logic;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.bson.Document;
+
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+
+/**
+ * Scaled-down variants of the stored images, for the previews that don't
+ * need the full resolution. A variant fits into a square of its size and is
+ * recompressed with the JDK ImageIO, as JPEG or, for images with
+ * transparency, as PNG.
+ * <p>
+ * Variants are stored in the {@link ContentStore} as "*sha256 of the
+ * original*@*size*", with the hash of the original as "source". A changed
+ * original therefore has new variants, the old ones are garbage-collected
+ * with the old content. Variants are created in the background after an
+ * upload and on demand if they are missing.
+ */
+public class ImageVariants {
+
+	public enum Size {
+		THUMB(96), SMALL(320), MEDIUM(640);
+
+		private final int pixels;
+
+		Size(int pixels) {
+			this.pixels = pixels;
+		}
+
+		/**
+		 * @return the maximum width and height
+		 */
+		public int getPixels() {
+			return pixels;
+		}
+
+		/**
+		 * @param value
+		 *            the name (e.g. "small") or the pixels (e.g. "320")
+		 * @throws IllegalArgumentException
+		 *             if there is no such size
+		 */
+		public static Size parse(String value) {
+			for (Size size : values()) {
+				if (size.name().equalsIgnoreCase(value) || String.valueOf(size.pixels).equals(value))
+					return size;
+			}
+			throw new IllegalArgumentException("Unknown image size " + value + ", use thumb, small or medium");
+		}
+	}
+
+	public static final float JPEG_QUALITY = 0.8f;
+	/** Larger images are not decoded, their variants are the original */
+	public static final long MAX_PIXELS = 50L * 1000 * 1000;
+	private static final int QUEUE_SIZE = 256;
+
+	private final ContentStore store;
+	private final FileCache cache;
+	private final ThreadPoolExecutor worker;
+	private final ConcurrentHashMap<String, CompletableFuture<ImageFile>> pending = new ConcurrentHashMap<String, CompletableFuture<ImageFile>>();
+
+	public ImageVariants(ContentStore store, FileCache cache) {
+		this.store = store;
+		this.cache = cache;
+		// Decode and encode in memory instead of in temporary files
+		ImageIO.setUseCache(false);
+		// Uploads beyond the queue are skipped, their variants are created on demand
+		worker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+				r -> {
+					Thread t = new Thread(r, "image-variants");
+					t.setDaemon(true);
+					return t;
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
+
+	/**
+	 * Create the variants of a stored image in the background.
+	 *
+	 * @param name
+	 *            the name of the image
+	 */
+	public void generate(String name) {
+		worker.execute(() -> {
+			try {
+				ImageFile original = cache.getExisting(name);
+				if (original == null)
+					return;
+				for (Size size : Size.values()) {
+					get(original, size);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		});
+	}
+
+	/**
+	 * Get a variant, create it if it doesn't exist yet.
+	 *
+	 * @param name
+	 *            the name of the image, unknown names get the variant of the
+	 *            default image
+	 * @param size
+	 *            the size of the variant
+	 * @return the variant or null if there is no default image
+	 */
+	public ImageFile get(String name, Size size) throws IOException {
+		ImageFile original = cache.get(name);
+		return original == null ? null : get(original, size);
+	}
+
+	private ImageFile get(ImageFile original, Size size) throws IOException {
+		String hash = original.getHash();
+		if (hash == null) {
+			// Not (yet) in the content-addressed store
+			return original;
+		}
+		String key = hash + "@" + size.getPixels();
+		ImageFile variant = cache.getExisting(key);
+		if (variant != null) {
+			return variant;
+		}
+		// Concurrent requests for the same variant wait for one build
+		CompletableFuture<ImageFile> future = new CompletableFuture<ImageFile>();
+		CompletableFuture<ImageFile> running = pending.putIfAbsent(key, future);
+		if (running != null) {
+			return running.join();
+		}
+		try {
+			variant = build(original, size, key);
+			future.complete(variant);
+			return variant;
+		} catch (IOException | RuntimeException e) {
+			future.completeExceptionally(e);
+			throw e;
+		} finally {
+			pending.remove(key);
+		}
+	}
+
+	/**
+	 * Remove the cached variants of an original, e.g. because its name now
+	 * points to other content.
+	 *
+	 * @param hash
+	 *            the hash of the original
+	 */
+	public void evict(String hash) {
+		for (Size size : Size.values()) {
+			cache.invalidate(hash + "@" + size.getPixels());
+		}
+	}
+
+	private ImageFile build(ImageFile original, Size size, String key) throws IOException {
+		long start = System.nanoTime();
+		byte[] content = read(original);
+		ByteArrayOutputStream scaled = new ByteArrayOutputStream();
+		String contentType = scale(content, size.getPixels(), scaled);
+		Document source = new Document("source", original.getHash());
+		byte[] variant = content;
+		if (contentType == null || scaled.size() >= content.length) {
+			// No image ImageIO can read or already smaller: the original is stored once more
+			// and deduplicated, so it isn't decoded again on every request
+			contentType = original.getContentType();
+		} else {
+			variant = scaled.toByteArray();
+		}
+		store.save(key, new ByteArrayInputStream(variant), contentType, source);
+		System.out.println("Created " + size.name().toLowerCase() + " variant of " + original.getHash() + " ("
+				+ content.length + " -> " + variant.length + " bytes) in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+		return cache.getExisting(key);
+	}
+
+	private byte[] read(ImageFile original) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(original.getLength(), Integer.MAX_VALUE));
+		if (original.isCached()) {
+			original.writeTo(out);
+			return out.toByteArray();
+		}
+		try (GridFSDownloadStream in = store.getBucket().openDownloadStream(original.getFile().getId())) {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Scale an image to fit into a square.
+	 *
+	 * @param content
+	 *            the encoded image
+	 * @param size
+	 *            the width and height of the square
+	 * @param out
+	 *            the stream to write the scaled image to
+	 * @return the content type of the scaled image, null if ImageIO can't
+	 *         read the image or it is too large
+	 */
+	static String scale(byte[] content, int size, OutputStream out) throws IOException {
+		try (ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayInputStream(content))) {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+			if (!readers.hasNext()) {
+				return null;
+			}
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(in, true, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				if ((long) width * height > MAX_PIXELS) {
+					return null;
+				}
+				// Decode at most about twice the target size, skipping pixels
+				// while decoding is much cheaper than scaling them down later
+				ImageReadParam param = reader.getDefaultReadParam();
+				int step = Math.max(1, Math.max(width, height) / (2 * size));
+				param.setSourceSubsampling(step, step, 0, 0);
+				BufferedImage image = resize(reader.read(0, param), size);
+				if (image.getColorModel().hasAlpha()) {
+					ImageIO.write(image, "png", out);
+					return "image/png";
+				}
+				writeJpeg(image, out);
+				return "image/jpeg";
+			} finally {
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Scale down in steps of at most 2x, bilinear interpolation of larger
+	 * steps skips pixels and looks grainy.
+	 */
+	private static BufferedImage resize(BufferedImage image, int size) {
+		double factor = Math.min(1.0, (double) size / Math.max(image.getWidth(), image.getHeight()));
+		int width = Math.max(1, (int) Math.round(image.getWidth() * factor));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * factor));
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage current = image;
+		int w = image.getWidth(), h = image.getHeight();
+		do {
+			w = Math.max(width, w / 2);
+			h = Math.max(height, h / 2);
+			BufferedImage next = new BufferedImage(w, h, type);
+			Graphics2D g = next.createGraphics();
+			try {
+				g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+				g.drawImage(current, 0, 0, w, h, null);
+			} finally {
+				g.dispose();
+			}
+			current = next;
+		} while (w != width || h != height);
+		return current;
+	}
+
+	private static void writeJpeg(BufferedImage image, OutputStream out) throws IOException {
+		ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+		param.setCompressionQuality(JPEG_QUALITY);
+		try (ImageOutputStream ios = ImageIO.createImageOutputStream(out)) {
+			writer.setOutput(ios);
+			writer.write(null, new IIOImage(image, null, null), param);
+		} finally {
+			writer.dispose();
+		}
+	}
+}
@@ -0,0 +1,219 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+
+/**
+ * Registry of all indexes the queries of the {@link MovieService} need.
+ * The indexes are created (or verified if they already exist) once at
+ * startup instead of on the query path. The query plans of the service can
+ * be checked with explain() to find queries that don't use an index.
+ */
+public class IndexManager {
+
+	private final MongoDatabase db;
+	private final List<IndexSpec> specs = new ArrayList<IndexSpec>();
+
+	public IndexManager(MongoDatabase db) {
+		this.db = db;
+	}
+
+	/**
+	 * The indexes for the movies, tweets, movie_tweets and GridFS collections.
+	 */
+	public static IndexManager defaults(MongoDatabase db) {
+		IndexManager im = new IndexManager(db);
+		// findMovieByTitle, findMovieIds and the suggest fallback
+		im.register("movies", Indexes.ascending("title"), new IndexOptions());
+		// getBestMovies filters and sorts on votes and rating, _id makes the
+		// sort key unique for paging
+		im.register("movies", Indexes.descending("votes", "rating", "_id"), new IndexOptions());
+		// getByGenre
+		im.register("movies", Indexes.ascending("genre", "_id"), new IndexOptions());
+		// getTweetedMovies, in the sort order of the query
+		im.register("movies", Indexes.descending("_id"), new IndexOptions().name("tweeted_id")
+				.partialFilterExpression(new Document("tweetCount", new Document("$gt", 0))));
+		// getViewableMovies
+		im.register("movies", Indexes.ascending("geoTweetCount"), new IndexOptions()
+				.partialFilterExpression(new Document("geoTweetCount", new Document("$gt", 0))));
+		// The buckets of a movie's tweets
+		im.register("movie_tweets", Indexes.ascending("movie", "n"), new IndexOptions().unique(true));
+		// searchTweets
+		im.register("tweets", new Document("text", "text").append("user.name", "text"), new IndexOptions());
+		// getTweetsNear
+		im.register("tweets", Indexes.geo2dsphere("coordinates"), new IndexOptions());
+		// getTaggedTweets: only geotagged tweets, in the sort order of the query
+		im.register("tweets", Indexes.descending("id"), new IndexOptions().name("tagged_id")
+				.partialFilterExpression(new Document("coordinates", new Document("$exists", true))));
+		// getGeotaggedTweets
+		im.register("tweets", Indexes.descending("_id"), new IndexOptions().name("geotagged_id")
+				.partialFilterExpression(new Document("coordinates", new Document("$exists", true))));
+		// GridFS, normally created by the driver on the first upload
+		im.register("fs.files", Indexes.ascending("filename", "uploadDate"), new IndexOptions());
+		im.register("fs.chunks", Indexes.ascending("files_id", "n"), new IndexOptions().unique(true));
+		// ContentStore: garbage collection checks whether a blob is referenced
+		im.register("file_aliases", Indexes.ascending("fileId"), new IndexOptions());
+		return im;
+	}
+
+	/**
+	 * Register an index.
+	 *
+	 * @param collection
+	 *            the name of the collection
+	 * @param keys
+	 *            the index keys
+	 * @param options
+	 *            the index options
+	 */
+	public IndexManager register(String collection, Bson keys, IndexOptions options) {
+		specs.add(new IndexSpec(collection, keys, options.background(true)));
+		return this;
+	}
+
+	/**
+	 * Create all registered indexes that don't exist yet.
+	 *
+	 * @return the number of created indexes
+	 */
+	public int ensureIndexes() {
+		long start = System.nanoTime();
+		int created = 0;
+		Map<String, Set<BsonDocument>> existing = new LinkedHashMap<String, Set<BsonDocument>>();
+		for (IndexSpec spec : specs) {
+			MongoCollection<Document> col = db.getCollection(spec.collection);
+			Set<BsonDocument> keys = existing.get(spec.collection);
+			if (keys == null) {
+				keys = new HashSet<BsonDocument>();
+				for (Document index : col.listIndexes()) {
+					keys.add(toBson((Document) index.get("key")));
+				}
+				existing.put(spec.collection, keys);
+			}
+			BsonDocument key = toBson(spec.keys);
+			if (keys.contains(key) || (isText(key) && containsText(keys))) {
+				continue;
+			}
+			try {
+				col.createIndex(spec.keys, spec.options);
+				keys.add(key);
+				created++;
+			} catch (Exception e) {
+				System.err.println("Could not create index " + key.toJson() + " on " + spec.collection + ": "
+						+ e.getMessage());
+			}
+		}
+		System.out.println("Indexes verified, " + created + " created in " + (System.nanoTime() - start) / 1000000
+				+ " ms");
+		return created;
+	}
+
+	/**
+	 * Explain the given queries and warn about collection scans and in-memory
+	 * sorts in their winning plans.
+	 *
+	 * @param queries
+	 *            the queries to check by name
+	 * @return the names of the queries with a problematic plan
+	 */
+	public List<String> checkPlans(Map<String, MovieQuery> queries) {
+		List<String> problems = new ArrayList<String>();
+		for (Map.Entry<String, MovieQuery> e : queries.entrySet()) {
+			try {
+				Document plan = explain(e.getValue());
+				Set<String> stages = new HashSet<String>();
+				collectStages(plan, stages);
+				if (stages.contains("COLLSCAN") || stages.contains("SORT")) {
+					problems.add(e.getKey());
+					System.err.println("WARNING: query " + e.getKey() + " uses "
+							+ (stages.contains("COLLSCAN") ? "COLLSCAN " : "")
+							+ (stages.contains("SORT") ? "in-memory SORT" : ""));
+				}
+			} catch (Exception ex) {
+				System.err.println("Could not explain query " + e.getKey() + ": " + ex.getMessage());
+			}
+		}
+		return problems;
+	}
+
+	/**
+	 * @return the winning plan of the query
+	 */
+	public Document explain(MovieQuery query) {
+		String collection = query.getTarget() == MovieQuery.Target.MOVIES ? "movies" : "tweets";
+		Document find = new Document("find", collection).append("filter", toBson(query.getFilter()));
+		if (query.getSort() != null)
+			find.append("sort", toBson(query.getSort()));
+		if (query.getProjection() != null)
+			find.append("projection", toBson(query.getProjection()));
+		if (query.getLimit() > 0)
+			find.append("limit", query.getLimit());
+		Document result = db.runCommand(new Document("explain", find).append("verbosity", "queryPlanner"));
+		Document planner = (Document) result.get("queryPlanner");
+		return (Document) planner.get("winningPlan");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void collectStages(Document plan, Set<String> stages) {
+		if (plan == null)
+			return;
+		stages.add(plan.getString("stage"));
+		collectStages((Document) plan.get("inputStage"), stages);
+		Object inputs = plan.get("inputStages");
+		if (inputs instanceof List) {
+			for (Object input : (List<Object>) inputs) {
+				collectStages((Document) input, stages);
+			}
+		}
+	}
+
+	private static BsonDocument toBson(Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+
+	private static boolean isText(BsonDocument key) {
+		for (String field : key.keySet()) {
+			if (key.get(field).isString() && "text".equals(key.getString(field).getValue()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * A collection can only have one text index, its key is stored as
+	 * {_fts: "text", _ftsx: 1}.
+	 */
+	private static boolean containsText(Set<BsonDocument> keys) {
+		for (BsonDocument key : keys) {
+			if (key.containsKey("_fts"))
+				return true;
+		}
+		return false;
+	}
+
+	private static class IndexSpec {
+		final String collection;
+		final Bson keys;
+		final IndexOptions options;
+
+		IndexSpec(String collection, Bson keys, IndexOptions options) {
+			this.collection = collection;
+			this.keys = keys;
+			this.options = options;
+		}
+	}
+}
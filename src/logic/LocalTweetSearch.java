@@ -0,0 +1,669 @@
+package logic;
+
+import static com.mongodb.client.model.Filters.in;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Projections;
+
+/**
+ * Embedded full text index of the tweets' "text" and "user.name", ranked
+ * with BM25. Queries are words (any of them has to match), "quoted phrases"
+ * (all of them have to match) and -negated words or phrases, like the text
+ * search of MongoDB. Terms are produced by the {@link TextAnalyzer}.
+ * <p>
+ * The index consists of immutable {@link TweetSegment}s. New tweets are
+ * collected in a buffer that is sealed into a segment every second, so they
+ * are searchable about a second after they were written. Whenever
+ * {@link #MERGE_FACTOR} segments of the same order of magnitude exist they
+ * are merged into one, so there are only a few segments per order of
+ * magnitude. Searches read a snapshot of the segment list and don't lock.
+ * <p>
+ * Only the best "limit" tweets are collected. For queries without phrases
+ * the postings of a term are skipped once the term can't bring a tweet into
+ * the results any more (MaxScore), so rare terms are cheap even if the
+ * query also contains frequent ones. The index lives on the heap and is
+ * rebuilt from the tweets collection on start.
+ */
+public class LocalTweetSearch implements TweetSearchBackend {
+
+	public static final int MERGE_FACTOR = 10;
+	public static final long REFRESH_MS = 1000;
+	private static final double K1 = 1.2;
+	private static final double B = 0.75;
+	/** Tweets this much older than the start of a build may still be in flight */
+	private static final int IN_FLIGHT_SECONDS = 60;
+
+	private final MongoCollection<Document> tweets;
+	private final Object lock = new Object();
+	private TweetSegment.Builder buffer = new TweetSegment.Builder();
+	/** Written tweets from before the start of a running build */
+	private final Set<Object> inFlight = new HashSet<Object>();
+	private ObjectId buildStart;
+	private volatile List<TweetSegment> segments = Collections.emptyList();
+	private volatile boolean ready;
+	private ScheduledExecutorService refresher;
+	private volatile Runnable refreshListener;
+
+	private final AtomicLong refreshes = new AtomicLong();
+	private final AtomicLong merges = new AtomicLong();
+	private final AtomicLong queries = new AtomicLong();
+	private final AtomicLong queryNanos = new AtomicLong();
+	private volatile long maxQueryNanos;
+
+	public LocalTweetSearch(MongoCollection<Document> tweets) {
+		this.tweets = tweets;
+	}
+
+	/**
+	 * Seal the buffer every {@link #REFRESH_MS} milliseconds.
+	 */
+	@Override
+	public synchronized void start() {
+		if (refresher != null)
+			return;
+		refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "tweet-search-refresh");
+			t.setDaemon(true);
+			return t;
+		});
+		refresher.scheduleWithFixedDelay(() -> {
+			try {
+				refresh();
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}, REFRESH_MS, REFRESH_MS, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Index the tweets of the collection. Tweets that are written meanwhile
+	 * are indexed by {@link #add(List)}, the scan skips them.
+	 */
+	@Override
+	public void build() {
+		long start = System.nanoTime();
+		ObjectId startId = new ObjectId();
+		synchronized (lock) {
+			buildStart = startId;
+			inFlight.clear();
+		}
+		// Tweets written shortly before the build may be added to the
+		// buffer by a flush before or after the scan reads them
+		Set<Object> recent = new HashSet<Object>();
+		int recentSince = startId.getTimestamp() - IN_FLIGHT_SECONDS;
+		long count = 0;
+		try (MongoCursor<Document> cursor = tweets.find().projection(Projections.include("text", "user.name"))
+				.batchSize(5000).iterator()) {
+			while (cursor.hasNext()) {
+				Document tweet = cursor.next();
+				Object id = tweet.get("_id");
+				if (id instanceof ObjectId) {
+					ObjectId objectId = (ObjectId) id;
+					if (objectId.compareTo(startId) >= 0)
+						continue;
+					if (objectId.getTimestamp() >= recentSince)
+						recent.add(id);
+				}
+				List<String> terms = terms(tweet);
+				synchronized (lock) {
+					buffer.add(id, terms);
+				}
+				count++;
+			}
+		}
+		List<Object> missed;
+		synchronized (lock) {
+			buildStart = null;
+			inFlight.removeAll(recent);
+			missed = new ArrayList<Object>(inFlight);
+			inFlight.clear();
+		}
+		if (!missed.isEmpty()) {
+			index(tweets.find(in("_id", missed)).projection(Projections.include("text", "user.name"))
+					.into(new ArrayList<Document>()));
+		}
+		refresh();
+		ready = true;
+		System.out.println("Tweet search index built: " + count + " tweets in " + segments.size()
+				+ " segments in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Index inserted tweets, they are searchable after the next refresh.
+	 */
+	@Override
+	public void add(List<Document> inserted) {
+		List<Document> added = new ArrayList<Document>(inserted.size());
+		synchronized (lock) {
+			for (Document tweet : inserted) {
+				Object id = tweet.get("_id");
+				if (buildStart != null && id instanceof ObjectId && ((ObjectId) id).compareTo(buildStart) < 0) {
+					// The running build indexes it, unless its scan had passed it already
+					inFlight.add(id);
+				} else if (id != null) {
+					added.add(tweet);
+				}
+			}
+		}
+		index(added);
+	}
+
+	private void index(List<Document> added) {
+		List<List<String>> terms = new ArrayList<List<String>>(added.size());
+		for (Document tweet : added) {
+			terms.add(terms(tweet));
+		}
+		synchronized (lock) {
+			for (int i = 0; i < added.size(); i++) {
+				buffer.add(added.get(i).get("_id"), terms.get(i));
+			}
+		}
+	}
+
+	private static List<String> terms(Document tweet) {
+		Object text = tweet.get("text");
+		Object user = tweet.get("user");
+		Object name = user instanceof Document ? ((Document) user).get("name") : null;
+		return TextAnalyzer.analyze((text == null ? "" : text) + " " + (name == null ? "" : name));
+	}
+
+	/**
+	 * Runs after a refresh made new tweets searchable.
+	 */
+	@Override
+	public void setRefreshListener(Runnable listener) {
+		this.refreshListener = listener;
+	}
+
+	/**
+	 * Make the buffered tweets searchable and merge segments if necessary.
+	 */
+	public synchronized void refresh() {
+		TweetSegment segment;
+		synchronized (lock) {
+			if (buffer.size() == 0)
+				return;
+			segment = buffer.build();
+			buffer = new TweetSegment.Builder();
+		}
+		List<TweetSegment> list = new ArrayList<TweetSegment>(segments);
+		list.add(segment);
+		segments = Collections.unmodifiableList(new ArrayList<TweetSegment>(list));
+		refreshes.incrementAndGet();
+		Runnable listener = refreshListener;
+		if (listener != null) {
+			listener.run();
+		}
+		// Searches use the new segment while the merges run
+		List<TweetSegment> merge;
+		while ((merge = mergeable(list)) != null) {
+			TweetSegment merged = TweetSegment.merge(merge);
+			list.removeAll(merge);
+			list.add(merged);
+			segments = Collections.unmodifiableList(new ArrayList<TweetSegment>(list));
+			merges.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return MERGE_FACTOR segments of the same order of magnitude, null if
+	 *         there aren't any
+	 */
+	private static List<TweetSegment> mergeable(List<TweetSegment> list) {
+		Map<Integer, List<TweetSegment>> levels = new TreeMap<Integer, List<TweetSegment>>();
+		for (TweetSegment segment : list) {
+			int level = (int) Math.log10(Math.max(1, segment.size()));
+			List<TweetSegment> same = levels.computeIfAbsent(level, l -> new ArrayList<TweetSegment>());
+			same.add(segment);
+			if (same.size() == MERGE_FACTOR)
+				return same;
+		}
+		return null;
+	}
+
+	@Override
+	public synchronized void clear() {
+		synchronized (lock) {
+			buffer = new TweetSegment.Builder();
+			inFlight.clear();
+		}
+		segments = Collections.emptyList();
+		ready = false;
+	}
+
+	@Override
+	public List<Document> search(String query, int limit) {
+		List<Hit> hits = rank(query, limit);
+		if (hits.isEmpty()) {
+			return new ArrayList<Document>();
+		}
+		List<Object> ids = new ArrayList<Object>(hits.size());
+		for (Hit hit : hits) {
+			ids.add(hit.id);
+		}
+		Map<Object, Document> byId = new HashMap<Object, Document>();
+		for (Document tweet : tweets.find(in("_id", ids))) {
+			byId.put(tweet.get("_id"), tweet);
+		}
+		List<Document> results = new ArrayList<Document>(hits.size());
+		for (Hit hit : hits) {
+			Document tweet = byId.get(hit.id);
+			if (tweet != null) {
+				results.add(tweet.append("score", hit.score));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Find the best matching tweets in the index.
+	 *
+	 * @return the _ids and scores of at most limit tweets, best first
+	 */
+	public List<Hit> rank(String text, int limit) {
+		long start = System.nanoTime();
+		Query query = Query.parse(text);
+		List<TweetSegment> snapshot = segments;
+		TopK top = new TopK(limit);
+		long docs = 0;
+		long totalLength = 0;
+		for (TweetSegment segment : snapshot) {
+			docs += segment.size();
+			totalLength += segment.getTotalLength();
+		}
+		if (limit > 0 && docs > 0 && !query.positive.isEmpty()) {
+			// BM25 statistics of the whole index, so scores of different segments are comparable
+			double avgLength = Math.max(1.0, (double) totalLength / docs);
+			Map<String, Double> idf = new HashMap<String, Double>();
+			for (String term : query.positive) {
+				long df = 0;
+				for (TweetSegment segment : snapshot) {
+					TweetSegment.Postings postings = segment.getPostings(term);
+					df += postings == null ? 0 : postings.size();
+				}
+				idf.put(term, Math.log(1 + (docs - df + 0.5) / (df + 0.5)));
+			}
+			for (TweetSegment segment : snapshot) {
+				if (query.phrases.isEmpty()) {
+					searchAny(segment, query, idf, avgLength, top);
+				} else {
+					searchPhrases(segment, query, idf, avgLength, top);
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		queries.incrementAndGet();
+		queryNanos.addAndGet(elapsed);
+		maxQueryNanos = Math.max(maxQueryNanos, elapsed);
+		return top.sorted();
+	}
+
+	/**
+	 * Query without phrases: any term matches. The terms are ordered by
+	 * their maximum score. Tweets that only contain the terms whose maximum
+	 * scores sum up to less than the worst result so far can't make it into
+	 * the results, so only the postings of the other ("essential") terms
+	 * are iterated and the rest is only looked up for their candidates.
+	 */
+	private static void searchAny(TweetSegment segment, Query query, Map<String, Double> idf, double avgLength,
+			TopK top) {
+		List<Cursor> list = new ArrayList<Cursor>();
+		for (String term : query.positive) {
+			TweetSegment.Postings postings = segment.getPostings(term);
+			if (postings != null)
+				list.add(new Cursor(postings, idf.get(term), avgLength));
+		}
+		if (list.isEmpty())
+			return;
+		list.sort(Comparator.comparingDouble(c -> c.maxScore));
+		Cursor[] cursors = list.toArray(new Cursor[list.size()]);
+		double[] bounds = new double[cursors.length];
+		double sum = 0;
+		for (int i = 0; i < cursors.length; i++) {
+			sum += cursors[i].maxScore;
+			bounds[i] = sum;
+		}
+		double threshold = top.threshold();
+		int essential = essential(bounds, threshold);
+		while (essential < cursors.length) {
+			int doc = Integer.MAX_VALUE;
+			for (int i = essential; i < cursors.length; i++) {
+				doc = Math.min(doc, cursors[i].doc());
+			}
+			if (doc == Integer.MAX_VALUE)
+				break;
+			double score = 0;
+			for (int i = essential; i < cursors.length; i++) {
+				if (cursors[i].doc() == doc) {
+					score += cursors[i].score(segment);
+					cursors[i].next();
+				}
+			}
+			boolean candidate = true;
+			for (int i = essential - 1; i >= 0; i--) {
+				if (score + bounds[i] <= threshold) {
+					candidate = false;
+					break;
+				}
+				cursors[i].advance(doc);
+				if (cursors[i].doc() == doc)
+					score += cursors[i].score(segment);
+			}
+			if (candidate && score > threshold && !excluded(segment, query, doc)) {
+				top.offer(segment.getId(doc), score);
+				if (top.threshold() > threshold) {
+					threshold = top.threshold();
+					essential = essential(bounds, threshold);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the first term whose bound exceeds the threshold
+	 */
+	private static int essential(double[] bounds, double threshold) {
+		int i = 0;
+		while (i < bounds.length && bounds[i] <= threshold) {
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Query with phrases: the tweets that contain all phrase terms are
+	 * found by skipping through their postings, starting with the rarest
+	 * term, and then checked for the phrases.
+	 */
+	private static void searchPhrases(TweetSegment segment, Query query, Map<String, Double> idf, double avgLength,
+			TopK top) {
+		List<Cursor> scoring = new ArrayList<Cursor>();
+		List<Cursor> required = new ArrayList<Cursor>();
+		double maxScore = 0;
+		for (String term : query.positive) {
+			TweetSegment.Postings postings = segment.getPostings(term);
+			if (postings == null) {
+				if (query.required.contains(term))
+					return;
+				continue;
+			}
+			Cursor cursor = new Cursor(postings, idf.get(term), avgLength);
+			scoring.add(cursor);
+			maxScore += cursor.maxScore;
+			if (query.required.contains(term))
+				required.add(cursor);
+		}
+		if (maxScore <= top.threshold())
+			return;
+		required.sort(Comparator.comparingInt(c -> c.postings.size()));
+		Cursor lead = required.get(0);
+		int doc = lead.doc();
+		candidates: while (doc != Integer.MAX_VALUE) {
+			for (Cursor cursor : required) {
+				cursor.advance(doc);
+				if (cursor.doc() != doc) {
+					lead.advance(cursor.doc());
+					doc = lead.doc();
+					continue candidates;
+				}
+			}
+			if (matchesPhrases(segment, query.phrases, doc) && !excluded(segment, query, doc)) {
+				double score = 0;
+				for (Cursor cursor : scoring) {
+					cursor.advance(doc);
+					if (cursor.doc() == doc)
+						score += cursor.score(segment);
+				}
+				top.offer(segment.getId(doc), score);
+			}
+			lead.next();
+			doc = lead.doc();
+		}
+	}
+
+	private static boolean matchesPhrases(TweetSegment segment, List<List<String>> phrases, int doc) {
+		for (List<String> phrase : phrases) {
+			if (!contains(segment, phrase, doc))
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean excluded(TweetSegment segment, Query query, int doc) {
+		for (List<String> negation : query.negations) {
+			if (contains(segment, negation, doc))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the document contains the terms at consecutive
+	 *         positions
+	 */
+	private static boolean contains(TweetSegment segment, List<String> phrase, int doc) {
+		TweetSegment.Postings[] postings = new TweetSegment.Postings[phrase.size()];
+		int[] index = new int[phrase.size()];
+		for (int i = 0; i < phrase.size(); i++) {
+			postings[i] = segment.getPostings(phrase.get(i));
+			if (postings[i] == null)
+				return false;
+			index[i] = postings[i].advance(0, doc);
+			if (index[i] == postings[i].size() || postings[i].getDoc(index[i]) != doc)
+				return false;
+		}
+		TweetSegment.Postings first = postings[0];
+		for (int p = first.positionStart(index[0]); p < first.positionEnd(index[0]); p++) {
+			int position = first.getPosition(p);
+			boolean match = true;
+			for (int i = 1; i < phrase.size() && match; i++) {
+				match = postings[i].hasPosition(index[i], position + i);
+			}
+			if (match)
+				return true;
+		}
+		return false;
+	}
+
+	@Override
+	public Document getStats() {
+		List<TweetSegment> snapshot = segments;
+		long docs = 0;
+		long terms = 0;
+		for (TweetSegment segment : snapshot) {
+			docs += segment.size();
+			terms += segment.getTermCount();
+		}
+		int buffered;
+		synchronized (lock) {
+			buffered = buffer.size();
+		}
+		long n = queries.get();
+		return new Document("backend", "local")
+				.append("ready", ready)
+				.append("tweets", docs)
+				.append("buffered", buffered)
+				.append("segments", snapshot.size())
+				.append("segmentTerms", terms)
+				.append("refreshes", refreshes.get())
+				.append("merges", merges.get())
+				.append("queries", n)
+				.append("avgQueryMs", n == 0 ? 0.0 : queryNanos.get() / 1e6 / n)
+				.append("maxQueryMs", maxQueryNanos / 1e6);
+	}
+
+	/**
+	 * A tweet and its score.
+	 */
+	public static class Hit {
+		private final Object id;
+		private final double score;
+
+		Hit(Object id, double score) {
+			this.id = id;
+			this.score = score;
+		}
+
+		public Object getId() {
+			return id;
+		}
+
+		public double getScore() {
+			return score;
+		}
+	}
+
+	/**
+	 * A parsed query: the terms that score, the phrases that have to match
+	 * (single quoted words are phrases of one term) and the negations.
+	 */
+	static class Query {
+		final Set<String> positive = new LinkedHashSet<String>();
+		final Set<String> required = new HashSet<String>();
+		final List<List<String>> phrases = new ArrayList<List<String>>();
+		final List<List<String>> negations = new ArrayList<List<String>>();
+
+		static Query parse(String text) {
+			Query query = new Query();
+			int i = 0;
+			int n = text.length();
+			while (i < n) {
+				if (Character.isWhitespace(text.charAt(i))) {
+					i++;
+					continue;
+				}
+				boolean negate = text.charAt(i) == '-';
+				if (negate)
+					i++;
+				boolean phrase = i < n && text.charAt(i) == '"';
+				int end;
+				String part;
+				if (phrase) {
+					end = text.indexOf('"', i + 1);
+					if (end < 0)
+						end = n;
+					part = text.substring(i + 1, end);
+					end++;
+				} else {
+					end = i;
+					while (end < n && !Character.isWhitespace(text.charAt(end))) {
+						end++;
+					}
+					part = text.substring(i, end);
+				}
+				i = end;
+				List<String> terms = TextAnalyzer.analyze(part);
+				if (terms.isEmpty())
+					continue;
+				if (negate) {
+					query.negations.add(terms);
+				} else if (phrase) {
+					query.phrases.add(terms);
+					query.required.addAll(terms);
+					query.positive.addAll(terms);
+				} else {
+					query.positive.addAll(terms);
+				}
+			}
+			return query;
+		}
+	}
+
+	/**
+	 * Position in the postings of a term, with its BM25 weight.
+	 */
+	private static class Cursor {
+		final TweetSegment.Postings postings;
+		final double idf;
+		final double avgLength;
+		/** The score of the term in the best case: most frequent in the shortest tweet */
+		final double maxScore;
+		int index;
+
+		Cursor(TweetSegment.Postings postings, double idf, double avgLength) {
+			this.postings = postings;
+			this.idf = idf;
+			this.avgLength = avgLength;
+			this.maxScore = bm25(postings.getMaxFreq(), postings.getMinLength());
+		}
+
+		int doc() {
+			return index < postings.size() ? postings.getDoc(index) : Integer.MAX_VALUE;
+		}
+
+		void next() {
+			index++;
+		}
+
+		void advance(int doc) {
+			index = doc == Integer.MAX_VALUE ? postings.size() : postings.advance(index, doc);
+		}
+
+		double score(TweetSegment segment) {
+			return bm25(postings.getFreq(index), segment.getLength(postings.getDoc(index)));
+		}
+
+		private double bm25(int freq, int length) {
+			return idf * freq * (K1 + 1) / (freq + K1 * (1 - B + B * length / avgLength));
+		}
+	}
+
+	/**
+	 * The best k hits, in a min-heap.
+	 */
+	private static class TopK {
+		private final int k;
+		private final PriorityQueue<Hit> heap = new PriorityQueue<Hit>(Comparator.comparingDouble(h -> h.score));
+
+		TopK(int k) {
+			this.k = k;
+		}
+
+		void offer(Object id, double score) {
+			if (heap.size() < k) {
+				heap.add(new Hit(id, score));
+			} else if (score > heap.peek().score) {
+				heap.poll();
+				heap.add(new Hit(id, score));
+			}
+		}
+
+		/**
+		 * @return the score a hit has to beat, 0 until there are k hits
+		 */
+		double threshold() {
+			return heap.size() < k ? 0 : heap.peek().score;
+		}
+
+		List<Hit> sorted() {
+			List<Hit> hits = new ArrayList<Hit>(heap);
+			hits.sort(Comparator.comparingDouble((Hit h) -> h.score).reversed());
+			return hits;
+		}
+	}
+}
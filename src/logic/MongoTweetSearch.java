@@ -0,0 +1,45 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * Tweet search with the text index of MongoDB on "text" and "user.name",
+ * see {@link IndexManager}. MongoDB maintains the index itself, the results
+ * are sorted by its text score.
+ */
+public class MongoTweetSearch implements TweetSearchBackend {
+
+	private final MongoCollection<Document> tweets;
+
+	public MongoTweetSearch(MongoCollection<Document> tweets) {
+		this.tweets = tweets;
+	}
+
+	@Override
+	public List<Document> search(String query, int limit) {
+		return query(query, limit).find(tweets).into(new ArrayList<Document>());
+	}
+
+	/**
+	 * @return the search as query, e.g. to run it asynchronously
+	 */
+	public static MovieQuery query(String query, int limit) {
+		return MovieQuery.tweets(Filters.text(query))
+				.projection(Projections.metaTextScore("score"))
+				.sort(Sorts.metaTextScore("score"))
+				.limit(limit);
+	}
+
+	@Override
+	public Document getStats() {
+		return new Document("backend", "mongo");
+	}
+}
@@ -0,0 +1,183 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.reactivestreams.client.FindPublisher;
+
+/**
+ * Description of a find query of the {@link MovieService}: the collection,
+ * filter, projection, sort and limit. The same query can be run with the
+ * synchronous driver or with the reactive streams driver.
+ */
+public class MovieQuery {
+
+	/**
+	 * The collection a query reads.
+	 */
+	public enum Target {
+		MOVIES, TWEETS
+	}
+
+	private final Target target;
+	private final Bson filter;
+	private Bson after;
+	private Bson projection;
+	private Bson sort;
+	private int limit;
+	private boolean single;
+	private List<Object> ranking;
+
+	private MovieQuery(Target target, Bson filter) {
+		this.target = target;
+		this.filter = filter;
+	}
+
+	/**
+	 * A query on the movies collection.
+	 */
+	public static MovieQuery movies(Bson filter) {
+		return new MovieQuery(Target.MOVIES, filter);
+	}
+
+	/**
+	 * A query on the tweets collection.
+	 */
+	public static MovieQuery tweets(Bson filter) {
+		return new MovieQuery(Target.TWEETS, filter);
+	}
+
+	public MovieQuery projection(Bson projection) {
+		this.projection = projection;
+		return this;
+	}
+
+	public MovieQuery sort(Bson sort) {
+		this.sort = sort;
+		return this;
+	}
+
+	/**
+	 * Limit the number of results, 0 means no limit.
+	 */
+	public MovieQuery limit(int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Only return the documents after a page token, see {@link PageToken}.
+	 */
+	public MovieQuery after(PageToken token) {
+		this.after = token.filter();
+		return this;
+	}
+
+	/**
+	 * Only the first result is wanted: it is returned as a single document
+	 * (or null) instead of a list.
+	 */
+	public MovieQuery single() {
+		this.single = true;
+		this.limit = 1;
+		return this;
+	}
+
+	/**
+	 * The matches are ranked, e.g. by a search index: the results are put in
+	 * the order of their _ids in the list, see {@link #rank(Iterable)},
+	 * instead of the order of the collection. Pages of a paged query keep the
+	 * order of their sort key.
+	 */
+	public MovieQuery ranking(List<Object> ids) {
+		this.ranking = ids;
+		return this;
+	}
+
+	/**
+	 * Put the results of the query in the order of its
+	 * {@link #ranking(List)}.
+	 * 
+	 * @return the results, unchanged if the query has no ranking
+	 */
+	public Iterable<Document> rank(Iterable<Document> results) {
+		if (ranking == null) {
+			return results;
+		}
+		Map<Object, Document> byId = new HashMap<Object, Document>();
+		for (Document doc : results) {
+			byId.put(doc.get("_id"), doc);
+		}
+		List<Document> ranked = new ArrayList<Document>(byId.size());
+		for (Object id : ranking) {
+			Document doc = byId.get(id);
+			if (doc != null) {
+				ranked.add(doc);
+			}
+		}
+		return ranked;
+	}
+
+	/**
+	 * Run the query with the synchronous driver.
+	 */
+	public FindIterable<Document> find(MongoCollection<Document> col) {
+		FindIterable<Document> result = col.find(getFilter());
+		if (projection != null)
+			result = result.projection(projection);
+		if (sort != null)
+			result = result.sort(sort);
+		if (limit > 0)
+			result = result.limit(limit);
+		return result;
+	}
+
+	/**
+	 * Run the query with the reactive streams driver.
+	 */
+	public FindPublisher<Document> find(com.mongodb.reactivestreams.client.MongoCollection<Document> col) {
+		FindPublisher<Document> result = col.find(getFilter());
+		if (projection != null)
+			result = result.projection(projection);
+		if (sort != null)
+			result = result.sort(sort);
+		if (limit > 0)
+			result = result.limit(limit);
+		return result;
+	}
+
+	public Target getTarget() {
+		return target;
+	}
+
+	/**
+	 * @return the filter, combined with the page token if there is one
+	 */
+	public Bson getFilter() {
+		return after == null ? filter : Filters.and(filter, after);
+	}
+
+	public Bson getProjection() {
+		return projection;
+	}
+
+	public Bson getSort() {
+		return sort;
+	}
+
+	public int getLimit() {
+		return limit;
+	}
+
+	public boolean isSingle() {
+		return single;
+	}
+}
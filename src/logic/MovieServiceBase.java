@@ -1,12 +1,11 @@
 package logic;
 
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
-import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 import org.bson.Document;
 
@@ -41,107 +40,64 @@ public class MovieServiceBase {
 	}
 
 	public List<DBObject> loadMovies(String fileName) {
-		String[] names = new String[] { "title", "year", "rating", "votes", "genre" };
 		List<DBObject> results = new LinkedList<DBObject>();
-		Scanner scanner = new Scanner(MovieService.class.getResourceAsStream(fileName));
-		while (scanner.hasNextLine()) {
-			String line = scanner.nextLine();
-			BasicDBObject dbo = new BasicDBObject();
-			String[] fields = line.split("\t");
-			for (int i = 0; i < fields.length - 1; i++) {
-				if (i == 2) {
-					dbo.append(names[i], Double.valueOf(fields[i]));
-				} else if (i == 3) {
-					dbo.append(names[i], Integer.valueOf(fields[i]));
-				} else {
-					dbo.append(names[i], fields[i]);
-				}
-			}
-			dbo.append(names[fields.length - 1], fields[fields.length - 1].split(","));
-			results.add(dbo);
-		}
-		scanner.close();
+		MovieTsvParser.nicer().iterator(fileName).forEachRemaining(results::add);
 		return results;
 	}
 	
+	/**
+	 * Load a file with one JSON document per line into the given collection.
+	 * The documents are parsed and inserted in batches by a {@link BulkLoader}.
+	 * 
+	 * @param fileName
+	 *            the classpath resource to load
+	 * @param col
+	 *            the target collection
+	 */
 	public static void loadJSON(String fileName, MongoCollection<Document> col) {
-		Scanner scanner = new Scanner(MovieService.class.getResourceAsStream(fileName));
-	  	System.out.print("load " + fileName + " into mongodb");
-	  	int nr = 0;
-        while (scanner.hasNextLine()) {
-        	String line = scanner.nextLine();
-        	col.insertOne(Document.parse(line));
-        	
-        	nr++;
-        	if(nr % 5000 == 0) {
-        		System.out.println(nr);
-        	}
-      
-        }
-        scanner.close();
+		System.out.println("load " + fileName + " into mongodb");
+		new BulkLoader().add(fileName, col).run();
 	}
 	
 	public static List<DBObject> loadMovies_megaNice(String fileName) {
-        String[] names = new String[] { "_id", "title", "year", "rating",
-                "votes", "runtime", "genre", "actors", "releases", "plot",
-                "movie" };
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        List<DBObject> results = new ArrayList<DBObject>(100000);
-        Scanner scanner = new Scanner(MovieService.class.getResourceAsStream(fileName));
+		List<DBObject> results = new ArrayList<DBObject>(100000);
+		MovieTsvParser.megaNice().iterator(fileName).forEachRemaining(results::add);
+		return results;
+	}
 
-        while (scanner.hasNextLine()) {
-            String line = scanner.nextLine();
-            BasicDBObject dbo = new BasicDBObject();
-            String[] fields = line.split("\t");
-            for (int i = 0; i < fields.length - 1; i++) {
-                if (fields[i] == null || fields[i].length() == 0) {
-                    dbo.append(names[i], "");
-                } else if (i == 3) {// rating
-                    dbo.append(names[i], Double.valueOf(fields[i]));
-                } else if (i == 4) {// votes
-                    dbo.append(names[i], Integer.valueOf(fields[i]));
-                } else if (i == 5) {// runtime
-                    dbo.append(names[i], fields[i]);
-                } else if (i == 6) {// genre
-                    dbo.append(names[i], fields[i].split(Pattern.quote("|")));
-                } else if (i == 7) {// actors
-                    dbo.append(names[i], fields[i].split(Pattern.quote("|")));
-                } else if (i == 8) {// releases
-                    List<BasicDBObject> releases = new LinkedList<BasicDBObject>();
-                    for(String release : fields[i].split(Pattern.quote("|"))) {
-                    	String[] parts = release.split(":");
-                    	if(parts.length > 1) {
-	                    	try {
-	                    		releases.add(new BasicDBObject("country", parts[0]).append("date", dateFormat.parse(parts[1])));
-							} catch (ParseException e) {
-								releases.add(new BasicDBObject("country", parts[0]).append("date", parts[1]));
-							}
-                    	} else {
-                    		releases.add(new BasicDBObject("date", parts[0]));
-                    	}
-                    }
-                    dbo.append(names[i], releases);
-                } else if (i == 9) {// plots
-                    dbo.append(names[i], fields[i].replaceAll("       ", "\t")
-                            .replaceAll("        ", "\n"));
-                } else if (i == 10) {// movie
-                    dbo.append(names[i], Boolean.parseBoolean(fields[i]));
-                } else {
-                    dbo.append(names[i], fields[i]);
-                }
-            }
-            dbo.append(names[fields.length - 1],
-                    fields[fields.length - 1].split(","));
-            //Limit the amount of Movies by dropping those with < 10 Votes
-            if( dbo.get("votes")!= null && !dbo.get("votes").equals("") && dbo.getInt("votes") > 5 ) {
-            	results.add(dbo);
-            } else {
-            	//results.add(dbo);
-            }
-        }
-        scanner.close();
-        return results;
-    }
+	/**
+	 * Stream a tab separated IMDB dump into the given collection. Lines are
+	 * parsed by a {@link MovieTsvParser} on the workers of a
+	 * {@link BulkLoader} and written in batches while the file is read, so the
+	 * dump never has to fit into memory.
+	 * 
+	 * @param fileName
+	 *            the classpath resource to load
+	 * @param col
+	 *            the target collection
+	 * @param megaNice
+	 *            true for the megaNice format, false for the nicer one
+	 * @return the number of inserted movies
+	 */
+	public static long importMovies(String fileName, MongoCollection<Document> col, boolean megaNice) {
+		MovieTsvParser parser = megaNice ? MovieTsvParser.megaNice() : MovieTsvParser.nicer();
+		return new BulkLoader().add(fileName, BulkLoader.lines(fileName), parser::parseLine,
+				col.withDocumentClass(BasicDBObject.class)).run();
+	}
+
+	/**
+	 * Stream a tab separated IMDB dump from disk into the given collection.
+	 * The file is read through memory-mapped windows.
+	 * 
+	 * @see #importMovies(String, MongoCollection, boolean)
+	 */
+	public static long importMovies(Path file, MongoCollection<Document> col, boolean megaNice) throws IOException {
+		MovieTsvParser parser = megaNice ? MovieTsvParser.megaNice() : MovieTsvParser.nicer();
+		try (Stream<String> lines = parser.lines(file, false)) {
+			return new BulkLoader().add(file.toString(), lines.iterator(), parser::parseLine,
+					col.withDocumentClass(BasicDBObject.class)).run();
+		}
+	}
 	
 
 	protected void insertDummyData(MongoCollection<Document> movies, int inserts) {
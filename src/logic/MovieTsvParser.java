@@ -0,0 +1,409 @@
+package logic;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * Streaming parser for the tab separated IMDB dumps. It produces the same
+ * documents as {@link MovieServiceBase#loadMovies(String)} (the "nicer"
+ * format) and {@link MovieServiceBase#loadMovies_megaNice(String)} (the
+ * "megaNice" format), but one line at a time, so the documents can be written
+ * to the database while the file is still being parsed.
+ * <p>
+ * Fields are cut with a hand-written tokenizer that follows the rules of
+ * {@link String#split(String)} (trailing empty fields are dropped) and dates
+ * are parsed with java.time, so a parser can be shared between threads.
+ */
+public class MovieTsvParser {
+
+	private static final String[] NICER_FIELDS = new String[] { "title", "year", "rating", "votes", "genre" };
+
+	private static final String[] MEGA_NICE_FIELDS = new String[] { "_id", "title", "year", "rating", "votes",
+			"runtime", "genre", "actors", "releases", "plot", "movie" };
+
+	/** Size of the memory-mapped window used when reading files. */
+	private static final int MAP_WINDOW = 64 * 1024 * 1024;
+
+	/** Files smaller than this are not split for parallel parsing. */
+	private static final long MIN_SPLIT = 1024 * 1024;
+
+	private final boolean megaNice;
+	private final Charset charset = Charset.defaultCharset();
+	private final ZoneId zone = ZoneId.systemDefault();
+
+	private MovieTsvParser(boolean megaNice) {
+		this.megaNice = megaNice;
+	}
+
+	/**
+	 * Parser for the "nicer" format: title, year, rating, votes, genre.
+	 */
+	public static MovieTsvParser nicer() {
+		return new MovieTsvParser(false);
+	}
+
+	/**
+	 * Parser for the "megaNice" format. Movies with 5 votes or fewer are
+	 * dropped like in {@link MovieServiceBase#loadMovies_megaNice(String)}.
+	 */
+	public static MovieTsvParser megaNice() {
+		return new MovieTsvParser(true);
+	}
+
+	/**
+	 * Parse a single line.
+	 *
+	 * @param line
+	 *            a line of the dump without line terminator
+	 * @return the movie, or null if the line is filtered out
+	 */
+	public BasicDBObject parseLine(String line) {
+		return megaNice ? parseMegaNice(line) : parseNicer(line);
+	}
+
+	private BasicDBObject parseNicer(String line) {
+		String[] names = NICER_FIELDS;
+		BasicDBObject dbo = new BasicDBObject();
+		String[] fields = split(line, 0, line.length(), '\t');
+		for (int i = 0; i < fields.length - 1; i++) {
+			if (i == 2) {
+				dbo.append(names[i], Double.valueOf(fields[i]));
+			} else if (i == 3) {
+				dbo.append(names[i], Integer.valueOf(fields[i]));
+			} else {
+				dbo.append(names[i], fields[i]);
+			}
+		}
+		String last = fields[fields.length - 1];
+		dbo.append(names[fields.length - 1], split(last, 0, last.length(), ','));
+		return dbo;
+	}
+
+	private BasicDBObject parseMegaNice(String line) {
+		String[] names = MEGA_NICE_FIELDS;
+		BasicDBObject dbo = new BasicDBObject();
+		String[] fields = split(line, 0, line.length(), '\t');
+		for (int i = 0; i < fields.length - 1; i++) {
+			String field = fields[i];
+			if (field.length() == 0) {
+				dbo.append(names[i], "");
+			} else if (i == 3) {// rating
+				dbo.append(names[i], Double.valueOf(field));
+			} else if (i == 4) {// votes
+				dbo.append(names[i], Integer.valueOf(field));
+			} else if (i == 6 || i == 7) {// genre, actors
+				dbo.append(names[i], split(field, 0, field.length(), '|'));
+			} else if (i == 8) {// releases
+				dbo.append(names[i], parseReleases(field));
+			} else if (i == 9) {// plots
+				dbo.append(names[i], unescapePlot(field));
+			} else if (i == 10) {// movie
+				dbo.append(names[i], Boolean.parseBoolean(field));
+			} else {
+				dbo.append(names[i], field);
+			}
+		}
+		String last = fields[fields.length - 1];
+		dbo.append(names[fields.length - 1], split(last, 0, last.length(), ','));
+		// Limit the amount of Movies by dropping those with < 10 Votes
+		Object votes = dbo.get("votes");
+		if (votes instanceof Integer && (Integer) votes > 5) {
+			return dbo;
+		}
+		return null;
+	}
+
+	private List<BasicDBObject> parseReleases(String field) {
+		List<BasicDBObject> releases = new LinkedList<BasicDBObject>();
+		for (String release : split(field, 0, field.length(), '|')) {
+			String[] parts = split(release, 0, release.length(), ':');
+			if (parts.length > 1) {
+				Date date = parseDate(parts[1]);
+				releases.add(new BasicDBObject("country", parts[0]).append("date", date != null ? date : parts[1]));
+			} else {
+				releases.add(new BasicDBObject("date", parts.length > 0 ? parts[0] : ""));
+			}
+		}
+		return releases;
+	}
+
+	/**
+	 * Parse a date of the form yyyy-MM-dd as local midnight. Like a lenient
+	 * SimpleDateFormat, numbers may have any number of digits, out of range
+	 * months and days roll over and trailing text is ignored.
+	 *
+	 * @return the date or null if the text doesn't start with a date
+	 */
+	Date parseDate(String text) {
+		int[] pos = new int[1];
+		int year = parseNumber(text, pos);
+		if (year < 0 || !skip(text, pos, '-'))
+			return null;
+		int month = parseNumber(text, pos);
+		if (month < 0 || !skip(text, pos, '-'))
+			return null;
+		int day = parseNumber(text, pos);
+		if (day < 0)
+			return null;
+		LocalDate date = LocalDate.of(year, 1, 1).plusMonths(month - 1L).plusDays(day - 1L);
+		return Date.from(date.atStartOfDay(zone).toInstant());
+	}
+
+	private static int parseNumber(String text, int[] pos) {
+		int i = pos[0];
+		int value = 0;
+		while (i < text.length() && i - pos[0] < 9) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9')
+				break;
+			value = value * 10 + (c - '0');
+			i++;
+		}
+		if (i == pos[0])
+			return -1;
+		pos[0] = i;
+		return value;
+	}
+
+	private static boolean skip(String text, int[] pos, char c) {
+		if (pos[0] < text.length() && text.charAt(pos[0]) == c) {
+			pos[0]++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs of seven spaces encode tabs in the plot column.
+	 */
+	private static String unescapePlot(String plot) {
+		int run = plot.indexOf("       ");
+		if (run < 0)
+			return plot;
+		StringBuilder sb = new StringBuilder(plot.length());
+		int spaces = 0;
+		for (int i = 0; i < plot.length(); i++) {
+			char c = plot.charAt(i);
+			if (c == ' ') {
+				if (++spaces == 7) {
+					sb.append('\t');
+					spaces = 0;
+				}
+				continue;
+			}
+			for (; spaces > 0; spaces--)
+				sb.append(' ');
+			sb.append(c);
+		}
+		for (; spaces > 0; spaces--)
+			sb.append(' ');
+		return sb.toString();
+	}
+
+	/**
+	 * Split s[from, to) at every occurrence of sep. The result is the same as
+	 * that of {@link String#split(String)}: if sep doesn't occur the whole
+	 * range is returned, otherwise trailing empty fields are removed.
+	 */
+	static String[] split(String s, int from, int to, char sep) {
+		int first = s.indexOf(sep, from);
+		if (first < 0 || first >= to) {
+			return new String[] { s.substring(from, to) };
+		}
+		while (to > from && s.charAt(to - 1) == sep) {
+			to--;
+		}
+		if (to == from) {
+			return new String[0];
+		}
+		int count = 1;
+		for (int i = first; i < to; i++) {
+			if (s.charAt(i) == sep)
+				count++;
+		}
+		String[] result = new String[count];
+		int start = from;
+		for (int n = 0; n < count - 1; n++) {
+			int end = s.indexOf(sep, start);
+			result[n] = s.substring(start, end);
+			start = end + 1;
+		}
+		result[count - 1] = s.substring(start, to);
+		return result;
+	}
+
+	/**
+	 * Parse a classpath resource line by line.
+	 *
+	 * @param fileName
+	 *            the classpath resource to read
+	 * @return the movies of the resource, filtered lines are skipped
+	 */
+	public Iterator<DBObject> iterator(String fileName) {
+		Iterator<String> lines = BulkLoader.lines(fileName);
+		return new Iterator<DBObject>() {
+			private DBObject next;
+
+			@Override
+			public boolean hasNext() {
+				while (next == null && lines.hasNext()) {
+					next = parseLine(lines.next());
+				}
+				return next != null;
+			}
+
+			@Override
+			public DBObject next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				DBObject result = next;
+				next = null;
+				return result;
+			}
+		};
+	}
+
+	/**
+	 * Parse a file on disk. The file is read through memory-mapped windows
+	 * and the stream can be split at line boundaries, so large dumps are
+	 * parsed on several threads when the stream is parallel.
+	 *
+	 * @param file
+	 *            the dump to parse
+	 * @param parallel
+	 *            whether the returned stream is parallel
+	 * @return the movies of the file, filtered lines are skipped
+	 */
+	public Stream<DBObject> stream(Path file, boolean parallel) throws IOException {
+		return lines(file, parallel).map(this::parseLine).filter(d -> d != null).map(d -> (DBObject) d);
+	}
+
+	/**
+	 * The raw lines of a file on disk, read through memory-mapped windows.
+	 */
+	public Stream<String> lines(Path file, boolean parallel) throws IOException {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		return StreamSupport.stream(new LineSpliterator(channel, 0, channel.size()), parallel).onClose(() -> {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+	}
+
+	/**
+	 * A spliterator over the lines in the byte range [start, end) of a file.
+	 * Each split starts at the first byte after a line break.
+	 */
+	private class LineSpliterator implements Spliterator<String> {
+		private final FileChannel channel;
+		private long pos;
+		private final long end;
+		private MappedByteBuffer window;
+		private long windowStart;
+		private byte[] lineBuffer = new byte[1024];
+
+		LineSpliterator(FileChannel channel, long start, long end) {
+			this.channel = channel;
+			this.pos = start;
+			this.end = end;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super String> action) {
+			if (pos >= end)
+				return false;
+			try {
+				int length = 0;
+				boolean terminated = false;
+				while (pos < end) {
+					if (window == null || pos >= windowStart + window.limit()) {
+						map(pos);
+					}
+					byte b = window.get((int) (pos - windowStart));
+					pos++;
+					if (b == '\n') {
+						terminated = true;
+						break;
+					}
+					if (length == lineBuffer.length) {
+						byte[] grown = new byte[lineBuffer.length * 2];
+						System.arraycopy(lineBuffer, 0, grown, 0, length);
+						lineBuffer = grown;
+					}
+					lineBuffer[length++] = b;
+				}
+				if (!terminated && length == 0)
+					return false;
+				if (length > 0 && lineBuffer[length - 1] == '\r')
+					length--;
+				action.accept(new String(lineBuffer, 0, length, charset));
+				return true;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private void map(long position) throws IOException {
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, end - position));
+		}
+
+		@Override
+		public Spliterator<String> trySplit() {
+			if (window != null || end - pos < MIN_SPLIT)
+				return null;
+			try {
+				long mid = nextLineStart(pos + (end - pos) / 2);
+				if (mid <= pos || mid >= end)
+					return null;
+				LineSpliterator prefix = new LineSpliterator(channel, pos, mid);
+				pos = mid;
+				return prefix;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		private long nextLineStart(long from) throws IOException {
+			MappedByteBuffer probe = channel.map(FileChannel.MapMode.READ_ONLY, from,
+					Math.min(MAP_WINDOW, end - from));
+			for (int i = 0; i < probe.limit(); i++) {
+				if (probe.get(i) == '\n')
+					return from + i + 1;
+			}
+			return end;
+		}
+
+		@Override
+		public long estimateSize() {
+			// assume lines of about 100 bytes
+			return Math.max(1, (end - pos) / 100);
+		}
+
+		@Override
+		public int characteristics() {
+			return ORDERED | NONNULL;
+		}
+	}
+}
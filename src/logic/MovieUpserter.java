@@ -0,0 +1,76 @@
+package logic;
+
+import static com.mongodb.client.model.Filters.eq;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.bulk.BulkWriteUpsert;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * Inserts or updates movies with one unordered bulk write, see
+ * {@link MovieService#upsertMovies(List, String...)}. Existing movies keep
+ * the fields that aren't in the documents (e.g. their tweets and comments).
+ */
+public class MovieUpserter {
+
+	private final MongoCollection<Document> movies;
+
+	public MovieUpserter(MongoCollection<Document> movies) {
+		this.movies = movies;
+	}
+
+	/**
+	 * @param docs
+	 *            the movies, with their _id
+	 * @param inserted
+	 *            receives the movies that didn't exist before
+	 * @param insertOnly
+	 *            the fields that are only set when a movie is inserted, e.g.
+	 *            placeholders that shouldn't overwrite existing values
+	 * @return the number of "inserted", "updated" and "unchanged" movies
+	 */
+	public Document upsert(List<Document> docs, Consumer<Document> inserted, String... insertOnly) {
+		if (docs.isEmpty()) {
+			return new Document("inserted", 0).append("updated", 0).append("unchanged", 0);
+		}
+		Set<String> onInsert = new HashSet<String>(Arrays.asList(insertOnly));
+		List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(docs.size());
+		for (Document movie : docs) {
+			Document set = new Document();
+			Document setOnInsert = new Document();
+			for (Map.Entry<String, Object> field : movie.entrySet()) {
+				if (!field.getKey().equals("_id"))
+					(onInsert.contains(field.getKey()) ? setOnInsert : set).append(field.getKey(), field.getValue());
+			}
+			Document update = new Document();
+			if (!set.isEmpty())
+				update.append("$set", set);
+			if (!setOnInsert.isEmpty())
+				update.append("$setOnInsert", setOnInsert);
+			updates.add(new UpdateOneModel<Document>(eq("_id", movie.get("_id")), update,
+					new UpdateOptions().upsert(true)));
+		}
+		BulkWriteResult result = movies.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		for (BulkWriteUpsert upsert : result.getUpserts()) {
+			inserted.accept(docs.get(upsert.getIndex()));
+		}
+		int updated = result.getModifiedCount();
+		return new Document("inserted", result.getUpserts().size())
+				.append("updated", updated)
+				.append("unchanged", result.getMatchedCount() - updated);
+	}
+}
@@ -0,0 +1,70 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * One page of a paged query: the results and the token for the next page,
+ * which is null on the last page.
+ */
+public class Page {
+
+	private final List<Document> results;
+	private final String next;
+
+	public Page(List<Document> results, String next) {
+		this.results = results;
+		this.next = next;
+	}
+
+	/**
+	 * Run a query page by page. Instead of skipping the documents of the
+	 * previous pages, the query continues after the sort key of the last
+	 * document, which the token of the next page holds (keyset pagination).
+	 * The projection is extended by the sort key if it lacks it.
+	 * 
+	 * @param col
+	 *            the collection to query
+	 * @param query
+	 *            the query, its limit is the page size
+	 * @param cursor
+	 *            the token of the page, null or empty for the first page
+	 * @param defaultSize
+	 *            the page size if the query has no limit
+	 * @return the page with the token of the next page
+	 * @throws IllegalArgumentException
+	 *             if the token doesn't belong to the query
+	 */
+	public static Page find(MongoCollection<Document> col, MovieQuery query, String cursor, int defaultSize) {
+		BsonDocument sort = PageToken.withId(query.getSort());
+		int size = query.getLimit() > 0 ? query.getLimit() : defaultSize;
+		query.sort(sort).limit(size + 1).projection(PageToken.withSortKey(query.getProjection(), sort));
+		if (cursor != null && !cursor.isEmpty()) {
+			query.after(PageToken.decode(cursor, sort));
+		}
+		List<Document> results = query.find(col).into(new ArrayList<Document>(size + 1));
+		// The additional document only tells whether there is a next page
+		String next = null;
+		if (results.size() > size) {
+			results.remove(size);
+			next = PageToken.after(sort, results.get(size - 1)).encode();
+		}
+		return new Page(results, next);
+	}
+
+	public List<Document> getResults() {
+		return results;
+	}
+
+	/**
+	 * @return the token to pass to get the next page, null if there is none
+	 */
+	public String getNext() {
+		return next;
+	}
+}
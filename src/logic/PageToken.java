@@ -0,0 +1,181 @@
+package logic;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.Filters;
+
+/**
+ * An opaque continuation token for keyset pagination. It holds the values of
+ * the sort key of the last document of a page. The next page continues
+ * after these values instead of skipping documents, so with an index on the
+ * sort key every page only reads its own documents.
+ * <p>
+ * The sort key must be unique, {@link #withId(Bson)} makes it unique by
+ * adding "_id". The token is the BSON of the key names and values, encoded
+ * as URL-safe Base64.
+ */
+public class PageToken {
+
+	private final BsonDocument sort;
+	private final BsonArray values;
+
+	private PageToken(BsonDocument sort, BsonArray values) {
+		this.sort = sort;
+		this.values = values;
+	}
+
+	/**
+	 * Append "_id" to a sort key unless it already contains it.
+	 *
+	 * @param sort
+	 *            the sort, may be null
+	 * @return the sort with "_id" as the last key
+	 */
+	public static BsonDocument withId(Bson sort) {
+		BsonDocument result = sort == null ? new BsonDocument() : toBson(sort).clone();
+		if (!result.containsKey("_id")) {
+			// Same direction as the last key
+			BsonValue direction = new BsonInt32(1);
+			for (BsonValue v : result.values()) {
+				direction = v;
+			}
+			result.append("_id", direction);
+		}
+		return result;
+	}
+
+	/**
+	 * Make sure a projection returns the sort key, which the token of the
+	 * next page is made of: an inclusion projection gets the missing keys,
+	 * an exclusion projection loses the excluded ones.
+	 *
+	 * @param projection
+	 *            the projection of the query, may be null
+	 * @param sort
+	 *            the sort of the query, see {@link #withId(Bson)}
+	 * @return the projection including the sort key
+	 */
+	public static Bson withSortKey(Bson projection, BsonDocument sort) {
+		if (projection == null) {
+			return null;
+		}
+		BsonDocument result = toBson(projection).clone();
+		boolean inclusion = false;
+		for (Map.Entry<String, BsonValue> e : result.entrySet()) {
+			if (!e.getKey().equals("_id") && !isExcluded(e.getValue()))
+				inclusion = true;
+		}
+		for (String field : sort.keySet()) {
+			if (result.containsKey(field) && isExcluded(result.get(field))) {
+				result.remove(field);
+			} else if (inclusion && !result.containsKey(field)) {
+				result.append(field, new BsonInt32(1));
+			}
+		}
+		return result;
+	}
+
+	private static boolean isExcluded(BsonValue value) {
+		return value.isBoolean() ? !value.asBoolean().getValue()
+				: value.isNumber() && value.asNumber().intValue() == 0;
+	}
+
+	/**
+	 * The token for the page after a document.
+	 *
+	 * @param sort
+	 *            the sort of the query, see {@link #withId(Bson)}
+	 * @param last
+	 *            the last document of the current page
+	 */
+	public static PageToken after(BsonDocument sort, Document last) {
+		BsonDocument doc = toBson(last);
+		BsonArray values = new BsonArray();
+		for (String field : sort.keySet()) {
+			BsonValue value = doc.get(field);
+			if (value == null) {
+				throw new IllegalArgumentException("Sort key " + field + " missing in document " + doc.get("_id"));
+			}
+			values.add(value);
+		}
+		return new PageToken(sort, values);
+	}
+
+	/**
+	 * Decode a token.
+	 *
+	 * @param token
+	 *            the result of {@link #encode()}
+	 * @param sort
+	 *            the sort of the query, see {@link #withId(Bson)}
+	 * @throws IllegalArgumentException
+	 *             if the token is invalid or belongs to a different sort
+	 */
+	public static PageToken decode(String token, BsonDocument sort) {
+		BsonDocument doc;
+		try {
+			doc = new RawBsonDocument(Base64.getUrlDecoder().decode(token)).decode(new BsonDocumentCodec());
+		} catch (RuntimeException e) {
+			throw new IllegalArgumentException("Invalid page token", e);
+		}
+		if (!sort.equals(doc.get("s")) || !doc.isArray("v") || doc.getArray("v").size() != sort.size()) {
+			throw new IllegalArgumentException("Page token doesn't belong to this query");
+		}
+		return new PageToken(sort, doc.getArray("v"));
+	}
+
+	/**
+	 * @return the token as URL-safe string
+	 */
+	public String encode() {
+		BsonDocument doc = new BsonDocument("s", sort).append("v", values);
+		ByteBuffer buffer = new RawBsonDocument(doc, new BsonDocumentCodec()).getByteBuffer().asNIO();
+		byte[] bytes = new byte[buffer.remaining()];
+		buffer.get(bytes);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+	}
+
+	/**
+	 * The filter for the documents after the token: for a sort (a, b, _id)
+	 * and the values (x, y, z) that is
+	 *
+	 * <pre>
+	 * a &gt; x || (a == x &amp;&amp; b &gt; y) || (a == x &amp;&amp; b == y &amp;&amp; _id &gt; z)
+	 * </pre>
+	 *
+	 * with &lt; instead of &gt; for descending keys.
+	 */
+	public Bson filter() {
+		List<Bson> or = new ArrayList<Bson>();
+		List<Bson> equal = new ArrayList<Bson>();
+		int i = 0;
+		for (Map.Entry<String, BsonValue> e : sort.entrySet()) {
+			String field = e.getKey();
+			BsonValue value = values.get(i++);
+			boolean descending = e.getValue().isNumber() && e.getValue().asNumber().intValue() < 0;
+			List<Bson> and = new ArrayList<Bson>(equal);
+			and.add(descending ? Filters.lt(field, value) : Filters.gt(field, value));
+			or.add(and.size() == 1 ? and.get(0) : Filters.and(and));
+			equal.add(Filters.eq(field, value));
+		}
+		return or.size() == 1 ? or.get(0) : Filters.or(or);
+	}
+
+	private static BsonDocument toBson(Bson bson) {
+		return bson.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+	}
+}
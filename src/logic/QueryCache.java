@@ -0,0 +1,246 @@
+package logic;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+/**
+ * Size-bounded LRU cache for serialized query results.
+ * <p>
+ * Every query type reads one collection and has its own time to live.
+ * Writes invalidate a collection by increasing its generation. An entry is
+ * only returned while the generation it was computed in is still current, so
+ * a result computed concurrently with a write is never served afterwards.
+ */
+public class QueryCache {
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * The collections a cached query depends on. FTS is the full text search
+	 * of the tweets, whose index can become searchable after the tweets were
+	 * written, see {@link TweetSearchBackend#setRefreshListener(Runnable)}.
+	 */
+	public enum Scope {
+		MOVIES, TWEETS, FTS
+	}
+
+	/**
+	 * The cacheable queries with their time to live.
+	 */
+	public enum QueryType {
+		MOVIE(Scope.MOVIES, 60000),
+		PREFIX(Scope.MOVIES, 30000),
+		BEST_MOVIES(Scope.MOVIES, 60000),
+		GENRE(Scope.MOVIES, 60000),
+		KEYWORD(Scope.MOVIES, 30000),
+		TWEETED(Scope.MOVIES, 30000),
+		NEWEST_TWEETS(Scope.TWEETS, 5000),
+		MOVIE_TWEETS(Scope.TWEETS, 5000),
+		GEO_TWEETS(Scope.TWEETS, 10000),
+		TAGGED_TWEETS(Scope.TWEETS, 10000),
+		CLUSTERS(Scope.TWEETS, 10000),
+		FTS(Scope.FTS, 30000),
+		NEAR(Scope.TWEETS, 10000);
+
+		final Scope scope;
+		final long ttlMs;
+
+		QueryType(Scope scope, long ttlMs) {
+			this.scope = scope;
+			this.ttlMs = ttlMs;
+		}
+	}
+
+	private final long maxBytes;
+	private final AtomicLong[] generations = new AtomicLong[Scope.values().length];
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(256, 0.75f, true);
+	private long bytes;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+
+	public QueryCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            the maximum size of all cached values
+	 */
+	public QueryCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		for (int i = 0; i < generations.length; i++) {
+			generations[i] = new AtomicLong();
+		}
+	}
+
+	/**
+	 * Create a key for a query.
+	 *
+	 * @param type
+	 *            the type of the query
+	 * @param params
+	 *            the parameters of the query, in a stable order
+	 * @return the cache key
+	 */
+	public static Key key(QueryType type, Map<String, String[]> params) {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, String[]> e : new TreeMap<String, String[]>(params).entrySet()) {
+			sb.append(e.getKey()).append('=').append(Arrays.toString(e.getValue())).append('&');
+		}
+		return new Key(type, sb.toString());
+	}
+
+	/**
+	 * The stamp to pass to {@link #put} for a result that is computed now.
+	 * Take it before running the query.
+	 */
+	public long stamp(Key key) {
+		return generations[key.type.scope.ordinal()].get();
+	}
+
+	/**
+	 * @return the size of the largest value that is cached, larger ones are
+	 *         ignored by {@link #put}
+	 */
+	public long getMaxValueBytes() {
+		return maxBytes / 4;
+	}
+
+	/**
+	 * @return the cached value or null if there is no valid entry
+	 */
+	public byte[] get(Key key) {
+		long now = System.currentTimeMillis();
+		long generation = generations[key.type.scope.ordinal()].get();
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e != null && (e.generation != generation || e.expires < now)) {
+				remove(key);
+				e = null;
+			}
+			if (e == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			return e.value;
+		}
+	}
+
+	/**
+	 * Cache a value.
+	 *
+	 * @param key
+	 *            the key of the query
+	 * @param stamp
+	 *            the result of {@link #stamp(Key)} before the query ran
+	 * @param value
+	 *            the serialized result
+	 */
+	public void put(Key key, long stamp, byte[] value) {
+		if (value.length > getMaxValueBytes() || stamp != stamp(key)) {
+			return;
+		}
+		synchronized (this) {
+			remove(key);
+			entries.put(key, new Entry(value, stamp, System.currentTimeMillis() + key.type.ttlMs));
+			bytes += value.length;
+			Iterator<Map.Entry<Key, Entry>> it = entries.entrySet().iterator();
+			while (bytes > maxBytes && it.hasNext()) {
+				Entry eldest = it.next().getValue();
+				bytes -= eldest.value.length;
+				it.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private void remove(Key key) {
+		Entry old = entries.remove(key);
+		if (old != null) {
+			bytes -= old.value.length;
+		}
+	}
+
+	/**
+	 * Invalidate all cached results that read the given collection.
+	 */
+	public void invalidate(Scope scope) {
+		generations[scope.ordinal()].incrementAndGet();
+		invalidations.incrementAndGet();
+	}
+
+	/**
+	 * Invalidate all cached results.
+	 */
+	public void invalidateAll() {
+		for (Scope scope : Scope.values()) {
+			invalidate(scope);
+		}
+		synchronized (this) {
+			entries.clear();
+			bytes = 0;
+		}
+	}
+
+	/**
+	 * @return hit/miss counters and the size of the cache
+	 */
+	public synchronized Document getStats() {
+		long h = hits.get(), m = misses.get();
+		return new Document("entries", entries.size())
+				.append("bytes", bytes)
+				.append("hits", h)
+				.append("misses", m)
+				.append("hitRatio", h + m == 0 ? 0.0 : (double) h / (h + m))
+				.append("evictions", evictions.get())
+				.append("invalidations", invalidations.get());
+	}
+
+	/**
+	 * The key of a cached query.
+	 */
+	public static final class Key {
+		final QueryType type;
+		final String params;
+
+		Key(QueryType type, String params) {
+			this.type = type;
+			this.params = params;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return type == k.type && params.equals(k.params);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * type.hashCode() + params.hashCode();
+		}
+	}
+
+	private static final class Entry {
+		final byte[] value;
+		final long generation;
+		final long expires;
+
+		Entry(byte[] value, long generation, long expires) {
+			this.value = value;
+			this.generation = generation;
+			this.expires = expires;
+		}
+	}
+}
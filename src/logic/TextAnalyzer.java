@@ -0,0 +1,152 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Turns tweet texts and queries into the terms of the
+ * {@link LocalTweetSearch}: lower case words of letters and digits, without
+ * English stop words and the parts of links, reduced to their stem. The
+ * stemmer is steps 1 and 5a of the Porter stemmer, i.e. it removes plurals,
+ * -ed/-ing and a final e ("movies" and "movie" both become "movi",
+ * "watching" becomes "watch").
+ */
+public class TextAnalyzer {
+
+	public static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList("a", "about", "after", "all",
+			"also", "am", "an", "and", "any", "are", "as", "at", "be", "because", "been", "but", "by", "can", "co",
+			"could", "did", "do", "does", "for", "from", "had", "has", "have", "he", "her", "his", "how", "http",
+			"https", "i", "if", "in", "into", "is", "it", "its", "just", "me", "my", "no", "not", "of", "on", "or",
+			"our", "rt", "she", "so", "than", "that", "the", "their", "them", "then", "there", "these", "they",
+			"this", "to", "too", "us", "was", "we", "were", "what", "when", "which", "who", "will", "with", "would",
+			"you", "your"));
+
+	/**
+	 * @return the terms of the text in the order they appear
+	 */
+	public static List<String> analyze(String text) {
+		List<String> terms = new ArrayList<String>();
+		String lower = text.toLowerCase(Locale.ROOT);
+		int start = -1;
+		for (int i = 0; i <= lower.length(); i++) {
+			boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				String token = lower.substring(start, i);
+				if (!STOP_WORDS.contains(token))
+					terms.add(stem(token));
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Steps 1 and 5a of the Porter stemmer.
+	 *
+	 * @param word
+	 *            a lower case word
+	 * @return the stem
+	 */
+	public static String stem(String word) {
+		if (word.length() <= 2) {
+			return word;
+		}
+		StringBuilder w = new StringBuilder(word);
+		// Step 1a: plurals
+		if (endsWith(w, "sses") || endsWith(w, "ies")) {
+			w.setLength(w.length() - 2);
+		} else if (endsWith(w, "s") && !endsWith(w, "ss")) {
+			w.setLength(w.length() - 1);
+		}
+		// Step 1b: -eed, -ed, -ing
+		boolean cleanup = false;
+		if (endsWith(w, "eed")) {
+			if (measure(w, w.length() - 3) > 0)
+				w.setLength(w.length() - 1);
+		} else if (endsWith(w, "ed") && hasVowel(w, w.length() - 2)) {
+			w.setLength(w.length() - 2);
+			cleanup = true;
+		} else if (endsWith(w, "ing") && hasVowel(w, w.length() - 3)) {
+			w.setLength(w.length() - 3);
+			cleanup = true;
+		}
+		if (cleanup) {
+			int n = w.length();
+			if (endsWith(w, "at") || endsWith(w, "bl") || endsWith(w, "iz")) {
+				w.append('e');
+			} else if (n >= 2 && w.charAt(n - 1) == w.charAt(n - 2) && isConsonant(w, n - 1)
+					&& "lsz".indexOf(w.charAt(n - 1)) < 0) {
+				w.setLength(n - 1);
+			} else if (measure(w, n) == 1 && cvc(w, n)) {
+				w.append('e');
+			}
+		}
+		// Step 1c: y -> i
+		if (endsWith(w, "y") && hasVowel(w, w.length() - 1)) {
+			w.setCharAt(w.length() - 1, 'i');
+		}
+		// Step 5a: final e
+		if (endsWith(w, "e")) {
+			int m = measure(w, w.length() - 1);
+			if (m > 1 || m == 1 && !cvc(w, w.length() - 1))
+				w.setLength(w.length() - 1);
+		}
+		return w.toString();
+	}
+
+	private static boolean endsWith(StringBuilder w, String suffix) {
+		int n = w.length() - suffix.length();
+		return n >= 0 && w.indexOf(suffix, n) == n;
+	}
+
+	private static boolean isConsonant(CharSequence w, int i) {
+		char c = w.charAt(i);
+		if ("aeiou".indexOf(c) >= 0)
+			return false;
+		if (c == 'y')
+			return i == 0 || !isConsonant(w, i - 1);
+		return true;
+	}
+
+	/**
+	 * @return the number of vowel-consonant sequences in the first n
+	 *         characters
+	 */
+	private static int measure(CharSequence w, int n) {
+		int m = 0;
+		boolean vowel = false;
+		for (int i = 0; i < n; i++) {
+			if (!isConsonant(w, i)) {
+				vowel = true;
+			} else if (vowel) {
+				m++;
+				vowel = false;
+			}
+		}
+		return m;
+	}
+
+	private static boolean hasVowel(CharSequence w, int n) {
+		for (int i = 0; i < n; i++) {
+			if (!isConsonant(w, i))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return true if the first n characters end with consonant, vowel,
+	 *         consonant and the last one isn't w, x or y
+	 */
+	private static boolean cvc(CharSequence w, int n) {
+		if (n < 3 || !isConsonant(w, n - 1) || isConsonant(w, n - 2) || !isConsonant(w, n - 3))
+			return false;
+		return "wxy".indexOf(w.charAt(n - 1)) < 0;
+	}
+}
@@ -0,0 +1,346 @@
+package logic;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.bson.Document;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * In-memory typeahead index over all movie titles. Titles are normalized
+ * (lower case, accents removed) and kept in a sorted array, so all titles
+ * with a given prefix form a contiguous range. A sparse table over the votes
+ * finds the k most voted titles of a range in O(k log k).
+ * <p>
+ * New titles go to a small unsorted delta that is merged into a new sorted
+ * snapshot in the background once it grows too large.
+ */
+public class TitleIndex {
+
+	private static final int MAX_DELTA = 1024;
+
+	/** Guards snapshot, delta, merging and compacting */
+	private final Object lock = new Object();
+	private Snapshot snapshot = new Snapshot(new Entry[0], Collections.<Entry> emptyList());
+	private List<Entry> delta = new ArrayList<Entry>();
+	/** The entries of the delta that are being merged into a new snapshot */
+	private List<Entry> merging = Collections.emptyList();
+	private final Set<Object> ids = ConcurrentHashMap.newKeySet();
+	private volatile boolean ready;
+	private boolean compacting;
+	private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+		Thread t = new Thread(r, "title-index");
+		t.setDaemon(true);
+		return t;
+	});
+
+	/**
+	 * (Re)build the index from all movies of the collection.
+	 *
+	 * @param movies
+	 *            the movies collection
+	 */
+	public void build(MongoCollection<Document> movies) {
+		long start = System.nanoTime();
+		List<Entry> entries = new ArrayList<Entry>();
+		Set<Object> seen = ConcurrentHashMap.newKeySet();
+		Document projection = new Document("title", true).append("votes", true);
+		for (Document d : movies.find().projection(projection)) {
+			Object title = d.get("title");
+			if (title instanceof String && seen.add(d.get("_id"))) {
+				entries.add(new Entry(d.get("_id"), (String) title, votes(d.get("votes"))));
+			}
+		}
+		Snapshot next = new Snapshot(entries.toArray(new Entry[0]), Collections.<Entry> emptyList());
+		synchronized (lock) {
+			// Added titles that were compacted into the current snapshot
+			// meanwhile go back to the delta, unless the scan found them
+			for (Entry e : snapshot.added) {
+				if (!seen.contains(e.id))
+					delta.add(e);
+			}
+			snapshot = next;
+			delta.removeIf(e -> seen.contains(e.id));
+			merging.removeIf(e -> seen.contains(e.id));
+			ids.addAll(seen);
+		}
+		ready = true;
+		System.out.println("Title index built with " + entries.size() + " titles in "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * @return true once the index has been built from the database
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Add a movie that was inserted after the index was built. Movies that
+	 * are already indexed are ignored.
+	 *
+	 * @param id
+	 *            the _id of the movie
+	 * @param title
+	 *            the title of the movie
+	 * @param votes
+	 *            the votes used for ranking, a Number or null
+	 */
+	public void add(Object id, String title, Object votes) {
+		if (id == null || title == null || !ids.add(id)) {
+			return;
+		}
+		synchronized (lock) {
+			delta.add(new Entry(id, title, votes(votes)));
+			if (delta.size() >= MAX_DELTA && !compacting) {
+				compacting = true;
+				compactor.execute(this::compact);
+			}
+		}
+	}
+
+	/**
+	 * Merge the delta into a new snapshot. The delta is replaced by an empty
+	 * list, its entries are still searched while they are merged. If build()
+	 * replaces the snapshot meanwhile, the merged one is outdated and the
+	 * entries that build() didn't find go back to the delta.
+	 */
+	private void compact() {
+		try {
+			Snapshot base;
+			List<Entry> pending;
+			synchronized (lock) {
+				base = snapshot;
+				merging = delta;
+				delta = new ArrayList<Entry>();
+				// build() may remove entries from merging meanwhile
+				pending = new ArrayList<Entry>(merging);
+			}
+			Entry[] merged = Arrays.copyOf(base.entries, base.entries.length + pending.size());
+			for (int i = 0; i < pending.size(); i++) {
+				merged[base.entries.length + i] = pending.get(i);
+			}
+			List<Entry> added = new ArrayList<Entry>(base.added);
+			added.addAll(pending);
+			Snapshot next = new Snapshot(merged, added);
+			synchronized (lock) {
+				if (snapshot == base) {
+					snapshot = next;
+				} else {
+					delta.addAll(merging);
+				}
+				merging = Collections.emptyList();
+			}
+		} finally {
+			synchronized (lock) {
+				compacting = false;
+			}
+		}
+	}
+
+	/**
+	 * Find the most voted titles that start with the given prefix, ignoring
+	 * case and accents.
+	 *
+	 * @param prefix
+	 *            the prefix typed by the user
+	 * @param limit
+	 *            maximum number of titles
+	 * @return the titles, most voted first
+	 */
+	public String[] suggest(String prefix, int limit) {
+		List<Entry> top = top(prefix, limit);
+		String[] titles = new String[top.size()];
+		for (int i = 0; i < titles.length; i++) {
+			titles[i] = top.get(i).title;
+		}
+		return titles;
+	}
+
+	/**
+	 * Like {@link #suggest(String, int)}, but return the _ids of the movies.
+	 */
+	public List<Object> searchIds(String prefix, int limit) {
+		List<Entry> top = top(prefix, limit);
+		List<Object> result = new ArrayList<Object>(top.size());
+		for (Entry e : top) {
+			result.add(e.id);
+		}
+		return result;
+	}
+
+	private List<Entry> top(String prefix, int limit) {
+		if (limit <= 0) {
+			return Collections.emptyList();
+		}
+		String key = normalize(prefix == null ? "" : prefix);
+		Snapshot current;
+		List<Entry> fromDelta = new ArrayList<Entry>();
+		synchronized (lock) {
+			current = snapshot;
+			for (Entry e : delta) {
+				if (e.key.startsWith(key)) {
+					fromDelta.add(e);
+				}
+			}
+			for (Entry e : merging) {
+				if (e.key.startsWith(key)) {
+					fromDelta.add(e);
+				}
+			}
+		}
+		List<Entry> result = current.top(key, limit);
+		if (fromDelta.isEmpty()) {
+			return result;
+		}
+		fromDelta.addAll(result);
+		Collections.sort(fromDelta, RANKING);
+		return fromDelta.size() > limit ? fromDelta.subList(0, limit) : fromDelta;
+	}
+
+	/**
+	 * Lower case the text and remove all accents (combining marks).
+	 *
+	 * @param text
+	 *            a title or prefix
+	 * @return the normalized text
+	 */
+	public static String normalize(String text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder sb = new StringBuilder(decomposed.length());
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (Character.getType(c) != Character.NON_SPACING_MARK) {
+				sb.append(Character.toLowerCase(c));
+			}
+		}
+		return sb.toString();
+	}
+
+	private static int votes(Object votes) {
+		return votes instanceof Number ? ((Number) votes).intValue() : 0;
+	}
+
+	private static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+		@Override
+		public int compare(Entry a, Entry b) {
+			int c = Integer.compare(b.votes, a.votes);
+			return c != 0 ? c : a.key.compareTo(b.key);
+		}
+	};
+
+	private static class Entry {
+		final Object id;
+		final String title;
+		final String key;
+		final int votes;
+
+		Entry(Object id, String title, int votes) {
+			this.id = id;
+			this.title = title;
+			this.key = normalize(title);
+			this.votes = votes;
+		}
+	}
+
+	/**
+	 * Immutable sorted array of entries with a sparse table for range maximum
+	 * queries over the votes.
+	 */
+	private static class Snapshot {
+		final Entry[] entries;
+		/** The entries merged from the delta since the last build */
+		final List<Entry> added;
+		/** table[j][i] is the position of the most voted entry in [i, i + 2^j). */
+		final int[][] table;
+
+		Snapshot(Entry[] entries, List<Entry> added) {
+			Arrays.sort(entries, (a, b) -> a.key.compareTo(b.key));
+			this.entries = entries;
+			this.added = added;
+			int n = entries.length;
+			int levels = n == 0 ? 1 : 32 - Integer.numberOfLeadingZeros(n);
+			table = new int[levels][];
+			table[0] = new int[n];
+			for (int i = 0; i < n; i++) {
+				table[0][i] = i;
+			}
+			for (int j = 1; j < levels; j++) {
+				int half = 1 << (j - 1);
+				table[j] = new int[n - (1 << j) + 1];
+				for (int i = 0; i < table[j].length; i++) {
+					table[j][i] = better(table[j - 1][i], table[j - 1][i + half]);
+				}
+			}
+		}
+
+		private int better(int a, int b) {
+			return RANKING.compare(entries[a], entries[b]) <= 0 ? a : b;
+		}
+
+		/** Position of the most voted entry in [from, to). */
+		private int best(int from, int to) {
+			int j = 31 - Integer.numberOfLeadingZeros(to - from);
+			return better(table[j][from], table[j][to - (1 << j)]);
+		}
+
+		List<Entry> top(String prefix, int limit) {
+			int from = lowerBound(prefix);
+			int to = upperBound(prefix, from);
+			List<Entry> result = new ArrayList<Entry>(Math.min(limit, to - from));
+			if (from >= to) {
+				return result;
+			}
+			// Best-first search over sub ranges, each ranked by its maximum
+			PriorityQueue<int[]> ranges = new PriorityQueue<int[]>(
+					(a, b) -> RANKING.compare(entries[a[2]], entries[b[2]]));
+			ranges.add(new int[] { from, to, best(from, to) });
+			while (!ranges.isEmpty() && result.size() < limit) {
+				int[] r = ranges.poll();
+				result.add(entries[r[2]]);
+				if (r[0] < r[2]) {
+					ranges.add(new int[] { r[0], r[2], best(r[0], r[2]) });
+				}
+				if (r[2] + 1 < r[1]) {
+					ranges.add(new int[] { r[2] + 1, r[1], best(r[2] + 1, r[1]) });
+				}
+			}
+			return result;
+		}
+
+		private int lowerBound(String prefix) {
+			int lo = 0, hi = entries.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (entries[mid].key.compareTo(prefix) < 0)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		private int upperBound(String prefix, int from) {
+			int lo = from, hi = entries.length;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (entries[mid].key.startsWith(prefix))
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+	}
+}
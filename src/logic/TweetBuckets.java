@@ -0,0 +1,439 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.MongoException;
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+/**
+ * The tweets of the movies, stored in fixed-size buckets in the
+ * "movie_tweets" collection instead of an unbounded array in the movie
+ * document:
+ *
+ * <pre>
+ * { movie: *movie _id*, n: *bucket number*, count: *tweets in bucket*, tweets: [ ... ] }
+ * </pre>
+ *
+ * The k-th tweet of a movie (counting from 0 in insertion order) is in
+ * bucket k / BUCKET_SIZE. The tweets keep the _id of their raw tweet. The
+ * movie document only keeps the number of tweets ("tweetCount", taken from
+ * the buckets), the number of geotagged tweets ("geoTweetCount") and the
+ * newest tweets as a preview ("latestTweets").
+ * <p>
+ * The {@link TweetWriteBuffer} is the only writer of the buckets. The number
+ * of tweets per movie is therefore kept in memory once it was read, so
+ * appending only takes one bulk write.
+ */
+public class TweetBuckets {
+
+	public static final int BUCKET_SIZE = 200;
+	public static final int PREVIEW_SIZE = 10;
+
+	private final MongoCollection<Document> buckets;
+	/** The number of tweets in the buckets, by movie _id */
+	private final Map<Object, Long> counts = new ConcurrentHashMap<Object, Long>();
+
+	public TweetBuckets(MongoCollection<Document> buckets) {
+		this.buckets = buckets;
+	}
+
+	public MongoCollection<Document> getCollection() {
+		return buckets;
+	}
+
+	/**
+	 * Delete all buckets.
+	 */
+	public void clear() {
+		buckets.deleteMany(new Document());
+		counts.clear();
+	}
+
+	/**
+	 * The update of a movie document for appended tweets. It sets the number
+	 * of tweets, increases the number of geotagged tweets and keeps the newest
+	 * tweets in "latestTweets". It only matches if the movie has fewer tweets,
+	 * so applying it twice doesn't count the tweets twice.
+	 */
+	public static UpdateOneModel<Document> movieUpdate(Appended appended) {
+		long total = appended.getPosition() + appended.getTweets().size();
+		Bson filter = Filters.and(Filters.eq("_id", appended.getMovieId()),
+				Filters.or(Filters.exists("tweetCount", false), Filters.lt("tweetCount", total)));
+		return new UpdateOneModel<Document>(filter, update(appended));
+	}
+
+	private static Document update(Appended appended) {
+		List<Document> tweets = appended.getTweets();
+		int geo = 0;
+		for (Document tweet : tweets) {
+			if (tweet.get("coordinates") != null)
+				geo++;
+		}
+		List<Document> preview = tweets.size() > PREVIEW_SIZE
+				? tweets.subList(tweets.size() - PREVIEW_SIZE, tweets.size()) : tweets;
+		return new Document("$set", new Document("tweetCount", appended.getPosition() + tweets.size()))
+				.append("$inc", new Document("geoTweetCount", geo))
+				.append("$push", new Document("latestTweets",
+						new Document("$each", preview).append("$slice", -PREVIEW_SIZE)));
+	}
+
+	/**
+	 * The bucket updates that append tweets to a movie. Every update only
+	 * matches the bucket if it holds as many tweets as expected, a new
+	 * bucket is inserted by it (the unique index on movie and n rejects a
+	 * second one).
+	 *
+	 * @param movieId
+	 *            the _id of the movie
+	 * @param title
+	 *            the title of the movie
+	 * @param position
+	 *            the number of tweets the movie has in its buckets
+	 * @param tweets
+	 *            the new tweets, oldest first
+	 * @param updates
+	 *            the list to add the updates to
+	 */
+	private static void appendUpdates(Object movieId, String title, long position, List<Document> tweets,
+			List<WriteModel<Document>> updates) {
+		int i = 0;
+		while (i < tweets.size()) {
+			long n = (position + i) / BUCKET_SIZE;
+			int offset = (int) ((position + i) % BUCKET_SIZE);
+			List<Document> chunk = tweets.subList(i, Math.min(tweets.size(), i + BUCKET_SIZE - offset));
+			Document update = new Document("$push", new Document("tweets", new Document("$each", chunk)))
+					.append("$inc", new Document("count", chunk.size()))
+					.append("$setOnInsert", new Document("title", title));
+			updates.add(new UpdateOneModel<Document>(Filters.and(bucket(movieId, n), Filters.eq("count", offset)),
+					update, new UpdateOptions().upsert(offset == 0)));
+			i += chunk.size();
+		}
+	}
+
+	/**
+	 * Append tweets to the buckets of movies with one ordered bulk write. If
+	 * it fails (or a bucket didn't hold the expected number of tweets), the
+	 * buckets are read back: the tweets that made it are kept and only the
+	 * others are written once more. A write that was applied although the
+	 * server's answer got lost thus doesn't append the tweets twice.
+	 *
+	 * @param tweets
+	 *            the new tweets by movie _id, oldest first, with the _id of
+	 *            their raw tweet
+	 * @param titles
+	 *            the titles by movie _id
+	 * @return the tweets that were appended, by movie
+	 */
+	public List<Appended> append(Map<Object, List<Document>> tweets, Map<Object, String> titles) {
+		Map<Object, Long> start = new HashMap<Object, Long>(counts(tweets.keySet()));
+		Map<Object, Integer> written = new LinkedHashMap<Object, Integer>();
+		for (Object id : tweets.keySet()) {
+			written.put(id, 0);
+		}
+		for (int attempt = 0; attempt < 2 && !written.isEmpty(); attempt++) {
+			List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>();
+			for (Map.Entry<Object, Integer> movie : written.entrySet()) {
+				List<Document> list = tweets.get(movie.getKey());
+				appendUpdates(movie.getKey(), titles.get(movie.getKey()), start.get(movie.getKey()) + movie.getValue(),
+						list.subList(movie.getValue(), list.size()), updates);
+			}
+			try {
+				BulkWriteResult result = buckets.bulkWrite(updates, new BulkWriteOptions().ordered(true));
+				if (result.getMatchedCount() + result.getUpserts().size() == updates.size()) {
+					for (Object id : written.keySet()) {
+						written.put(id, tweets.get(id).size());
+					}
+					break;
+				}
+				System.err.println("Buckets of " + written.size() + " movies changed unexpectedly, reading them back");
+			} catch (MongoException e) {
+				System.err.println("Failed to append tweets to " + written.size() + " movies: " + e.getMessage());
+			}
+			readBack(tweets, start, written);
+		}
+		List<Appended> appended = new ArrayList<Appended>(tweets.size());
+		for (Map.Entry<Object, List<Document>> movie : tweets.entrySet()) {
+			Integer n = written.get(movie.getKey());
+			if (n == null || n == 0)
+				continue;
+			long position = start.get(movie.getKey());
+			if (n < movie.getValue().size()) {
+				System.err.println("Appended only " + n + " of " + movie.getValue().size() + " tweets to movie "
+						+ movie.getKey());
+			} else {
+				counts.put(movie.getKey(), position + n);
+			}
+			appended.add(new Appended(movie.getKey(), position, movie.getValue().subList(0, n)));
+		}
+		return appended;
+	}
+
+	/**
+	 * Find out how many of the tweets of a failed bulk write are in the
+	 * buckets. The ordered write appends a prefix of the tweets of every
+	 * movie, which must agree with the number of tweets in the buckets.
+	 * Movies where they don't agree are given up.
+	 */
+	private void readBack(Map<Object, List<Document>> tweets, Map<Object, Long> start, Map<Object, Integer> written) {
+		Set<Object> ids = new HashSet<Object>(written.keySet());
+		counts.keySet().removeAll(ids);
+		Map<Object, Long> now;
+		Map<Object, Set<Object>> present = new HashMap<Object, Set<Object>>();
+		try {
+			now = counts(ids);
+			List<Object> tweetIds = new ArrayList<Object>();
+			for (Object id : ids) {
+				for (Document tweet : tweets.get(id)) {
+					if (tweet.get("_id") != null)
+						tweetIds.add(tweet.get("_id"));
+				}
+			}
+			for (Document bucket : buckets.find(Filters.and(Filters.in("movie", ids), Filters.in("tweets._id", tweetIds)))
+					.projection(new Document("movie", true).append("tweets._id", true))) {
+				Set<Object> found = present.computeIfAbsent(bucket.get("movie"), k -> new HashSet<Object>());
+				for (Document tweet : bucket.getList("tweets", Document.class)) {
+					found.add(tweet.get("_id"));
+				}
+			}
+		} catch (MongoException e) {
+			System.err.println("Failed to read back the buckets of " + ids.size() + " movies: " + e.getMessage());
+			written.clear();
+			return;
+		}
+		for (Object id : ids) {
+			List<Document> list = tweets.get(id);
+			long n = now.get(id) - start.get(id);
+			boolean consistent = n >= 0 && n <= list.size();
+			Set<Object> found = present.getOrDefault(id, Collections.emptySet());
+			for (int i = 0; consistent && i < list.size(); i++) {
+				Object tweetId = list.get(i).get("_id");
+				consistent = tweetId == null || found.contains(tweetId) == (i < n);
+			}
+			if (consistent) {
+				written.put(id, (int) n);
+			} else {
+				System.err.println("Tweets of movie " + id + " are out of order in the buckets, not appending more");
+				written.remove(id);
+				counts.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * The number of tweets of movies in their buckets. The numbers that
+	 * aren't known yet are read with one aggregation, from the last bucket
+	 * of every movie.
+	 *
+	 * @return the number of tweets by movie _id
+	 */
+	public Map<Object, Long> counts(Collection<Object> movieIds) {
+		Map<Object, Long> result = new HashMap<Object, Long>();
+		List<Object> missing = new ArrayList<Object>();
+		for (Object id : movieIds) {
+			Long count = counts.get(id);
+			if (count != null) {
+				result.put(id, count);
+			} else {
+				missing.add(id);
+				result.put(id, 0L);
+			}
+		}
+		if (!missing.isEmpty()) {
+			for (Document last : buckets.aggregate(Arrays.asList(Aggregates.match(Filters.in("movie", missing)),
+					Aggregates.sort(Sorts.orderBy(Sorts.ascending("movie"), Sorts.descending("n"))),
+					Aggregates.group("$movie", Accumulators.first("n", "$n"), Accumulators.first("count", "$count"))))) {
+				result.put(last.get("_id"), ((Number) last.get("n")).longValue() * BUCKET_SIZE
+						+ ((Number) last.get("count")).longValue());
+			}
+			for (Object id : missing) {
+				counts.put(id, result.get(id));
+			}
+		}
+		return result;
+	}
+
+	private static Bson bucket(Object movieId, long n) {
+		return Filters.and(Filters.eq("movie", movieId), Filters.eq("n", n));
+	}
+
+	/**
+	 * Get a page of the tweets of a movie, newest first. Only the buckets
+	 * overlapping the page are read.
+	 *
+	 * @param movieId
+	 *            the _id of the movie
+	 * @param page
+	 *            the number of the page, starting at 0
+	 * @param pageSize
+	 *            the number of tweets per page
+	 * @return the tweets of the page
+	 */
+	public List<Document> page(Object movieId, int page, int pageSize) {
+		Document last = buckets.find(Filters.eq("movie", movieId)).sort(Sorts.descending("n"))
+				.projection(new Document("n", true).append("count", true)).first();
+		if (last == null) {
+			return Collections.emptyList();
+		}
+		long total = ((Number) last.get("n")).longValue() * BUCKET_SIZE + ((Number) last.get("count")).longValue();
+		// Absolute positions of the newest and the oldest tweet of the page
+		long newest = total - 1 - (long) page * pageSize;
+		long oldest = Math.max(0, newest - pageSize + 1);
+		if (newest < 0) {
+			return Collections.emptyList();
+		}
+		List<Document> result = new ArrayList<Document>(pageSize);
+		for (Document bucket : buckets
+				.find(Filters.and(Filters.eq("movie", movieId), Filters.gte("n", oldest / BUCKET_SIZE),
+						Filters.lte("n", newest / BUCKET_SIZE)))
+				.sort(Sorts.descending("n"))) {
+			long base = ((Number) bucket.get("n")).longValue() * BUCKET_SIZE;
+			List<Document> tweets = bucket.getList("tweets", Document.class);
+			for (int i = tweets.size() - 1; i >= 0; i--) {
+				long position = base + i;
+				if (position >= oldest && position <= newest)
+					result.add(tweets.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Find the _ids of movies with a tweet matching the filter.
+	 *
+	 * @param tweetFilter
+	 *            a filter on the fields of the bucket, e.g. on "tweets.text"
+	 * @param limit
+	 *            the maximum number of _ids, 0 for no limit
+	 */
+	public List<Object> findMovieIds(Bson tweetFilter, int limit) {
+		List<Bson> pipeline = new ArrayList<Bson>(Arrays.asList(Aggregates.match(tweetFilter),
+				Aggregates.group("$movie")));
+		if (limit > 0)
+			pipeline.add(Aggregates.limit(limit));
+		List<Object> ids = new ArrayList<Object>();
+		for (Document movie : buckets.aggregate(pipeline)) {
+			ids.add(movie.get("_id"));
+		}
+		return ids;
+	}
+
+	/**
+	 * Move the embedded "tweets" arrays of the movie documents into buckets.
+	 * Can be run repeatedly, movies without "tweets" array are skipped.
+	 * <p>
+	 * Before any tweet of a movie is written, the number of tweets in its
+	 * buckets is recorded in the movie ("tweetsMigration"). The array is
+	 * only removed once all its tweets are in the buckets, in the same update
+	 * as the counters. If the migration is interrupted, the next run thus
+	 * knows how many tweets of the array are already in the buckets and
+	 * only writes the others. It must not run while tweets are appended,
+	 * see {@link TweetWriteBuffer#migrate()}.
+	 *
+	 * @param movies
+	 *            the movies collection
+	 * @return the number of migrated movies
+	 */
+	public long migrate(MongoCollection<Document> movies) {
+		long start = System.nanoTime();
+		long migrated = 0;
+		Document projection = new Document("title", true).append("tweets", true).append("tweetsMigration", true);
+		Document unset = new Document("tweets", "").append("tweetsMigration", "");
+		for (Document movie : movies.find(Filters.exists("tweets")).projection(projection)) {
+			List<Document> tweets = movie.getList("tweets", Document.class);
+			Object id = movie.get("_id");
+			if (tweets == null || tweets.isEmpty()) {
+				movies.updateOne(Filters.eq("_id", id), new Document("$unset", unset));
+				migrated++;
+				continue;
+			}
+			long position;
+			if (movie.get("tweetsMigration") instanceof Number) {
+				// An earlier run was interrupted
+				position = ((Number) movie.get("tweetsMigration")).longValue();
+			} else {
+				position = counts(Collections.singletonList(id)).get(id);
+				movies.updateOne(Filters.eq("_id", id), new Document("$set", new Document("tweetsMigration", position)));
+			}
+			// The tweets of the array that are already in the buckets
+			long done = counts(Collections.singletonList(id)).get(id) - position;
+			if (done >= 0 && done < tweets.size()) {
+				List<Appended> appended = append(
+						Collections.singletonMap(id, tweets.subList((int) done, tweets.size())),
+						Collections.singletonMap(id, movie.getString("title")));
+				done += appended.isEmpty() ? 0 : appended.get(0).getTweets().size();
+			}
+			if (done != tweets.size()) {
+				System.err.println("Failed to move the tweets of movie " + id + " to buckets");
+				continue;
+			}
+			movies.updateOne(Filters.eq("_id", id),
+					update(new Appended(id, position, tweets)).append("$unset", unset));
+			migrated++;
+		}
+		if (migrated > 0) {
+			System.out.println("Moved the tweets of " + migrated + " movies to buckets in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		}
+		return migrated;
+	}
+
+	/**
+	 * Tweets appended to the buckets of a movie.
+	 */
+	public static class Appended {
+
+		private final Object movieId;
+		private final long position;
+		private final List<Document> tweets;
+
+		public Appended(Object movieId, long position, List<Document> tweets) {
+			this.movieId = movieId;
+			this.position = position;
+			this.tweets = tweets;
+		}
+
+		/**
+		 * @return the _id of the movie
+		 */
+		public Object getMovieId() {
+			return movieId;
+		}
+
+		/**
+		 * @return the position of the first appended tweet among the tweets
+		 *         of the movie
+		 */
+		public long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return the appended tweets, oldest first
+		 */
+		public List<Document> getTweets() {
+			return tweets;
+		}
+	}
+}
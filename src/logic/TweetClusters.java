@@ -0,0 +1,227 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Aggregates the geotagged tweets into the cells of a grid, so the map only
+ * has to draw one marker per cell instead of one per tweet. A cell has
+ * the number of its tweets, their centroid and the movies with the most
+ * tweets in it.
+ * <p>
+ * The grid has 2^zoom * CELLS_PER_TILE cells around the world, i.e. about
+ * one cell per 64 pixels of a 256 pixel map tile. A viewport therefore
+ * always contains about the same number of cells, no matter how many
+ * tweets there are. For the coarse zoom levels the cells of the whole
+ * world are precomputed in the background and filtered by the viewport.
+ */
+public class TweetClusters {
+
+	public static final int CELLS_PER_TILE = 4;
+	public static final int MAX_PRECOMPUTED_ZOOM = 3;
+	public static final int TOP_MOVIES = 3;
+	public static final int MAX_CELLS = 2048;
+	private static final long REFRESH_MS = 30000;
+
+	private final MongoCollection<Document> tweets;
+	/** The cells of the whole world by zoom level, written by the refresher and read by requests */
+	private final AtomicReferenceArray<List<Document>> precomputed = new AtomicReferenceArray<List<Document>>(
+			MAX_PRECOMPUTED_ZOOM + 1);
+	private volatile boolean dirty = true;
+	private ScheduledExecutorService refresher;
+
+	public TweetClusters(MongoCollection<Document> tweets) {
+		this.tweets = tweets;
+	}
+
+	/**
+	 * Precompute the cells of the coarse zoom levels now and whenever tweets
+	 * were added, see {@link #invalidate()}.
+	 */
+	public synchronized void start() {
+		if (refresher != null)
+			return;
+		refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "tweet-clusters");
+			t.setDaemon(true);
+			return t;
+		});
+		refresher.scheduleWithFixedDelay(this::refresh, 0, REFRESH_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Mark the precomputed cells as outdated, they are recomputed with the
+	 * next refresh.
+	 */
+	public void invalidate() {
+		dirty = true;
+	}
+
+	private void refresh() {
+		if (!dirty)
+			return;
+		dirty = false;
+		try {
+			long start = System.nanoTime();
+			for (int zoom = 0; zoom <= MAX_PRECOMPUTED_ZOOM; zoom++) {
+				precomputed.set(zoom, Collections.unmodifiableList(aggregate(-90, -180, 90, 180, zoom)));
+			}
+			System.out.println("Precomputed tweet clusters in " + (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (Exception e) {
+			dirty = true;
+			System.err.println("Could not precompute tweet clusters: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Get the cells of a viewport.
+	 *
+	 * @param south
+	 *            the southern latitude of the viewport
+	 * @param west
+	 *            the western longitude of the viewport
+	 * @param north
+	 *            the northern latitude of the viewport
+	 * @param east
+	 *            the eastern longitude of the viewport
+	 * @param zoom
+	 *            the zoom level of the map
+	 * @return the cells with "count", "lat", "lng" and "movies"
+	 */
+	public List<Document> clusters(double south, double west, double north, double east, int zoom) {
+		south = Math.max(-90, south);
+		north = Math.min(90, north);
+		if (east - west >= 360) {
+			west = -180;
+			east = 180;
+		} else {
+			// A map panned across the antimeridian has longitudes > 180
+			west = wrap(west);
+			east = wrap(east);
+		}
+		zoom = Math.max(0, zoom);
+		// Don't return more cells than a viewport should have, e.g. if the
+		// zoom level doesn't match the bbox
+		while (zoom > 0 && cellCount(south, west, north, east, zoom) > MAX_CELLS) {
+			zoom--;
+		}
+		List<Document> cells = zoom <= MAX_PRECOMPUTED_ZOOM ? precomputed.get(zoom) : null;
+		if (cells == null) {
+			return aggregate(south, west, north, east, zoom);
+		}
+		List<Document> result = new ArrayList<Document>();
+		for (Document cell : cells) {
+			double lat = cell.getDouble("lat"), lng = cell.getDouble("lng");
+			if (lat >= south && lat <= north && (west <= east ? lng >= west && lng <= east
+					: lng >= west || lng <= east)) {
+				result.add(cell);
+			}
+		}
+		return result;
+	}
+
+	private static double cellSize(int zoom) {
+		return 360.0 / ((1L << zoom) * CELLS_PER_TILE);
+	}
+
+	private static double cellCount(double south, double west, double north, double east, int zoom) {
+		double width = east >= west ? east - west : east + 360 - west;
+		return Math.ceil(width / cellSize(zoom)) * Math.ceil((north - south) / cellSize(zoom));
+	}
+
+	/**
+	 * Run the aggregation:
+	 *
+	 * <pre>
+	 * $match $geoWithin bbox -> cell x, y -> $group by x, y, movie -> $sort count -> $group by x, y
+	 * </pre>
+	 */
+	private List<Document> aggregate(double south, double west, double north, double east, int zoom) {
+		double size = cellSize(zoom);
+		Document lng = new Document("$arrayElemAt", Arrays.asList("$coordinates.coordinates", 0));
+		Document lat = new Document("$arrayElemAt", Arrays.asList("$coordinates.coordinates", 1));
+		List<Bson> pipeline = Arrays.<Bson> asList(
+				new Document("$match", within(south, west, north, east)),
+				new Document("$project", new Document("movie", true).append("lng", lng).append("lat", lat)),
+				new Document("$group", new Document("_id", new Document("x", cell("$lng", 180, size))
+						.append("y", cell("$lat", 90, size)).append("movie", "$movie"))
+								.append("count", new Document("$sum", 1))
+								.append("lng", new Document("$sum", "$lng"))
+								.append("lat", new Document("$sum", "$lat"))),
+				new Document("$sort", new Document("count", -1)),
+				new Document("$group", new Document("_id", new Document("x", "$_id.x").append("y", "$_id.y"))
+						.append("count", new Document("$sum", "$count"))
+						.append("lng", new Document("$sum", "$lng"))
+						.append("lat", new Document("$sum", "$lat"))
+						.append("movies", new Document("$push",
+								new Document("movie", "$_id.movie").append("count", "$count")))),
+				new Document("$project", new Document("_id", false)
+						.append("count", true)
+						.append("lng", new Document("$divide", Arrays.asList("$lng", "$count")))
+						.append("lat", new Document("$divide", Arrays.asList("$lat", "$count")))
+						.append("movies", new Document("$slice", Arrays.asList("$movies", TOP_MOVIES)))));
+		return tweets.aggregate(pipeline).allowDiskUse(true).into(new ArrayList<Document>());
+	}
+
+	private static Document cell(String field, double offset, double size) {
+		return new Document("$floor", new Document("$divide",
+				Arrays.asList(new Document("$add", Arrays.asList(field, offset)), size)));
+	}
+
+	/**
+	 * A $geoWithin filter for the bbox. GeoJSON polygons must be smaller than
+	 * a hemisphere, so wide boxes are split into several polygons. Their
+	 * vertices must be distinct, so they don't touch the poles.
+	 */
+	private static Document within(double south, double west, double north, double east) {
+		south = Math.max(-89.99, south);
+		north = Math.min(89.99, north);
+		if (east < west) {
+			east += 360;
+		}
+		List<Document> polygons = new ArrayList<Document>();
+		for (double w = west; w < east; w += 90) {
+			double e = Math.min(east, w + 90);
+			polygons.add(new Document("coordinates", new Document("$geoWithin",
+					new Document("$geometry", polygon(south, normalize(w), north, normalize(e))))));
+		}
+		return polygons.size() == 1 ? polygons.get(0) : new Document("$or", polygons);
+	}
+
+	/**
+	 * The edges of a GeoJSON polygon are great circles, so the southern and
+	 * northern edges get a vertex every few degrees to follow the parallels.
+	 */
+	private static Document polygon(double south, double west, double north, double east) {
+		double width = east >= west ? east - west : east + 360 - west;
+		int steps = (int) Math.ceil(width / 10);
+		List<List<Double>> ring = new ArrayList<List<Double>>();
+		for (int i = 0; i <= steps; i++) {
+			ring.add(Arrays.asList(normalize(west + width * i / steps), south));
+		}
+		for (int i = steps; i >= 0; i--) {
+			ring.add(Arrays.asList(normalize(west + width * i / steps), north));
+		}
+		ring.add(ring.get(0));
+		return new Document("type", "Polygon").append("coordinates", Collections.singletonList(ring));
+	}
+
+	private static double wrap(double lng) {
+		return lng < -180 || lng > 180 ? ((lng + 180) % 360 + 360) % 360 - 180 : lng;
+	}
+
+	private static double normalize(double lng) {
+		return lng > 180 ? lng - 360 : lng;
+	}
+}
@@ -0,0 +1,611 @@
+package logic;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+/**
+ * In-memory inverted index of the tweet texts of the movies: for every term
+ * the movies whose tweets contain it, with the term frequency. A movie is
+ * one document of the index, the text of all its tweets. Queries with
+ * several terms match movies with all terms (AND) or, with "OR" between the
+ * terms, with any of them. The matches are ranked with BM25.
+ * <p>
+ * The postings of a term are two int arrays (movie numbers and
+ * frequencies) sorted by movie number, the movie _ids are only kept once.
+ * The index is filled from the buckets of the tweets (see
+ * {@link TweetBuckets}), updated with every flush of new tweets and written
+ * to a snapshot file periodically. After a restart the snapshot is loaded
+ * and only the tweets the movies got since then are indexed: the index
+ * keeps the number of indexed tweets per movie and the buckets tell where
+ * the newer tweets are.
+ */
+public class TweetIndex {
+
+	public static final double K1 = 1.2;
+	public static final double B = 0.75;
+	private static final int SNAPSHOT_MAGIC = 0x54574958;
+	private static final int SNAPSHOT_VERSION = 1;
+	private static final long SNAPSHOT_INTERVAL_MS = 5 * 60 * 1000;
+	private static final List<String> IGNORED = Arrays.asList("http", "https", "rt", "co");
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final Map<String, Postings> postings = new HashMap<String, Postings>();
+	private final Map<Object, Integer> numbers = new HashMap<Object, Integer>();
+	private final List<Object> movieIds = new ArrayList<Object>();
+	private int[] lengths = new int[1024];
+	private int[] tweetCounts = new int[1024];
+	private long totalLength;
+	private volatile boolean ready;
+	private volatile boolean dirty;
+	private final Path snapshot;
+	private ScheduledExecutorService snapshotter;
+
+	/**
+	 * @param snapshot
+	 *            the snapshot file
+	 */
+	public TweetIndex(Path snapshot) {
+		this.snapshot = snapshot;
+	}
+
+	/**
+	 * @return true once the index has all tweets, until then queries should
+	 *         use MongoDB
+	 */
+	public boolean isReady() {
+		return ready;
+	}
+
+	/**
+	 * Load the snapshot and index the tweets that are missing in it.
+	 *
+	 * @param movies
+	 *            the movies with their "tweetCount"
+	 * @param buckets
+	 *            the buckets of the tweets
+	 */
+	public void build(MongoCollection<Document> movies, TweetBuckets buckets) {
+		long start = System.nanoTime();
+		boolean loaded = load();
+		int indexed = 0;
+		if (loaded) {
+			// Only the tweets after the indexed ones, per movie
+			for (Document movie : movies.find(Filters.gt("tweetCount", 0))
+					.projection(Projections.include("tweetCount"))) {
+				long count = ((Number) movie.get("tweetCount")).longValue();
+				int known = indexedCount(movie.get("_id"));
+				if (count < known) {
+					// The tweets were deleted, e.g. by a reload of the data
+					System.out.println("Tweet index snapshot is outdated, rebuilding it");
+					clear();
+					loaded = false;
+					indexed = 0;
+					break;
+				}
+				if (count > known) {
+					for (Document bucket : buckets.getCollection()
+							.find(Filters.and(Filters.eq("movie", movie.get("_id")),
+									Filters.gte("n", known / TweetBuckets.BUCKET_SIZE)))
+							.sort(Sorts.ascending("n"))) {
+						indexed += addBucket(bucket);
+					}
+				}
+			}
+		}
+		if (!loaded) {
+			for (Document bucket : buckets.getCollection().find().sort(Sorts.ascending("movie", "n"))) {
+				indexed += addBucket(bucket);
+			}
+		}
+		ready = true;
+		System.out.println("Tweet index of " + movieIds.size() + " movies and " + postings.size() + " terms ready ("
+				+ indexed + " tweets indexed) in " + (System.nanoTime() - start) / 1000000 + " ms");
+	}
+
+	/**
+	 * Write snapshots every SNAPSHOT_INTERVAL_MS if tweets were added.
+	 */
+	public synchronized void start() {
+		if (snapshotter != null)
+			return;
+		snapshotter = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "tweet-index");
+			t.setDaemon(true);
+			return t;
+		});
+		snapshotter.scheduleWithFixedDelay(() -> {
+			if (dirty && ready)
+				save();
+		}, SNAPSHOT_INTERVAL_MS, SNAPSHOT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Index the tweets of one bucket that aren't indexed yet.
+	 *
+	 * @return the number of indexed tweets
+	 */
+	private int addBucket(Document bucket) {
+		@SuppressWarnings("unchecked")
+		List<Document> tweets = (List<Document>) bucket.get("tweets");
+		if (tweets == null) {
+			return 0;
+		}
+		long position = ((Number) bucket.get("n")).longValue() * TweetBuckets.BUCKET_SIZE;
+		return add(bucket.get("movie"), position, tweets);
+	}
+
+	/**
+	 * Index new tweets of a movie. Tweets that are already indexed are
+	 * skipped, so adding the same tweets twice is harmless.
+	 *
+	 * @param movieId
+	 *            the _id of the movie
+	 * @param position
+	 *            the position of the first tweet among the tweets of the
+	 *            movie
+	 * @param tweets
+	 *            the tweets, with their "text"
+	 * @return the number of indexed tweets
+	 */
+	public int add(Object movieId, long position, List<Document> tweets) {
+		lock.writeLock().lock();
+		try {
+			int movie = number(movieId);
+			int skip = (int) (tweetCounts[movie] - position);
+			if (skip < 0) {
+				// Tweets before these are missing, build() will add them all
+				return 0;
+			}
+			int added = 0;
+			for (int i = skip; i < tweets.size(); i++) {
+				Object text = tweets.get(i).get("text");
+				List<String> terms = text == null ? Collections.<String> emptyList() : tokenize(text.toString());
+				for (String term : terms) {
+					Postings p = postings.get(term);
+					if (p == null) {
+						p = new Postings();
+						postings.put(term, p);
+					}
+					p.add(movie, 1);
+				}
+				lengths[movie] += terms.size();
+				totalLength += terms.size();
+				tweetCounts[movie]++;
+				added++;
+			}
+			if (added > 0) {
+				dirty = true;
+			}
+			return added;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Search movies by the text of their tweets.
+	 *
+	 * @param query
+	 *            the terms, all of them have to match unless they are
+	 *            separated by "OR"
+	 * @param limit
+	 *            the maximum number of movies
+	 * @return the _ids of the best matching movies, best first
+	 */
+	public List<Object> search(String query, int limit) {
+		boolean any = false;
+		List<String> terms = new ArrayList<String>();
+		for (String word : query.trim().split("\\s+")) {
+			if (word.equals("OR")) {
+				any = true;
+			} else if (!word.equals("AND")) {
+				terms.addAll(tokenize(word));
+			}
+		}
+		return search(terms, any, limit);
+	}
+
+	/**
+	 * @param terms
+	 *            the (tokenized) terms
+	 * @param any
+	 *            match movies with any of the terms instead of all
+	 * @param limit
+	 *            the maximum number of movies
+	 * @return the _ids of the best matching movies, best first
+	 * @see #search(String, int)
+	 */
+	public List<Object> search(Collection<String> terms, boolean any, int limit) {
+		lock.readLock().lock();
+		try {
+			int n = movieIds.size();
+			List<Postings> lists = new ArrayList<Postings>();
+			for (String term : new LinkedHashSet<String>(terms)) {
+				Postings p = postings.get(term);
+				if (p != null) {
+					lists.add(p);
+				} else if (!any) {
+					return Collections.emptyList();
+				}
+			}
+			if (n == 0 || lists.isEmpty() || limit <= 0) {
+				return Collections.emptyList();
+			}
+			double avgLength = Math.max(1.0, (double) totalLength / n);
+			// Rarest first: fewer candidates for AND, same scores for OR
+			lists.sort(Comparator.comparingInt(p -> p.size));
+			double[] idf = new double[lists.size()];
+			for (int t = 0; t < lists.size(); t++) {
+				int df = lists.get(t).size;
+				idf[t] = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+			}
+			TopK top = new TopK(limit);
+			if (any) {
+				double[] scores = new double[n];
+				for (int t = 0; t < lists.size(); t++) {
+					Postings p = lists.get(t);
+					for (int i = 0; i < p.size; i++) {
+						scores[p.docs[i]] += idf[t] * bm25(p.freqs[i], lengths[p.docs[i]], avgLength);
+					}
+				}
+				for (int movie = 0; movie < n; movie++) {
+					if (scores[movie] > 0)
+						top.offer(movie, scores[movie]);
+				}
+			} else {
+				// Walk the rarest list and look the movies up in the others
+				Postings first = lists.get(0);
+				int[] cursors = new int[lists.size()];
+				candidates: for (int i = 0; i < first.size; i++) {
+					int movie = first.docs[i];
+					double score = idf[0] * bm25(first.freqs[i], lengths[movie], avgLength);
+					for (int t = 1; t < lists.size(); t++) {
+						Postings p = lists.get(t);
+						int found = Arrays.binarySearch(p.docs, cursors[t], p.size, movie);
+						if (found < 0) {
+							cursors[t] = -found - 1;
+							if (cursors[t] >= p.size)
+								break candidates;
+							continue candidates;
+						}
+						cursors[t] = found + 1;
+						score += idf[t] * bm25(p.freqs[found], lengths[movie], avgLength);
+					}
+					top.offer(movie, score);
+				}
+			}
+			List<Object> ids = new ArrayList<Object>();
+			for (int movie : top.sorted()) {
+				ids.add(movieIds.get(movie));
+			}
+			return ids;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private static double bm25(int tf, int length, double avgLength) {
+		return tf * (K1 + 1) / (tf + K1 * (1 - B + B * length / avgLength));
+	}
+
+	/**
+	 * Split a text into lower case terms of letters and digits. Single
+	 * characters and the parts of links are skipped.
+	 */
+	public static List<String> tokenize(String text) {
+		List<String> terms = new ArrayList<String>();
+		String lower = text.toLowerCase(Locale.ROOT);
+		int start = -1;
+		for (int i = 0; i <= lower.length(); i++) {
+			boolean word = i < lower.length() && Character.isLetterOrDigit(lower.charAt(i));
+			if (word && start < 0) {
+				start = i;
+			} else if (!word && start >= 0) {
+				if (i - start > 1) {
+					String term = lower.substring(start, i);
+					if (!IGNORED.contains(term))
+						terms.add(term);
+				}
+				start = -1;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Remove everything including the snapshot, e.g. because the tweets
+	 * were deleted.
+	 */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			try {
+				Files.deleteIfExists(snapshot);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			postings.clear();
+			numbers.clear();
+			movieIds.clear();
+			Arrays.fill(lengths, 0);
+			Arrays.fill(tweetCounts, 0);
+			totalLength = 0;
+			dirty = true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private int indexedCount(Object movieId) {
+		lock.readLock().lock();
+		try {
+			Integer movie = numbers.get(movieId);
+			return movie == null ? 0 : tweetCounts[movie];
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the number of the movie, a new one for unknown movies
+	 */
+	private int number(Object movieId) {
+		Integer movie = numbers.get(movieId);
+		if (movie == null) {
+			movie = movieIds.size();
+			numbers.put(movieId, movie);
+			movieIds.add(movieId);
+			if (movie == lengths.length) {
+				lengths = Arrays.copyOf(lengths, movie * 2);
+				tweetCounts = Arrays.copyOf(tweetCounts, movie * 2);
+			}
+		}
+		return movie;
+	}
+
+	/**
+	 * Write a snapshot. The postings are delta and varint encoded.
+	 */
+	public void save() {
+		long start = System.nanoTime();
+		lock.readLock().lock();
+		try {
+			Files.createDirectories(snapshot.toAbsolutePath().getParent());
+			Path tmp = Files.createTempFile(snapshot.toAbsolutePath().getParent(), "tweet-index", ".tmp");
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 65536))) {
+				out.writeInt(SNAPSHOT_MAGIC);
+				out.writeInt(SNAPSHOT_VERSION);
+				out.writeInt(movieIds.size());
+				for (int movie = 0; movie < movieIds.size(); movie++) {
+					writeId(out, movieIds.get(movie));
+					writeVarint(out, lengths[movie]);
+					writeVarint(out, tweetCounts[movie]);
+				}
+				out.writeInt(postings.size());
+				for (Map.Entry<String, Postings> entry : postings.entrySet()) {
+					Postings p = entry.getValue();
+					out.writeUTF(entry.getKey());
+					writeVarint(out, p.size);
+					int previous = 0;
+					for (int i = 0; i < p.size; i++) {
+						writeVarint(out, p.docs[i] - previous);
+						writeVarint(out, p.freqs[i]);
+						previous = p.docs[i];
+					}
+				}
+			}
+			Files.move(tmp, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			dirty = false;
+			System.out.println("Wrote tweet index snapshot (" + Files.size(snapshot) / 1024 + " KB) in "
+					+ (System.nanoTime() - start) / 1000000 + " ms");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return true if the snapshot was loaded
+	 */
+	private boolean load() {
+		if (!Files.exists(snapshot)) {
+			return false;
+		}
+		lock.writeLock().lock();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 65536))) {
+			if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != SNAPSHOT_VERSION) {
+				System.out.println("Ignoring tweet index snapshot of another version");
+				return false;
+			}
+			int movies = in.readInt();
+			for (int i = 0; i < movies; i++) {
+				int movie = number(readId(in));
+				lengths[movie] = readVarint(in);
+				tweetCounts[movie] = readVarint(in);
+				totalLength += lengths[movie];
+			}
+			int terms = in.readInt();
+			for (int t = 0; t < terms; t++) {
+				String term = in.readUTF();
+				Postings p = new Postings(readVarint(in));
+				int previous = 0;
+				for (int i = 0; i < p.docs.length; i++) {
+					previous += readVarint(in);
+					p.docs[i] = previous;
+					p.freqs[i] = readVarint(in);
+				}
+				p.size = p.docs.length;
+				postings.put(term, p);
+			}
+			return true;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Ignoring broken tweet index snapshot: " + e);
+			clear();
+			return false;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static void writeId(DataOutputStream out, Object id) throws IOException {
+		if (id instanceof ObjectId) {
+			out.writeByte(0);
+			out.write(((ObjectId) id).toByteArray());
+		} else if (id instanceof String) {
+			out.writeByte(1);
+			out.writeUTF((String) id);
+		} else if (id instanceof Integer) {
+			out.writeByte(2);
+			out.writeInt((Integer) id);
+		} else if (id instanceof Long) {
+			out.writeByte(3);
+			out.writeLong((Long) id);
+		} else {
+			throw new IOException("Unsupported movie _id " + id);
+		}
+	}
+
+	private static Object readId(DataInputStream in) throws IOException {
+		switch (in.readByte()) {
+		case 0:
+			byte[] bytes = new byte[12];
+			in.readFully(bytes);
+			return new ObjectId(bytes);
+		case 1:
+			return in.readUTF();
+		case 2:
+			return in.readInt();
+		case 3:
+			return in.readLong();
+		default:
+			throw new IOException("Unknown movie _id type");
+		}
+	}
+
+	private static void writeVarint(OutputStream out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	private static int readVarint(InputStream in) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.read();
+			if (b < 0)
+				throw new IOException("Truncated tweet index snapshot");
+			value |= (b & 0x7f) << shift;
+			if ((b & 0x80) == 0)
+				return value;
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * The movies with a term and the term frequencies, sorted by movie.
+	 */
+	static final class Postings {
+		int[] docs;
+		int[] freqs;
+		int size;
+
+		Postings() {
+			this(2);
+		}
+
+		Postings(int capacity) {
+			docs = new int[capacity];
+			freqs = new int[capacity];
+		}
+
+		void add(int doc, int freq) {
+			if (size > 0 && docs[size - 1] == doc) {
+				freqs[size - 1] += freq;
+				return;
+			}
+			int i = size;
+			if (size > 0 && docs[size - 1] > doc) {
+				i = Arrays.binarySearch(docs, 0, size, doc);
+				if (i >= 0) {
+					freqs[i] += freq;
+					return;
+				}
+				i = -i - 1;
+			}
+			if (size == docs.length) {
+				docs = Arrays.copyOf(docs, Math.max(2, size * 2));
+				freqs = Arrays.copyOf(freqs, docs.length);
+			}
+			System.arraycopy(docs, i, docs, i + 1, size - i);
+			System.arraycopy(freqs, i, freqs, i + 1, size - i);
+			docs[i] = doc;
+			freqs[i] = freq;
+			size++;
+		}
+	}
+
+	/**
+	 * The k movies with the highest scores.
+	 */
+	private static final class TopK {
+		private final int k;
+		private final PriorityQueue<double[]> heap;
+
+		TopK(int k) {
+			this.k = k;
+			this.heap = new PriorityQueue<double[]>(Math.min(k, 1024) + 1, Comparator.comparingDouble(e -> e[0]));
+		}
+
+		void offer(int movie, double score) {
+			if (heap.size() < k) {
+				heap.add(new double[] { score, movie });
+			} else if (heap.peek()[0] < score) {
+				heap.poll();
+				heap.add(new double[] { score, movie });
+			}
+		}
+
+		int[] sorted() {
+			int[] movies = new int[heap.size()];
+			for (int i = movies.length - 1; i >= 0; i--) {
+				movies[i] = (int) heap.poll()[1];
+			}
+			return movies;
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package logic;
+
+import java.util.List;
+
+import org.bson.Document;
+
+/**
+ * A full text search over the tweets, see
+ * {@link MovieService#searchTweets(String, int)}. The backend is chosen
+ * with "tweets.search": "mongo" for the text index of MongoDB
+ * ({@link MongoTweetSearch}), "local" for the embedded index
+ * ({@link LocalTweetSearch}).
+ */
+public interface TweetSearchBackend {
+
+	/**
+	 * @param query
+	 *            words, "quoted phrases" and -negated words or phrases
+	 * @param limit
+	 *            the maximum number of results
+	 * @return the best matching tweets, best first, with their relevance as
+	 *         "score"
+	 */
+	List<Document> search(String query, int limit);
+
+	/**
+	 * Index tweets that were just inserted into the tweets collection.
+	 */
+	default void add(List<Document> tweets) {
+	}
+
+	/**
+	 * Index all tweets of the collection.
+	 */
+	default void build() {
+	}
+
+	/**
+	 * Forget all indexed tweets, e.g. because the collection was cleared.
+	 */
+	default void clear() {
+	}
+
+	/**
+	 * Register a callback that runs whenever tweets become searchable later
+	 * than they are written, e.g. after a refresh of an index that is
+	 * updated in the background.
+	 */
+	default void setRefreshListener(Runnable listener) {
+	}
+
+	/**
+	 * Start the background work of the backend, if it has any.
+	 */
+	default void start() {
+	}
+
+	/**
+	 * @return false while the backend can't answer queries yet
+	 */
+	default boolean isReady() {
+		return true;
+	}
+
+	Document getStats();
+}
@@ -0,0 +1,306 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable part of the {@link LocalTweetSearch} index: the tweets added
+ * between two refreshes, or several merged segments. Documents are numbered
+ * from 0 in the order they were added. Every term has a posting list of the
+ * documents that contain it, with the term frequency and the positions of
+ * the term in each document, for phrase queries.
+ */
+public class TweetSegment {
+
+	private final Object[] ids;
+	private final int[] lengths;
+	private final long totalLength;
+	private final Map<String, Postings> terms;
+
+	private TweetSegment(Object[] ids, int[] lengths, Map<String, Postings> terms) {
+		this.ids = ids;
+		this.lengths = lengths;
+		long total = 0;
+		for (int length : lengths) {
+			total += length;
+		}
+		this.totalLength = total;
+		this.terms = terms;
+	}
+
+	/**
+	 * @return the number of documents
+	 */
+	public int size() {
+		return ids.length;
+	}
+
+	/**
+	 * @return the sum of the document lengths, in terms
+	 */
+	public long getTotalLength() {
+		return totalLength;
+	}
+
+	public int getTermCount() {
+		return terms.size();
+	}
+
+	/**
+	 * @return the _id of the tweet of a document
+	 */
+	public Object getId(int doc) {
+		return ids[doc];
+	}
+
+	/**
+	 * @return the number of terms of a document
+	 */
+	public int getLength(int doc) {
+		return lengths[doc];
+	}
+
+	/**
+	 * @return the postings of the term, null if no document contains it
+	 */
+	public Postings getPostings(String term) {
+		return terms.get(term);
+	}
+
+	/**
+	 * Merge segments into one, their documents are renumbered in the order
+	 * of the list.
+	 */
+	public static TweetSegment merge(List<TweetSegment> segments) {
+		int size = 0;
+		for (TweetSegment segment : segments) {
+			size += segment.size();
+		}
+		Object[] ids = new Object[size];
+		int[] lengths = new int[size];
+		Map<String, PostingsBuilder> merged = new HashMap<String, PostingsBuilder>();
+		int base = 0;
+		for (TweetSegment segment : segments) {
+			System.arraycopy(segment.ids, 0, ids, base, segment.size());
+			System.arraycopy(segment.lengths, 0, lengths, base, segment.size());
+			for (Map.Entry<String, Postings> entry : segment.terms.entrySet()) {
+				merged.computeIfAbsent(entry.getKey(), t -> new PostingsBuilder()).append(entry.getValue(), base);
+			}
+			base += segment.size();
+		}
+		return new TweetSegment(ids, lengths, seal(merged));
+	}
+
+	private static Map<String, Postings> seal(Map<String, PostingsBuilder> builders) {
+		Map<String, Postings> terms = new HashMap<String, Postings>(builders.size() * 4 / 3 + 1);
+		for (Map.Entry<String, PostingsBuilder> entry : builders.entrySet()) {
+			terms.put(entry.getKey(), entry.getValue().build());
+		}
+		return terms;
+	}
+
+	/**
+	 * The documents that contain a term, ascending.
+	 */
+	public static class Postings {
+		private final int[] docs;
+		private final int[] freqs;
+		/** The positions of docs[i] are positions[posStart[i]..posStart[i + 1]) */
+		private final int[] posStart;
+		private final int[] positions;
+		private final int maxFreq;
+		private final int minLength;
+
+		Postings(int[] docs, int[] freqs, int[] posStart, int[] positions, int maxFreq, int minLength) {
+			this.docs = docs;
+			this.freqs = freqs;
+			this.posStart = posStart;
+			this.positions = positions;
+			this.maxFreq = maxFreq;
+			this.minLength = minLength;
+		}
+
+		/**
+		 * @return the number of documents containing the term
+		 */
+		public int size() {
+			return docs.length;
+		}
+
+		public int getDoc(int i) {
+			return docs[i];
+		}
+
+		public int getFreq(int i) {
+			return freqs[i];
+		}
+
+		/**
+		 * @return the highest term frequency of all documents, for the upper
+		 *         bound of the term's score
+		 */
+		public int getMaxFreq() {
+			return maxFreq;
+		}
+
+		/**
+		 * @return the length of the shortest document containing the term
+		 */
+		public int getMinLength() {
+			return minLength;
+		}
+
+		/**
+		 * @return the index of the first document &gt;= doc at or after from,
+		 *         size() if there is none
+		 */
+		public int advance(int from, int doc) {
+			if (from >= docs.length || docs[from] >= doc)
+				return from;
+			// Gallop, then binary search: cheap for both near and far targets
+			int step = 1;
+			int lo = from;
+			int hi = from + 1;
+			while (hi < docs.length && docs[hi] < doc) {
+				lo = hi;
+				step <<= 1;
+				hi = from + step;
+			}
+			int i = Arrays.binarySearch(docs, lo + 1, Math.min(hi + 1, docs.length), doc);
+			return i >= 0 ? i : -i - 1;
+		}
+
+		/**
+		 * @return true if the document at index i has the term at the position
+		 */
+		public boolean hasPosition(int i, int position) {
+			return Arrays.binarySearch(positions, posStart[i], posStart[i + 1], position) >= 0;
+		}
+
+		int positionStart(int i) {
+			return posStart[i];
+		}
+
+		int positionEnd(int i) {
+			return posStart[i + 1];
+		}
+
+		int getPosition(int p) {
+			return positions[p];
+		}
+	}
+
+	/**
+	 * Collects the documents added since the last refresh.
+	 */
+	public static class Builder {
+		private final List<Object> ids = new ArrayList<Object>();
+		private final IntArray lengths = new IntArray();
+		private final Map<String, PostingsBuilder> terms = new HashMap<String, PostingsBuilder>();
+
+		/**
+		 * @param id
+		 *            the _id of the tweet
+		 * @param tokens
+		 *            the terms of the tweet, in order, see
+		 *            {@link TextAnalyzer#analyze(String)}
+		 */
+		public void add(Object id, List<String> tokens) {
+			int doc = ids.size();
+			ids.add(id);
+			lengths.add(tokens.size());
+			for (int position = 0; position < tokens.size(); position++) {
+				terms.computeIfAbsent(tokens.get(position), t -> new PostingsBuilder()).add(doc, position,
+						tokens.size());
+			}
+		}
+
+		public int size() {
+			return ids.size();
+		}
+
+		public TweetSegment build() {
+			if (ids.isEmpty()) {
+				return new TweetSegment(new Object[0], new int[0], Collections.<String, Postings> emptyMap());
+			}
+			return new TweetSegment(ids.toArray(), lengths.toArray(), seal(terms));
+		}
+	}
+
+	private static class PostingsBuilder {
+		final IntArray docs = new IntArray();
+		final IntArray freqs = new IntArray();
+		final IntArray posStart = new IntArray();
+		final IntArray positions = new IntArray();
+		int maxFreq;
+		int minLength = Integer.MAX_VALUE;
+
+		void add(int doc, int position, int length) {
+			if (docs.size == 0 || docs.get(docs.size - 1) != doc) {
+				docs.add(doc);
+				freqs.add(0);
+				posStart.add(positions.size);
+				minLength = Math.min(minLength, length);
+			}
+			int freq = freqs.get(freqs.size - 1) + 1;
+			freqs.set(freqs.size - 1, freq);
+			maxFreq = Math.max(maxFreq, freq);
+			positions.add(position);
+		}
+
+		void append(Postings postings, int base) {
+			int positionBase = positions.size;
+			for (int i = 0; i < postings.docs.length; i++) {
+				docs.add(base + postings.docs[i]);
+				freqs.add(postings.freqs[i]);
+				posStart.add(positionBase + postings.posStart[i]);
+			}
+			positions.addAll(postings.positions);
+			maxFreq = Math.max(maxFreq, postings.maxFreq);
+			minLength = Math.min(minLength, postings.minLength);
+		}
+
+		Postings build() {
+			posStart.add(positions.size);
+			return new Postings(docs.toArray(), freqs.toArray(), posStart.toArray(), positions.toArray(), maxFreq,
+					minLength);
+		}
+	}
+
+	/**
+	 * A growable int[], without boxing.
+	 */
+	private static class IntArray {
+		int[] values = new int[4];
+		int size;
+
+		void add(int value) {
+			if (size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+			values[size++] = value;
+		}
+
+		void addAll(int[] more) {
+			if (size + more.length > values.length)
+				values = Arrays.copyOf(values, Math.max(size * 2, size + more.length));
+			System.arraycopy(more, 0, values, size, more.length);
+			size += more.length;
+		}
+
+		int get(int i) {
+			return values[i];
+		}
+
+		void set(int i, int value) {
+			values[i] = value;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(values, size);
+		}
+	}
+}
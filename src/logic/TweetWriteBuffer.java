@@ -0,0 +1,507 @@
+package logic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.WriteModel;
+
+import logic.TweetBuckets.Appended;
+
+/**
+ * Write-behind buffer for incoming tweets. Tweets are collected until either
+ * maxBatch tweets are waiting or the oldest one has waited maxDelayMs. They
+ * are then written with one unordered insertMany into the tweets collection,
+ * one query for their movies, one bulk write of the {@link TweetBuckets} and
+ * one unordered bulk write of the movie counters, which are taken from the
+ * buckets. These writes can thus be repeated without counting tweets twice:
+ * if one of them fails, the inserted tweets are written again with the next
+ * flush, up to {@link #MAX_ATTEMPTS} times. Tweets that can't be inserted,
+ * or written after that, are counted as failed.
+ * <p>
+ * The queue is bounded: if MongoDB falls behind, {@link #add} blocks the
+ * caller (the Twitter stream) until the flusher has caught up.
+ */
+public class TweetWriteBuffer implements AutoCloseable {
+
+	public static final int DEFAULT_MAX_BATCH = 500;
+	public static final long DEFAULT_MAX_DELAY_MS = 1000;
+	public static final int DEFAULT_CAPACITY = 10000;
+	/** The number of flushes that try to write an inserted tweet */
+	public static final int MAX_ATTEMPTS = 3;
+
+	private final MongoCollection<Document> tweets;
+	private final MongoCollection<Document> movies;
+	private final TweetBuckets buckets;
+	private final int maxBatch;
+	private final long maxDelayMs;
+	private final BlockingQueue<PendingTweet> queue;
+	/** Run on the flusher thread before the next flush */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	/** Inserted tweets whose write failed, written again by the next flush */
+	private final List<PendingTweet> retries = new ArrayList<PendingTweet>();
+	private final Thread flusher;
+	private volatile boolean closed;
+	private volatile BiConsumer<String, Object> movieCreatedListener;
+	private volatile Runnable flushListener;
+	private volatile AppendListener appendListener;
+	private volatile Consumer<List<Document>> insertListener;
+
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedTweets = new AtomicLong();
+	private final AtomicLong failedTweets = new AtomicLong();
+	private final AtomicLong flushNanos = new AtomicLong();
+	private volatile long maxFlushNanos;
+	private volatile int lastFlushSize;
+	private volatile int retrying;
+
+	public TweetWriteBuffer(MongoCollection<Document> tweets, MongoCollection<Document> movies,
+			TweetBuckets buckets) {
+		this(tweets, movies, buckets, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY_MS, DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param tweets
+	 *            the collection for the raw tweets
+	 * @param movies
+	 *            the collection whose tweet counters are updated
+	 * @param buckets
+	 *            the buckets the tweets of the movies are appended to
+	 * @param maxBatch
+	 *            flush as soon as this many tweets are waiting
+	 * @param maxDelayMs
+	 *            flush at the latest after this many milliseconds
+	 * @param capacity
+	 *            number of waiting tweets after which add() blocks
+	 */
+	public TweetWriteBuffer(MongoCollection<Document> tweets, MongoCollection<Document> movies,
+			TweetBuckets buckets, int maxBatch, long maxDelayMs, int capacity) {
+		this.tweets = tweets;
+		this.movies = movies;
+		this.buckets = buckets;
+		this.maxBatch = maxBatch;
+		this.maxDelayMs = maxDelayMs;
+		this.queue = new ArrayBlockingQueue<PendingTweet>(capacity);
+		this.flusher = new Thread(this::run, "tweet-write-buffer");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Queue a tweet. Blocks while the buffer is full.
+	 *
+	 * @param movie
+	 *            the title of the movie the tweet belongs to
+	 * @param movieIds
+	 *            the _ids of the movies with that title, null or empty to
+	 *            update (or create) the movies by title
+	 * @param rawTweet
+	 *            the document for the tweets collection
+	 * @param tweet
+	 *            the document that is appended to the movie's tweets
+	 */
+	public void add(String movie, List<Object> movieIds, Document rawTweet, Document tweet) {
+		if (closed) {
+			throw new IllegalStateException("TweetWriteBuffer is closed");
+		}
+		try {
+			queue.put(new PendingTweet(movie, movieIds, rawTweet, tweet));
+			queued.incrementAndGet();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run() {
+		List<PendingTweet> batch = new ArrayList<PendingTweet>(maxBatch);
+		while (!closed || !queue.isEmpty() || !retries.isEmpty()) {
+			runTasks();
+			try {
+				PendingTweet first = queue.poll(maxDelayMs, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					if (!retries.isEmpty()) {
+						flush(batch);
+					}
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+				while (batch.size() < maxBatch) {
+					long remaining = deadline - System.nanoTime();
+					if (closed) {
+						queue.drainTo(batch, maxBatch - batch.size());
+						break;
+					}
+					PendingTweet next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next == null) {
+						break;
+					}
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				closed = true;
+			}
+			if (!batch.isEmpty()) {
+				runTasks();
+				flush(batch);
+				batch.clear();
+			}
+		}
+		runTasks();
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * Move the tweets that are still embedded in the movies to the buckets,
+	 * see {@link TweetBuckets#migrate(MongoCollection)}. The migration runs on
+	 * the flusher thread before the next flush, so no tweets are appended to
+	 * a movie while its tweets are moved. Tweets added meanwhile wait in the
+	 * queue.
+	 *
+	 * @return the number of migrated movies, once the migration is done
+	 */
+	public CompletableFuture<Long> migrate() {
+		CompletableFuture<Long> result = new CompletableFuture<Long>();
+		tasks.add(() -> {
+			try {
+				result.complete(buckets.migrate(movies));
+			} catch (RuntimeException e) {
+				e.printStackTrace();
+				result.completeExceptionally(e);
+			}
+		});
+		if (!flusher.isAlive()) {
+			runTasks();
+		}
+		return result;
+	}
+
+	/**
+	 * Insert the new tweets, then write them and the tweets to retry to the
+	 * buckets and the movies.
+	 */
+	private void flush(List<PendingTweet> batch) {
+		long start = System.nanoTime();
+		List<PendingTweet> written = new ArrayList<PendingTweet>(retries);
+		retries.clear();
+		try {
+			// Insert Raw Tweets
+			List<PendingTweet> inserted = insert(batch);
+			written.addAll(inserted);
+			Consumer<List<Document>> insertListener = this.insertListener;
+			if (insertListener != null) {
+				List<Document> raw = new ArrayList<Document>(inserted.size());
+				for (PendingTweet p : inserted) {
+					raw.add(p.rawTweet);
+				}
+				insertListener.accept(raw);
+			}
+		} catch (Exception e) {
+			failedTweets.addAndGet(batch.size());
+			System.err.println("Failed to insert " + batch.size() + " tweets: " + e.getMessage());
+		}
+		try {
+			if (!written.isEmpty()) {
+				write(written);
+				flushedTweets.addAndGet(written.size());
+			}
+		} catch (Exception e) {
+			int dropped = 0;
+			for (PendingTweet p : written) {
+				if (++p.attempts < MAX_ATTEMPTS) {
+					retries.add(p);
+				} else {
+					dropped++;
+				}
+			}
+			failedTweets.addAndGet(dropped);
+			System.err.println("Failed to write " + written.size() + " tweets, " + retries.size()
+					+ " are retried: " + e.getMessage());
+		} finally {
+			retrying = retries.size();
+			// Even a failed flush may have written some of the tweets
+			Runnable listener = flushListener;
+			if (listener != null) {
+				listener.run();
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		flushes.incrementAndGet();
+		flushNanos.addAndGet(elapsed);
+		maxFlushNanos = Math.max(maxFlushNanos, elapsed);
+		lastFlushSize = batch.size();
+	}
+
+	/**
+	 * Append inserted tweets to the buckets of their movies and update the
+	 * counters of the movies. Repeating it for the same tweets changes
+	 * nothing that was written before.
+	 */
+	private void write(List<PendingTweet> inserted) {
+		Map<Object, List<Document>> byId = new LinkedHashMap<Object, List<Document>>();
+		Map<Object, String> titles = new HashMap<Object, String>();
+		Map<String, List<Document>> byTitle = new LinkedHashMap<String, List<Document>>();
+		for (PendingTweet p : inserted) {
+			// The _id tells after a failed write whether the tweet made it
+			p.tweet.put("_id", p.rawTweet.get("_id"));
+			if (p.movieIds != null && !p.movieIds.isEmpty()) {
+				for (Object id : p.movieIds) {
+					byId.computeIfAbsent(id, k -> new ArrayList<Document>()).add(p.tweet);
+					titles.put(id, p.movie);
+				}
+			} else {
+				byTitle.computeIfAbsent(p.movie, k -> new ArrayList<Document>()).add(p.tweet);
+			}
+		}
+		// Look up the Movies, by _id if the matcher resolved them and by
+		// title otherwise
+		resolve(byId, titles, byTitle);
+		// Append the Tweets to the Buckets, then set the Counters of the
+		// Movies from them
+		List<Appended> appended = buckets.append(byId, titles);
+		List<WriteModel<Document>> updates = new ArrayList<WriteModel<Document>>(appended.size());
+		for (Appended a : appended) {
+			updates.add(TweetBuckets.movieUpdate(a));
+		}
+		if (!updates.isEmpty()) {
+			movies.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+		}
+		AppendListener appendListener = this.appendListener;
+		if (appendListener != null) {
+			for (Appended a : appended) {
+				appendListener.appended(a.getMovieId(), a.getPosition(), a.getTweets());
+			}
+		}
+	}
+
+	/**
+	 * Insert the raw tweets with one unordered insertMany. The tweets the
+	 * server rejects (e.g. because of a duplicate _id) are counted as failed
+	 * and dropped, the others are written on.
+	 *
+	 * @return the inserted tweets
+	 */
+	private List<PendingTweet> insert(List<PendingTweet> batch) {
+		List<Document> raw = new ArrayList<Document>(batch.size());
+		for (PendingTweet p : batch) {
+			raw.add(p.rawTweet);
+		}
+		try {
+			tweets.insertMany(raw, new InsertManyOptions().ordered(false));
+			return batch;
+		} catch (MongoBulkWriteException e) {
+			Set<Integer> rejected = new HashSet<Integer>();
+			for (BulkWriteError error : e.getWriteErrors()) {
+				rejected.add(error.getIndex());
+			}
+			if (rejected.isEmpty()) {
+				// Only the write concern failed, the tweets are written
+				return batch;
+			}
+			List<PendingTweet> inserted = new ArrayList<PendingTweet>(batch.size() - rejected.size());
+			for (int i = 0; i < batch.size(); i++) {
+				if (!rejected.contains(i))
+					inserted.add(batch.get(i));
+			}
+			failedTweets.addAndGet(rejected.size());
+			System.err.println("Dropped " + rejected.size() + " of " + batch.size() + " tweets: "
+					+ e.getWriteErrors().get(0).getMessage());
+			return inserted;
+		}
+	}
+
+	/**
+	 * Find the movies of the tweets with one query. Tweets of unknown _ids
+	 * are dropped, movies of unknown titles are created. The tweets of a
+	 * title go to every movie with that title.
+	 *
+	 * @param byId
+	 *            the tweets by movie _id, receives the tweets of the titles
+	 * @param titles
+	 *            the titles by movie _id, receives the titles of byTitle
+	 * @param byTitle
+	 *            the tweets of movies without known _id, by title
+	 */
+	private void resolve(Map<Object, List<Document>> byId, Map<Object, String> titles,
+			Map<String, List<Document>> byTitle) {
+		Set<Object> found = new HashSet<Object>();
+		Map<String, List<Object>> idsByTitle = new HashMap<String, List<Object>>();
+		for (Document movie : movies.find(Filters.or(Filters.in("_id", byId.keySet()),
+				Filters.in("title", byTitle.keySet()))).projection(new Document("title", true))) {
+			found.add(movie.get("_id"));
+			if (byTitle.containsKey(movie.getString("title")))
+				idsByTitle.computeIfAbsent(movie.getString("title"), k -> new ArrayList<Object>())
+						.add(movie.get("_id"));
+		}
+		byId.keySet().retainAll(found);
+		titles.keySet().retainAll(found);
+		List<Document> created = new ArrayList<Document>();
+		for (String title : byTitle.keySet()) {
+			if (!idsByTitle.containsKey(title)) {
+				Document movie = new Document("_id", new ObjectId()).append("title", title);
+				created.add(movie);
+				idsByTitle.put(title, Collections.singletonList(movie.get("_id")));
+			}
+		}
+		if (!created.isEmpty()) {
+			movies.insertMany(created, new InsertManyOptions().ordered(false));
+			BiConsumer<String, Object> listener = movieCreatedListener;
+			if (listener != null) {
+				for (Document movie : created) {
+					listener.accept(movie.getString("title"), movie.get("_id"));
+				}
+			}
+		}
+		for (Map.Entry<String, List<Document>> movie : byTitle.entrySet()) {
+			for (Object id : idsByTitle.get(movie.getKey())) {
+				byId.computeIfAbsent(id, k -> new ArrayList<Document>()).addAll(movie.getValue());
+				titles.put(id, movie.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Register a callback for movies that are created by the title upsert of
+	 * a flush. It receives the title and the _id of the new movie.
+	 */
+	public void setMovieCreatedListener(BiConsumer<String, Object> listener) {
+		this.movieCreatedListener = listener;
+	}
+
+	/**
+	 * Register a callback that runs after every flush, once the tweets are
+	 * written.
+	 */
+	public void setFlushListener(Runnable listener) {
+		this.flushListener = listener;
+	}
+
+	/**
+	 * Register a callback for the raw tweets inserted by a flush, with the
+	 * _ids they were inserted with.
+	 */
+	public void setInsertListener(Consumer<List<Document>> listener) {
+		this.insertListener = listener;
+	}
+
+	/**
+	 * Register a callback for the tweets that were appended to the buckets
+	 * of a movie by a flush.
+	 */
+	public void setAppendListener(AppendListener listener) {
+		this.appendListener = listener;
+	}
+
+	/**
+	 * Receives the tweets appended to a movie.
+	 */
+	public interface AppendListener {
+		/**
+		 * @param movieId
+		 *            the _id of the movie
+		 * @param position
+		 *            the position of the first new tweet among the tweets
+		 *            of the movie
+		 * @param tweets
+		 *            the new tweets, oldest first
+		 */
+		void appended(Object movieId, long position, List<Document> tweets);
+	}
+
+	/**
+	 * Block until every tweet queued so far is written.
+	 */
+	public void awaitFlush() {
+		long target = queued.get();
+		while (flushedTweets.get() + failedTweets.get() < target && flusher.isAlive()) {
+			try {
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Flush all waiting tweets and stop the flusher thread.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		System.out.println("Tweet write buffer closed: " + getStats().toJson());
+	}
+
+	/**
+	 * Flush sizes, flush latencies and the current queue depth.
+	 *
+	 * @return the statistics of this buffer
+	 */
+	public Document getStats() {
+		long n = flushes.get();
+		return new Document("queueDepth", queue.size())
+				.append("flushes", n)
+				.append("flushedTweets", flushedTweets.get())
+				.append("failedTweets", failedTweets.get())
+				.append("retryingTweets", retrying)
+				.append("lastFlushSize", lastFlushSize)
+				.append("avgFlushSize", n == 0 ? 0.0 : (double) (flushedTweets.get() + failedTweets.get()) / n)
+				.append("avgFlushMs", n == 0 ? 0.0 : flushNanos.get() / 1e6 / n)
+				.append("maxFlushMs", maxFlushNanos / 1e6);
+	}
+
+	private static class PendingTweet {
+		final String movie;
+		final List<Object> movieIds;
+		final Document rawTweet;
+		final Document tweet;
+		/** The failed writes of the inserted tweet */
+		int attempts;
+
+		PendingTweet(String movie, List<Object> movieIds, Document rawTweet, Document tweet) {
+			this.movie = movie;
+			this.movieIds = movieIds;
+			this.rawTweet = rawTweet;
+			this.tweet = tweet;
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package twitter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.function.IntConsumer;
+
+/**
+ * Aho-Corasick automaton that finds all keywords in a text in a single pass.
+ * The automaton is built once and can be shared between threads. Matching is
+ * case-insensitive, respects word boundaries (a keyword must neither be
+ * preceded nor followed by a letter or digit) and does not allocate.
+ */
+public class KeywordMatcher {
+
+	private final String[] keywords;
+	private final int[] lengths;
+
+	/** Sorted outgoing characters of every node. */
+	private final char[][] edgeChars;
+	/** Target nodes, parallel to edgeChars. */
+	private final int[][] edgeTargets;
+	/** Failure link of every node. */
+	private final int[] fail;
+	/** Keywords that end in every node, including those of the failure chain. */
+	private final int[][] outputs;
+
+	private final ThreadLocal<Marks> marks = new ThreadLocal<Marks>() {
+		@Override
+		protected Marks initialValue() {
+			return new Marks(KeywordMatcher.this.keywords.length);
+		}
+	};
+
+	/**
+	 * Build the automaton.
+	 *
+	 * @param keywords
+	 *            the keywords, the index of a keyword is its id
+	 */
+	public KeywordMatcher(String... keywords) {
+		this.keywords = keywords.clone();
+		this.lengths = new int[keywords.length];
+
+		// Build the trie with maps first, then compact it into arrays
+		List<TreeMap<Character, Integer>> children = new ArrayList<TreeMap<Character, Integer>>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		children.add(new TreeMap<Character, Integer>());
+		ends.add(new ArrayList<Integer>());
+		for (int k = 0; k < keywords.length; k++) {
+			String keyword = keywords[k];
+			lengths[k] = keyword.length();
+			if (keyword.isEmpty())
+				continue;
+			int node = 0;
+			for (int i = 0; i < keyword.length(); i++) {
+				char c = fold(keyword.charAt(i));
+				Integer next = children.get(node).get(c);
+				if (next == null) {
+					next = children.size();
+					children.add(new TreeMap<Character, Integer>());
+					ends.add(new ArrayList<Integer>());
+					children.get(node).put(c, next);
+				}
+				node = next;
+			}
+			ends.get(node).add(k);
+		}
+
+		int size = children.size();
+		edgeChars = new char[size][];
+		edgeTargets = new int[size][];
+		for (int n = 0; n < size; n++) {
+			TreeMap<Character, Integer> map = children.get(n);
+			edgeChars[n] = new char[map.size()];
+			edgeTargets[n] = new int[map.size()];
+			int i = 0;
+			for (Map.Entry<Character, Integer> e : map.entrySet()) {
+				edgeChars[n][i] = e.getKey();
+				edgeTargets[n][i] = e.getValue();
+				i++;
+			}
+		}
+
+		// Breadth-first computation of the failure links and outputs
+		fail = new int[size];
+		outputs = new int[size][];
+		outputs[0] = toArray(ends.get(0));
+		Queue<Integer> queue = new ArrayDeque<Integer>();
+		for (int target : edgeTargets[0]) {
+			fail[target] = 0;
+			queue.add(target);
+		}
+		while (!queue.isEmpty()) {
+			int node = queue.poll();
+			outputs[node] = merge(toArray(ends.get(node)), outputs[fail[node]]);
+			for (int i = 0; i < edgeChars[node].length; i++) {
+				char c = edgeChars[node][i];
+				int target = edgeTargets[node][i];
+				int f = fail[node];
+				while (f != 0 && next(f, c) < 0)
+					f = fail[f];
+				int fn = next(f, c);
+				fail[target] = fn >= 0 && fn != target ? fn : 0;
+				queue.add(target);
+			}
+		}
+	}
+
+	/**
+	 * Report every keyword that occurs in the text as a whole word. Each
+	 * keyword is reported at most once per call, in the order of its first
+	 * occurrence.
+	 *
+	 * @param text
+	 *            the text to search
+	 * @param handler
+	 *            receives the ids of the matching keywords
+	 * @return the number of distinct matching keywords
+	 */
+	public int forEachMatch(CharSequence text, IntConsumer handler) {
+		Marks m = marks.get();
+		int stamp = m.next();
+		int found = 0;
+		int node = 0;
+		int n = text.length();
+		for (int i = 0; i < n; i++) {
+			char c = fold(text.charAt(i));
+			int target;
+			while ((target = next(node, c)) < 0 && node != 0)
+				node = fail[node];
+			node = target < 0 ? 0 : target;
+			for (int k : outputs[node]) {
+				if (m.seen[k] == stamp || !isWordMatch(text, i + 1 - lengths[k], i + 1))
+					continue;
+				m.seen[k] = stamp;
+				found++;
+				handler.accept(k);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return true if the text contains at least one keyword
+	 */
+	public boolean matches(CharSequence text) {
+		return forEachMatch(text, k -> {
+		}) > 0;
+	}
+
+	/**
+	 * @return the keyword with the given id
+	 */
+	public String getKeyword(int id) {
+		return keywords[id];
+	}
+
+	/**
+	 * @return the number of keywords
+	 */
+	public int size() {
+		return keywords.length;
+	}
+
+	private int next(int node, char c) {
+		int i = Arrays.binarySearch(edgeChars[node], c);
+		return i >= 0 ? edgeTargets[node][i] : -1;
+	}
+
+	private static boolean isWordMatch(CharSequence text, int start, int end) {
+		return (start == 0 || !Character.isLetterOrDigit(text.charAt(start - 1)))
+				&& (end == text.length() || !Character.isLetterOrDigit(text.charAt(end)));
+	}
+
+	private static char fold(char c) {
+		return Character.toLowerCase(c);
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] result = new int[list.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = list.get(i);
+		return result;
+	}
+
+	private static int[] merge(int[] a, int[] b) {
+		if (b.length == 0)
+			return a;
+		int[] result = Arrays.copyOf(a, a.length + b.length);
+		System.arraycopy(b, 0, result, a.length, b.length);
+		return result;
+	}
+
+	/**
+	 * Per-thread marks to report each keyword only once per text.
+	 */
+	private static class Marks {
+		final int[] seen;
+		int stamp;
+
+		Marks(int size) {
+			seen = new int[size];
+		}
+
+		int next() {
+			if (++stamp == 0) {
+				Arrays.fill(seen, 0);
+				stamp = 1;
+			}
+			return stamp;
+		}
+	}
+}
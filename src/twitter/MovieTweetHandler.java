@@ -1,33 +1,58 @@
 package twitter;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.Document;
+
 import logic.MovieService;
 import twitter4j.Status;
 
-public class MovieTweetHandler extends TweetListener {
+public class MovieTweetHandler extends TweetListener implements AutoCloseable {
 
 	private MovieService ms;
+	private List<List<Object>> movieIds;
+	private final TweetPipeline pipeline;
 
 	public MovieTweetHandler(MovieService ms, int limit, String[] keywords) {
 		super(limit, keywords);
 		this.ms = ms;
+		// Resolve every keyword to its movies once, so tweets can be saved by _id
+		Map<String, List<Object>> ids = ms.findMovieIds(rawKeywords);
+		this.movieIds = new ArrayList<List<Object>>(rawKeywords.length);
+		for (String keyword : rawKeywords) {
+			movieIds.add(ids.get(keyword));
+		}
+		// Matching and saving run on the pipeline's threads, not on Twitter's
+		this.pipeline = TweetPipeline.fromProperties(ms, matcher, rawKeywords, movieIds);
 	}
 
 	@Override
-	public void onTweet(Status status) {
-		String text = status.getText().toLowerCase();
-		boolean matched = false;
-		for(String[] block: blocks) {
-			for (String keyword : block) {
-				// Check, which keyword the Tweet matches
-				if (text.contains(keyword.toLowerCase())) {
-					ms.saveTweet(keyword, status);
-					matched = true;
-				}
-			}
-		}
-		if (!matched) {
-			//System.err.println("No match for tweet @" + status.getUser().getName() + ": " + status.getText());
-		}
+	public void onTweet(Status status, String rawJson) {
+		pipeline.publish(status, rawJson);
+	}
+
+	/**
+	 * @return the statistics of the tweet pipeline
+	 */
+	public Document getPipelineStats() {
+		return pipeline.getStats();
+	}
+
+	/**
+	 * @return the number of tweets saved, once per matched movie
+	 */
+	public long getStored() {
+		return pipeline.getStored();
+	}
+
+	/**
+	 * Save the tweets that are still in the pipeline and stop it.
+	 */
+	@Override
+	public void close() {
+		pipeline.close();
 	}
 
 }
\ No newline at end of file
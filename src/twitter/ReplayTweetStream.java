@@ -0,0 +1,310 @@
+package twitter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+import org.bson.Document;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriterSettings;
+
+import logic.BulkLoader;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+/**
+ * Replays recorded tweets, e.g. the export of the tweets collection in
+ * /data/tweets.json, to load-test the ingestion path without the Twitter
+ * API. Every record is turned into a {@link Status} with
+ * {@link TwitterObjectFactory} and handed to the listener on one delivery
+ * thread, either as fast as possible or at a fixed rate in bursts, with
+ * random jitter between the bursts. The keywords of the filter don't select
+ * the records, but a share of them can be made to match by appending one of
+ * the keywords to their text. With the same seed and settings a run
+ * delivers the same tweets in the same order.
+ */
+public class ReplayTweetStream extends TweetStream {
+
+	private static final JsonWriterSettings JSON = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED).build();
+	/** Behind schedule by more than this, the schedule is restarted instead of catching up */
+	private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+	private static final long JOIN_TIMEOUT_MS = 10000;
+
+	private static String cachedFile;
+	private static List<Record> cachedRecords;
+
+	private final List<Record> records;
+	private final double rate;
+	private final int burst;
+	private final double jitter;
+	private final double hitRatio;
+	private final boolean loop;
+	private final Random random;
+	private TweetListener listener;
+	private Thread thread;
+	/** Incremented to end the current delivery thread */
+	private int generation;
+	/** The next record, kept across filters */
+	private int position;
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private long startedNanos;
+
+	/**
+	 * @param file
+	 *            the recorded tweets, one JSON document per line, a file or
+	 *            a resource on the classpath
+	 * @param rate
+	 *            tweets per second, 0 for as fast as possible
+	 * @param burst
+	 *            the number of tweets delivered at once
+	 * @param jitter
+	 *            the random variation of the time between two bursts, as
+	 *            fraction of it, from 0 to 1
+	 * @param hitRatio
+	 *            the share of tweets that get a keyword of the filter, -1
+	 *            to deliver the recorded text unchanged
+	 * @param seed
+	 *            the seed of the random numbers
+	 * @param loop
+	 *            start over at the end of the records, otherwise the
+	 *            listener is stopped there
+	 */
+	public ReplayTweetStream(String file, double rate, int burst, double jitter, double hitRatio, long seed,
+			boolean loop) {
+		if (rate < 0 || burst < 1 || jitter < 0 || jitter > 1 || hitRatio > 1) {
+			throw new IllegalArgumentException("Invalid replay settings");
+		}
+		this.records = load(file);
+		if (records.isEmpty()) {
+			throw new IllegalArgumentException("No tweets in " + file);
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.jitter = jitter;
+		this.hitRatio = hitRatio;
+		this.loop = loop;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * The replay configured with "replay.file", "replay.rate",
+	 * "replay.burst", "replay.jitter", "replay.hitRatio", "replay.seed" and
+	 * "replay.loop".
+	 */
+	public static ReplayTweetStream fromProperties() {
+		return new ReplayTweetStream(System.getProperty("replay.file", "/data/tweets.json"),
+				Double.parseDouble(System.getProperty("replay.rate", "0")), Integer.getInteger("replay.burst", 1),
+				Double.parseDouble(System.getProperty("replay.jitter", "0")),
+				Double.parseDouble(System.getProperty("replay.hitRatio", "-1")), Long.getLong("replay.seed", 42),
+				Boolean.parseBoolean(System.getProperty("replay.loop", "true")));
+	}
+
+	/**
+	 * Read the records once and keep them for the next replay of the same
+	 * file, so consecutive runs don't measure the parsing of the file.
+	 */
+	private static synchronized List<Record> load(String file) {
+		if (file.equals(cachedFile)) {
+			return cachedRecords;
+		}
+		long start = System.currentTimeMillis();
+		List<Record> records = new ArrayList<Record>();
+		Path path = Paths.get(file);
+		if (Files.isRegularFile(path)) {
+			try (Stream<String> lines = Files.lines(path)) {
+				lines.forEach(line -> parse(line, records));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		} else {
+			for (Iterator<String> lines = BulkLoader.lines(file); lines.hasNext();) {
+				parse(lines.next(), records);
+			}
+		}
+		System.out.println("Loaded " + records.size() + " tweets to replay from " + file + " in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		cachedFile = file;
+		cachedRecords = Collections.unmodifiableList(records);
+		return cachedRecords;
+	}
+
+	private static void parse(String line, List<Record> records) {
+		if (line.trim().isEmpty())
+			return;
+		// Drop what was added when the tweet was saved, keep what Twitter sent
+		Document doc = Document.parse(line);
+		doc.remove("_id");
+		doc.remove("movie");
+		records.add(new Record(doc));
+	}
+
+	@Override
+	protected synchronized void addListener(TweetListener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public synchronized void filter(String[] track) {
+		if (thread != null) {
+			throw new IllegalStateException("The replay is already running");
+		}
+		if (startedNanos == 0)
+			startedNanos = System.nanoTime();
+		int current = ++generation;
+		String[] keywords = track.clone();
+		thread = new Thread(() -> deliver(current, keywords), "tweet-replay");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void cleanUp() {
+		Thread t;
+		synchronized (this) {
+			generation++;
+			t = thread;
+			thread = null;
+		}
+		// The listener switches to the next block on the delivery thread, it
+		// ends once the call returns
+		if (t == null || t == Thread.currentThread())
+			return;
+		LockSupport.unpark(t);
+		try {
+			t.join(JOIN_TIMEOUT_MS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public void shutdown() {
+		cleanUp();
+		if (startedNanos == 0)
+			return;
+		long seconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startedNanos));
+		System.out.println("Replayed " + delivered.get() + " tweets (" + hits.get() + " with a keyword, "
+				+ errors.get() + " invalid) at " + delivered.get() / seconds + " tweets/s");
+	}
+
+	private void deliver(int current, String[] track) {
+		// Nanoseconds per burst
+		long interval = rate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) * burst / rate) : 0;
+		long next = System.nanoTime();
+		while (true) {
+			for (int i = 0; i < burst; i++) {
+				String json = nextRecord(current, track);
+				if (json == null)
+					return;
+				send(json);
+			}
+			if (interval > 0) {
+				long gap = nextGap(current, interval);
+				if (gap < 0)
+					return;
+				next += gap;
+				long now = System.nanoTime();
+				if (now - next > MAX_LAG_NANOS) {
+					next = now;
+				}
+				while ((now = System.nanoTime()) < next && isCurrent(current)) {
+					LockSupport.parkNanos(next - now);
+				}
+			}
+		}
+	}
+
+	private synchronized boolean isCurrent(int current) {
+		return current == generation;
+	}
+
+	/**
+	 * @return the JSON of the next tweet, null if the delivery thread has to
+	 *         end
+	 */
+	private synchronized String nextRecord(int current, String[] track) {
+		if (current != generation)
+			return null;
+		if (position == records.size()) {
+			if (!loop) {
+				generation++;
+				thread = null;
+				// Not from within the lock, stop() cleans up the stream
+				new Thread(listener::stop, "tweet-replay-end").start();
+				return null;
+			}
+			position = 0;
+		}
+		Record record = records.get(position++);
+		if (hitRatio >= 0 && track.length > 0 && random.nextDouble() < hitRatio) {
+			hits.incrementAndGet();
+			return record.withKeyword(track[random.nextInt(track.length)]);
+		}
+		return record.json;
+	}
+
+	/**
+	 * @return the time until the next burst, -1 if the delivery thread has
+	 *         to end
+	 */
+	private synchronized long nextGap(int current, long interval) {
+		if (current != generation)
+			return -1;
+		return (long) (interval * (1 + jitter * (2 * random.nextDouble() - 1)));
+	}
+
+	private void send(String json) {
+		Status status;
+		try {
+			status = TwitterObjectFactory.createStatus(json);
+		} catch (TwitterException e) {
+			// Skip the record, like the stream skips what it can't parse
+			errors.incrementAndGet();
+			return;
+		}
+		delivered.incrementAndGet();
+		try {
+			listener.onStatus(status, json);
+		} catch (RuntimeException e) {
+			listener.onException(e);
+		}
+	}
+
+	/**
+	 * A recorded tweet, its JSON is created once.
+	 */
+	private static class Record {
+		final Document doc;
+		final String json;
+
+		Record(Document doc) {
+			this.doc = doc;
+			this.json = doc.toJson(JSON);
+		}
+
+		/**
+		 * @return the JSON of the tweet with the keyword appended to its text
+		 */
+		String withKeyword(String keyword) {
+			Document copy = new Document(doc);
+			String text = doc.getString("text");
+			copy.put("text", text == null ? keyword : text + " " + keyword);
+			return copy.toJson(JSON);
+		}
+	}
+
+}
@@ -0,0 +1,127 @@
+package twitter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO over an array that is allocated once. Besides blocking and
+ * failing when it is full, it can make room by dropping its oldest element,
+ * which a BlockingQueue can't do atomically.
+ */
+public class RingBuffer<T> {
+
+	private final Object[] items;
+	private int head;
+	private int count;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+
+	public RingBuffer(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be positive");
+		}
+		items = new Object[capacity];
+	}
+
+	/**
+	 * Add an element, wait while the buffer is full.
+	 */
+	public void put(T item) throws InterruptedException {
+		lock.lockInterruptibly();
+		try {
+			while (count == items.length) {
+				notFull.await();
+			}
+			enqueue(item);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add an element if there is room.
+	 *
+	 * @return false if the buffer is full
+	 */
+	public boolean offer(T item) {
+		lock.lock();
+		try {
+			if (count == items.length)
+				return false;
+			enqueue(item);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Add an element, drop the oldest one if the buffer is full.
+	 *
+	 * @return the dropped element, null if there was room
+	 */
+	public T offerDropOldest(T item) {
+		lock.lock();
+		try {
+			T dropped = null;
+			if (count == items.length) {
+				dropped = dequeue();
+			}
+			enqueue(item);
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Take the oldest element, wait at most the timeout for one.
+	 *
+	 * @return the element, null if the buffer stayed empty
+	 */
+	public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lockInterruptibly();
+		try {
+			while (count == 0) {
+				if (nanos <= 0)
+					return null;
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return dequeue();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int size() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int capacity() {
+		return items.length;
+	}
+
+	private void enqueue(T item) {
+		items[(head + count) % items.length] = item;
+		count++;
+		notEmpty.signal();
+	}
+
+	@SuppressWarnings("unchecked")
+	private T dequeue() {
+		T item = (T) items[head];
+		items[head] = null;
+		head = (head + 1) % items.length;
+		count--;
+		notFull.signal();
+		return item;
+	}
+}
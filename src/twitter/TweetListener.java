@@ -3,32 +3,39 @@ package twitter;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang3.ArrayUtils;
 
-import twitter4j.FilterQuery;
 import twitter4j.StallWarning;
 import twitter4j.Status;
 import twitter4j.StatusDeletionNotice;
 import twitter4j.StatusListener;
-import twitter4j.TwitterStream;
+import twitter4j.TwitterObjectFactory;
 
 public abstract class TweetListener implements StatusListener {
 	protected final Lock lock = new ReentrantLock();
 	protected final Condition done = lock.newCondition();
 	protected int limit;
-	protected TwitterStream ts;
+	protected TweetStream ts;
 	protected HashSet<String> keywordSet;
 	protected String[] rawKeywords;
 	protected List<String[]> blocks;
+	protected KeywordMatcher matcher;
 	protected int currentBlock;
-	protected int currentLimit;
+	/** Tweets left in the current block, counted down by concurrent dispatcher threads */
+	protected final AtomicInteger currentLimit = new AtomicInteger();
 	protected int perBlock;
 	protected boolean ignoreUntagged;
-	protected TweetStream tweetStream;
+	protected final AtomicLong seen = new AtomicLong();
+	protected final AtomicLong accepted = new AtomicLong();
+	private boolean finished;
+	private volatile boolean stopped;
+	private volatile Exception error;
 
 	public TweetListener(int limit, String... keywords) {
 		int blockSize = 50;
@@ -42,52 +49,108 @@ public abstract class TweetListener implements StatusListener {
 		}
 		this.blocks = new ArrayList<String[]>();
 		this.rawKeywords = this.keywordSet.toArray(new String[0]);
+		// Precompile all keywords, ids of the matcher are indexes in rawKeywords
+		this.matcher = new KeywordMatcher(this.rawKeywords);
 		for (int i = 0; i - blockSize < this.rawKeywords.length; i += blockSize) {
 			String[] sub = ArrayUtils.subarray(this.rawKeywords, i, i + blockSize);
 			if(sub.length > 0)
 				blocks.add(sub);
 		}
 		this.perBlock = limit / blocks.size();
-		this.currentLimit = this.perBlock;
+		this.currentLimit.set(this.perBlock);
 	}
 
-	public abstract void onTweet(Status status);
-
-	public void start(TwitterStream ts) {
+	/**
+	 * @param rawJson
+	 *            the tweet as received, null if the stream doesn't keep it
+	 */
+	public abstract void onTweet(Status status, String rawJson);
+
+	/**
+	 * Listen to the stream until the limit of the last block is reached,
+	 * the stream failed or {@link #stop()} was called.
+	 */
+	public void start(TweetStream ts) {
 		this.ts = ts;
-		filter();
+		synchronized (this) {
+			if (stopped)
+				return;
+			filter();
+		}
 		lock.lock();
 		try {
-			done.await();
+			while (!finished) {
+				done.await();
+			}
 		} catch (InterruptedException e) {
-			e.printStackTrace();
+			Thread.currentThread().interrupt();
+			stop();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Stop listening, {@link #start(TweetStream)} returns.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		finish();
+	}
+
+	private synchronized void finish() {
+		if (ts != null) {
+			ts.cleanUp();
+		}
+		lock.lock();
+		try {
+			finished = true;
+			done.signalAll();
+		} finally {
+			lock.unlock();
 		}
-		lock.unlock();
 	}
 
 	public void filter() {
 		System.err.println("\nWorking on Block: " + ArrayUtils.toString(blocks.get(currentBlock)));
-		FilterQuery filterQuery = new FilterQuery(0, null, blocks.get(currentBlock));
-		this.ts.filter(filterQuery);
+		this.ts.filter(blocks.get(currentBlock));
 	}
 
 	public void onStatus(Status status) {
+		// The raw JSON is only available on the thread that received the tweet
+		onStatus(status, TwitterObjectFactory.getRawJSON(status));
+	}
+
+	/**
+	 * Take a tweet of a stream that has its raw JSON at hand, e.g. a
+	 * {@link ReplayTweetStream}.
+	 */
+	public void onStatus(Status status, String rawJson) {
+		seen.incrementAndGet();
 		if(ignoreUntagged && status.getGeoLocation() == null)
 			return;
-		else
-			onTweet(status);
-		//Check if Limit reached
-		if (--currentLimit == 0) {
-			if (++currentBlock < blocks.size()) {
-				currentLimit = perBlock;
-				ts.cleanUp();
-				filter();
-			} else {
-				ts.cleanUp();
-				lock.lock();
-				done.signal();
-				lock.unlock();
-			}
+		// Claim a tweet of the block's limit. Only perBlock tweets get one,
+		// later ones arrive while the next filter is set up and are ignored
+		int left = currentLimit.getAndDecrement();
+		if (left <= 0)
+			return;
+		onTweet(status, rawJson);
+		accepted.incrementAndGet();
+		//Check if Limit reached, exactly one thread took the last tweet
+		if (left == 1) {
+			nextBlock();
+		}
+	}
+
+	private synchronized void nextBlock() {
+		if (stopped)
+			return;
+		if (++currentBlock < blocks.size()) {
+			ts.cleanUp();
+			filter();
+			currentLimit.set(perBlock);
+		} else {
+			finish();
 		}
 	}
 	
@@ -103,7 +166,8 @@ public abstract class TweetListener implements StatusListener {
 
 	public void onException(Exception ex) {
 		ex.printStackTrace();
-		ts.shutdown();
+		error = ex;
+		finish();
 	}
 
 	public void onScrubGeo(long arg0, long arg1) {
@@ -113,12 +177,40 @@ public abstract class TweetListener implements StatusListener {
 	}
 	
 
-	public TweetStream getTweetStream() {
-		return tweetStream;
+	/**
+	 * @return the index of the block of keywords that is filtered
+	 */
+	public int getCurrentBlock() {
+		return Math.min(currentBlock, blocks.size() - 1);
+	}
+
+	public int getBlockCount() {
+		return blocks.size();
+	}
+
+	/**
+	 * @return the number of tweets received, including ignored ones
+	 */
+	public long getSeen() {
+		return seen.get();
+	}
+
+	/**
+	 * @return the number of tweets passed to {@link #onTweet(Status, String)}
+	 */
+	public long getAccepted() {
+		return accepted.get();
+	}
+
+	/**
+	 * @return the exception that ended the stream, null if there was none
+	 */
+	public Exception getError() {
+		return error;
 	}
 
-	public void setTweetStream(TweetStream tweetStream) {
-		this.tweetStream = tweetStream;
+	public boolean isStopped() {
+		return stopped;
 	}
 
 
@@ -0,0 +1,495 @@
+package twitter;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import logic.MovieService;
+import twitter4j.Status;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+/**
+ * Staged processing of the tweets of a stream, so the Twitter delivery
+ * thread only hands tweets over and never waits for MongoDB:
+ * <ol>
+ * <li>the listener publishes the tweet and its raw JSON into a bounded
+ * {@link RingBuffer},</li>
+ * <li>the matcher thread finds the keywords of the tweet,</li>
+ * <li>the enrichment thread creates the documents,</li>
+ * <li>a pool of writers saves them for every matched movie.</li>
+ * </ol>
+ * The stages are connected by small bounded queues, so a slow stage makes
+ * the tweets pile up in the ring buffer. What happens when it is full is
+ * the {@link Overflow} policy.
+ */
+public class TweetPipeline implements AutoCloseable {
+
+	public enum Overflow {
+		/** Block the delivery thread until there is room */
+		BLOCK,
+		/** Drop the oldest tweet that wasn't matched yet */
+		DROP_OLDEST,
+		/**
+		 * Append the tweet to a file, it is processed while the buffer is
+		 * below its low-water mark, tweets over the spill limit are dropped
+		 */
+		SPILL
+	}
+
+	private static final int STAGE_QUEUE_SIZE = 256;
+	private static final long POLL_MS = 100;
+	/** Spilled tweets are read back while the ring buffer is at most 1/4 full */
+	private static final int LOW_WATER_DIVISOR = 4;
+	private static final Event END = new Event(null, null, 0);
+
+	private final MovieService ms;
+	private final KeywordMatcher matcher;
+	private final String[] keywords;
+	private final List<List<Object>> movieIds;
+	private final Overflow overflow;
+	private final Path spillFile;
+	private final long spillLimit;
+	private final RingBuffer<Event> ring;
+	private final int lowWater;
+	private final BlockingQueue<Event> matched = new ArrayBlockingQueue<Event>(STAGE_QUEUE_SIZE);
+	private final BlockingQueue<Event> enriched = new ArrayBlockingQueue<Event>(STAGE_QUEUE_SIZE);
+	private final List<Thread> threads = new ArrayList<Thread>();
+	private final int writers;
+	private volatile boolean closed;
+
+	private BufferedWriter spillWriter;
+	/** Tweets in the spill file, guarded by this */
+	private long spillPending;
+	/** Tweets of the file being drained that weren't read yet, guarded by this */
+	private long drainPending;
+	/** Only used by the matcher thread */
+	private BufferedReader drainReader;
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong spilled = new AtomicLong();
+	private final AtomicLong unmatched = new AtomicLong();
+	private final AtomicLong stored = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final Stage matchStage = new Stage();
+	private final Stage enrichStage = new Stage();
+	private final Stage writeStage = new Stage();
+
+	/**
+	 * @param ms
+	 *            the service to save the tweets with
+	 * @param matcher
+	 *            the matcher of the keywords
+	 * @param keywords
+	 *            the movie titles, by keyword id of the matcher
+	 * @param movieIds
+	 *            the _ids of the movies, by keyword id, null entries if
+	 *            unknown
+	 * @param capacity
+	 *            the size of the ring buffer
+	 * @param writers
+	 *            the number of writer threads
+	 * @param overflow
+	 *            what to do when the ring buffer is full
+	 * @param spillFile
+	 *            the file for {@link Overflow#SPILL}
+	 * @param spillLimit
+	 *            the maximum number of spilled tweets waiting to be
+	 *            processed
+	 */
+	public TweetPipeline(MovieService ms, KeywordMatcher matcher, String[] keywords, List<List<Object>> movieIds,
+			int capacity, int writers, Overflow overflow, Path spillFile, long spillLimit) {
+		this.ms = ms;
+		this.matcher = matcher;
+		this.keywords = keywords;
+		this.movieIds = movieIds;
+		this.ring = new RingBuffer<Event>(capacity);
+		this.lowWater = capacity / LOW_WATER_DIVISOR;
+		this.writers = writers;
+		this.overflow = overflow;
+		this.spillFile = spillFile;
+		this.spillLimit = spillLimit;
+		threads.add(new Thread(this::match, "tweet-match"));
+		threads.add(new Thread(this::enrich, "tweet-enrich"));
+		for (int i = 1; i <= writers; i++) {
+			threads.add(new Thread(this::write, "tweet-write-" + i));
+		}
+		for (Thread thread : threads) {
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Configured by "tweets.pipeline.capacity", "tweets.pipeline.writers",
+	 * "tweets.pipeline.overflow" (block, drop_oldest or spill),
+	 * "tweets.pipeline.spillDir" and "tweets.pipeline.spillLimit".
+	 */
+	public static TweetPipeline fromProperties(MovieService ms, KeywordMatcher matcher, String[] keywords,
+			List<List<Object>> movieIds) {
+		Overflow overflow = Overflow.valueOf(System.getProperty("tweets.pipeline.overflow", "spill").toUpperCase());
+		Path spillFile = Paths.get(System.getProperty("tweets.pipeline.spillDir", System.getProperty("java.io.tmpdir")),
+				"tweet-spill-" + System.identityHashCode(keywords) + ".jsonl");
+		return new TweetPipeline(ms, matcher, keywords, movieIds, Integer.getInteger("tweets.pipeline.capacity", 8192),
+				Integer.getInteger("tweets.pipeline.writers", 2), overflow, spillFile,
+				Long.getLong("tweets.pipeline.spillLimit", 100000));
+	}
+
+	/**
+	 * Hand a tweet over, called by the thread that received it.
+	 *
+	 * @param status
+	 *            the tweet
+	 * @param rawJson
+	 *            its JSON, it can only be read on the receiving thread
+	 */
+	public void publish(Status status, String rawJson) {
+		if (closed) {
+			throw new IllegalStateException("The pipeline is closed");
+		}
+		Event event = new Event(status, rawJson, System.nanoTime());
+		published.incrementAndGet();
+		switch (overflow) {
+		case BLOCK:
+			try {
+				ring.put(event);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				dropped.incrementAndGet();
+			}
+			break;
+		case DROP_OLDEST:
+			if (ring.offerDropOldest(event) != null) {
+				dropped.incrementAndGet();
+			}
+			break;
+		case SPILL:
+			if (!ring.offer(event)) {
+				spill(event);
+			}
+			break;
+		}
+	}
+
+	private void match() {
+		try {
+			while (true) {
+				// Spilled tweets are processed between the new ones as soon as
+				// the ring buffer has drained below its low-water mark
+				boolean unspilled = ring.size() <= lowWater && unspill();
+				Event event = ring.poll(unspilled ? 0 : POLL_MS, TimeUnit.MILLISECONDS);
+				if (event != null) {
+					match(event);
+				} else if (!unspilled && closed && ring.size() == 0 && !hasSpilled()) {
+					break;
+				}
+			}
+			matched.put(END);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void match(Event event) throws InterruptedException {
+		matchStage.begin(event);
+		List<Integer> ids = new ArrayList<Integer>(1);
+		matcher.forEachMatch(event.status.getText(), ids::add);
+		if (ids.isEmpty()) {
+			unmatched.incrementAndGet();
+			matchStage.end();
+			return;
+		}
+		event.keywords = ids;
+		matchStage.end();
+		matched.put(event);
+	}
+
+	private void enrich() {
+		try {
+			while (true) {
+				Event event = matched.take();
+				if (event == END)
+					break;
+				enrichStage.begin(event);
+				try {
+					event.rawTweet = MovieService.toRawTweet(event.status, event.rawJson);
+					event.tweet = MovieService.toTweet(event.status);
+				} catch (RuntimeException e) {
+					// Malformed JSON
+					failed.incrementAndGet();
+					System.err.println("Failed to enrich tweet " + event.status.getId() + ": " + e);
+					enrichStage.end();
+					continue;
+				}
+				enrichStage.end();
+				enriched.put(event);
+			}
+			for (int i = 0; i < writers; i++) {
+				enriched.put(END);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write() {
+		try {
+			while (true) {
+				Event event = enriched.take();
+				if (event == END)
+					break;
+				writeStage.begin(event);
+				try {
+					for (int i = 0; i < event.keywords.size(); i++) {
+						int k = event.keywords.get(i);
+						// Every movie gets its own raw tweet, the write buffer adds the _id to it
+						Document rawTweet = i == 0 ? event.rawTweet : new Document(event.rawTweet);
+						Document tweet = i == 0 ? event.tweet : new Document(event.tweet);
+						ms.saveTweet(keywords[k], movieIds.get(k), rawTweet, tweet);
+						stored.incrementAndGet();
+					}
+				} catch (RuntimeException e) {
+					failed.incrementAndGet();
+					e.printStackTrace();
+				}
+				writeStage.end();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private synchronized void spill(Event event) {
+		if (spillPending + drainPending >= spillLimit) {
+			dropped.incrementAndGet();
+			return;
+		}
+		try {
+			if (spillWriter == null) {
+				spillWriter = Files.newBufferedWriter(spillFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+						StandardOpenOption.APPEND);
+			}
+			// The raw JSON of a tweet has no line breaks
+			spillWriter.write(event.published + "\t" + event.rawJson);
+			spillWriter.newLine();
+			spillPending++;
+			spilled.incrementAndGet();
+		} catch (IOException e) {
+			dropped.incrementAndGet();
+			System.err.println("Failed to spill tweet " + event.status.getId() + ": " + e);
+		}
+	}
+
+	private synchronized boolean hasSpilled() {
+		return spillPending > 0 || drainReader != null;
+	}
+
+	/**
+	 * Pass the next spilled tweet to the matcher. The spill file is drained
+	 * as a whole, new tweets are spilled into a new file meanwhile.
+	 *
+	 * @return false if there was none
+	 */
+	private boolean unspill() throws InterruptedException {
+		String line = null;
+		while (line == null) {
+			if (drainReader == null && !startDraining())
+				return false;
+			try {
+				line = drainReader.readLine();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			if (line == null)
+				finishDraining();
+		}
+		synchronized (this) {
+			drainPending--;
+		}
+		int tab = line.indexOf('\t');
+		String rawJson = line.substring(tab + 1);
+		try {
+			match(new Event(TwitterObjectFactory.createStatus(rawJson), rawJson,
+					Long.parseLong(line.substring(0, tab))));
+		} catch (TwitterException | RuntimeException e) {
+			failed.incrementAndGet();
+			System.err.println("Skipping spilled tweet: " + e);
+		}
+		return true;
+	}
+
+	/**
+	 * Move the spill file aside and open it for reading.
+	 *
+	 * @return false if nothing was spilled or the file can't be read
+	 */
+	private boolean startDraining() {
+		Path draining = spillFile.resolveSibling(spillFile.getFileName() + ".draining");
+		synchronized (this) {
+			if (spillPending == 0)
+				return false;
+			try {
+				spillWriter.close();
+				Files.move(spillFile, draining, StandardCopyOption.REPLACE_EXISTING);
+				drainPending = spillPending;
+			} catch (IOException e) {
+				dropped.addAndGet(spillPending);
+				e.printStackTrace();
+				return false;
+			} finally {
+				spillWriter = null;
+				spillPending = 0;
+			}
+		}
+		try {
+			drainReader = Files.newBufferedReader(draining, StandardCharsets.UTF_8);
+			return true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			finishDraining();
+			return false;
+		}
+	}
+
+	/**
+	 * Close and delete the drained file, tweets that couldn't be read from it
+	 * are counted as dropped.
+	 */
+	private void finishDraining() {
+		Path draining = spillFile.resolveSibling(spillFile.getFileName() + ".draining");
+		try {
+			if (drainReader != null)
+				drainReader.close();
+			Files.delete(draining);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		drainReader = null;
+		synchronized (this) {
+			dropped.addAndGet(drainPending);
+			drainPending = 0;
+		}
+	}
+
+	private synchronized long getSpillPending() {
+		return spillPending + drainPending;
+	}
+
+	/**
+	 * Process the tweets that were published so far and stop the threads.
+	 */
+	@Override
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+		}
+		System.out.println("Tweet pipeline closed: " + getStats().toJson());
+	}
+
+	/**
+	 * @return the number of tweets saved, once per matched movie
+	 */
+	public long getStored() {
+		return stored.get();
+	}
+
+	/**
+	 * Counters of the buffer and throughput and lag of every stage.
+	 */
+	public Document getStats() {
+		return new Document("overflow", overflow.name().toLowerCase())
+				.append("published", published.get())
+				.append("buffered", ring.size())
+				.append("capacity", ring.capacity())
+				.append("dropped", dropped.get())
+				.append("spilled", spilled.get())
+				.append("spillPending", getSpillPending())
+				.append("unmatched", unmatched.get())
+				.append("stored", stored.get())
+				.append("failed", failed.get())
+				.append("stages", new Document("match", matchStage.getStats())
+						.append("enrich", enrichStage.getStats())
+						.append("write", writeStage.getStats()));
+	}
+
+	/**
+	 * A tweet on its way through the pipeline.
+	 */
+	private static class Event {
+		final Status status;
+		final String rawJson;
+		/** System.nanoTime() when the tweet was published */
+		final long published;
+		List<Integer> keywords;
+		Document rawTweet;
+		Document tweet;
+
+		Event(Status status, String rawJson, long published) {
+			this.status = status;
+			this.rawJson = rawJson;
+			this.published = published;
+		}
+	}
+
+	/**
+	 * Throughput and lag of a stage. The lag is the time from publishing a
+	 * tweet until the stage starts processing it.
+	 */
+	private static class Stage {
+		final long created = System.nanoTime();
+		final AtomicLong processed = new AtomicLong();
+		final AtomicLong lagNanos = new AtomicLong();
+		final AtomicLong busyNanos = new AtomicLong();
+		volatile long maxLagNanos;
+		volatile long lastLagNanos;
+		final ThreadLocal<long[]> start = ThreadLocal.withInitial(() -> new long[1]);
+
+		void begin(Event event) {
+			long now = System.nanoTime();
+			long lag = now - event.published;
+			lagNanos.addAndGet(lag);
+			lastLagNanos = lag;
+			if (lag > maxLagNanos)
+				maxLagNanos = lag;
+			start.get()[0] = now;
+		}
+
+		void end() {
+			busyNanos.addAndGet(System.nanoTime() - start.get()[0]);
+			processed.incrementAndGet();
+		}
+
+		Document getStats() {
+			long n = processed.get();
+			double seconds = (System.nanoTime() - created) / 1e9;
+			return new Document("processed", n)
+					.append("perSecond", seconds == 0 ? 0.0 : n / seconds)
+					.append("avgLagMs", n == 0 ? 0.0 : lagNanos.get() / 1e6 / n)
+					.append("lastLagMs", lastLagNanos / 1e6)
+					.append("maxLagMs", maxLagNanos / 1e6)
+					.append("avgBusyMs", n == 0 ? 0.0 : busyNanos.get() / 1e6 / n);
+		}
+	}
+}
@@ -4,17 +4,62 @@ import twitter4j.TwitterStreamFactory;
 import twitter4j.conf.Configuration;
 import twitter4j.conf.ConfigurationBuilder;
 
-public class TweetStream {
+/**
+ * A source of tweets for a {@link TweetListener}. The listener sets the
+ * keywords to track with {@link #filter(String[])} and switches to the next
+ * block of keywords with {@link #cleanUp()} and another filter. The source is
+ * chosen with "tweets.source": "twitter" for the Streaming API
+ * ({@link TwitterTweetStream}), "replay" for recorded tweets
+ * ({@link ReplayTweetStream}).
+ */
+public abstract class TweetStream {
 
-	private TwitterStream ts;
-
-	public TweetStream() {
-		ts = createStream();
+	/**
+	 * @return the source configured with "tweets.source"
+	 */
+	public static TweetStream create() {
+		String source = System.getProperty("tweets.source", "twitter");
+		switch (source) {
+		case "twitter":
+			return new TwitterTweetStream();
+		case "replay":
+			return ReplayTweetStream.fromProperties();
+		default:
+			throw new IllegalArgumentException("Unknown tweet source: " + source);
+		}
 	}
 
+	/**
+	 * Deliver the tweets to the listener.
+	 */
+	protected abstract void addListener(TweetListener listener);
+
+	/**
+	 * Start delivering the tweets that contain one of the keywords.
+	 */
+	public abstract void filter(String[] track);
+
+	/**
+	 * Stop delivering tweets, a later {@link #filter(String[])} resumes.
+	 */
+	public abstract void cleanUp();
+
+	/**
+	 * Stop delivering tweets and release the resources of the stream.
+	 */
+	public abstract void shutdown();
+
+	/**
+	 * Listen until the listener is done, then release the connection and
+	 * the threads of the stream.
+	 */
 	public void listenToStream(TweetListener listener) {
-		ts.addListener(listener);
-		listener.start(ts);
+		addListener(listener);
+		try {
+			listener.start(this);
+		} finally {
+			shutdown();
+		}
 	}
 	
 	public static Configuration getConfiguration() {
@@ -0,0 +1,37 @@
+package twitter;
+import twitter4j.FilterQuery;
+import twitter4j.TwitterStream;
+
+/**
+ * The live tweets of the Twitter Streaming API.
+ */
+public class TwitterTweetStream extends TweetStream {
+
+	private final TwitterStream ts;
+
+	public TwitterTweetStream() {
+		ts = createStream();
+	}
+
+	@Override
+	protected void addListener(TweetListener listener) {
+		ts.addListener(listener);
+	}
+
+	@Override
+	public void filter(String[] track) {
+		ts.filter(new FilterQuery(0, null, track));
+	}
+
+	@Override
+	public void cleanUp() {
+		ts.cleanUp();
+	}
+
+	@Override
+	public void shutdown() {
+		ts.clearListeners();
+		ts.shutdown();
+	}
+
+}
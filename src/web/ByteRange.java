@@ -0,0 +1,128 @@
+package web;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A byte range of an HTTP Range request (RFC 7233), with inclusive first
+ * and last byte positions.
+ */
+public class ByteRange {
+
+	/**
+	 * More ranges than this are answered with the whole file, so a client
+	 * can't make the server seek around for many tiny ranges.
+	 */
+	public static final int MAX_RANGES = 16;
+
+	private final long first;
+	private final long last;
+
+	public ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	public long getFirst() {
+		return first;
+	}
+
+	public long getLast() {
+		return last;
+	}
+
+	public long getLength() {
+		return last - first + 1;
+	}
+
+	/**
+	 * @return the value of the Content-Range header for this range
+	 */
+	public String contentRange(long length) {
+		return "bytes " + first + "-" + last + "/" + length;
+	}
+
+	/**
+	 * Parse a Range header.
+	 *
+	 * @param header
+	 *            the value of the header, e.g. "bytes=0-499,-500"
+	 * @param length
+	 *            the length of the file
+	 * @return the sorted and merged ranges, an empty list if none is
+	 *         satisfiable, or null if the header is invalid or has too many
+	 *         ranges and the whole file should be sent
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		if (header == null || !header.startsWith("bytes=")) {
+			return null;
+		}
+		List<ByteRange> ranges = new ArrayList<ByteRange>();
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES) {
+			return null;
+		}
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) {
+				return null;
+			}
+			long first, last;
+			try {
+				if (dash == 0) {
+					// Suffix range: the last n bytes
+					long n = Long.parseLong(spec.substring(1));
+					if (n < 0)
+						return null;
+					first = Math.max(0, length - n);
+					last = n == 0 ? -1 : length - 1;
+				} else {
+					first = Long.parseLong(spec.substring(0, dash));
+					String end = spec.substring(dash + 1);
+					last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+					if (first < 0 || last < first)
+						return null;
+					last = Math.min(last, length - 1);
+				}
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			// Ranges starting after the end are unsatisfiable and skipped
+			if (first < length && first <= last) {
+				ranges.add(new ByteRange(first, last));
+			}
+		}
+		return merge(ranges);
+	}
+
+	/**
+	 * Sort the ranges and merge overlapping and adjacent ones.
+	 */
+	private static List<ByteRange> merge(List<ByteRange> ranges) {
+		if (ranges.size() < 2) {
+			return ranges;
+		}
+		Collections.sort(ranges, new Comparator<ByteRange>() {
+			@Override
+			public int compare(ByteRange a, ByteRange b) {
+				return Long.compare(a.first, b.first);
+			}
+		});
+		List<ByteRange> merged = new ArrayList<ByteRange>();
+		ByteRange current = ranges.get(0);
+		for (int i = 1; i < ranges.size(); i++) {
+			ByteRange next = ranges.get(i);
+			if (next.first <= current.last + 1) {
+				current = new ByteRange(current.first, Math.max(current.last, next.last));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+}
@@ -0,0 +1,278 @@
+package web;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.ContentResponse;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.util.FutureResponseListener;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+import com.mongodb.MongoException;
+
+import logic.MovieService;
+
+/**
+ * Imports images from URLs into GridFS in the background, so a request only
+ * has to queue the import and gets a job id to poll its status with.
+ * <p>
+ * The downloads use the shared {@link HttpClient} of the server and at most
+ * "concurrency" of them run at the same time. At most "capacity" imports
+ * can be queued, running or waiting for a retry; more are rejected. Failed
+ * downloads (connection errors, timeouts, 429 and 5xx responses) are
+ * retried with exponential backoff. The importer is a bean of the Jetty
+ * server and is started and stopped with it.
+ */
+public class ImageImporter extends AbstractLifeCycle {
+
+	public enum State {
+		QUEUED, RUNNING, RETRYING, DONE, FAILED
+	}
+
+	public static final int MAX_ATTEMPTS = 4;
+	private static final long BACKOFF_MS = 1000;
+	private static final long TIMEOUT_MS = 30000;
+	/** The number of finished jobs whose status is kept */
+	private static final int MAX_FINISHED_JOBS = 10000;
+
+	private final HttpClient http;
+	private final MovieService ms;
+	private final int concurrency;
+	private final int capacity;
+	private final long maxBytes;
+	private final AtomicInteger pending = new AtomicInteger();
+	private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+	private ThreadPoolExecutor workers;
+	private ScheduledExecutorService retries;
+
+	/**
+	 * @param http
+	 *            the client for the downloads
+	 * @param ms
+	 *            the service to save the images with
+	 * @param concurrency
+	 *            the maximum number of concurrent imports
+	 * @param capacity
+	 *            the maximum number of unfinished imports
+	 * @param maxBytes
+	 *            the maximum size of an image
+	 */
+	public ImageImporter(HttpClient http, MovieService ms, int concurrency, int capacity, long maxBytes) {
+		this.http = http;
+		this.ms = ms;
+		this.concurrency = concurrency;
+		this.capacity = capacity;
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		AtomicInteger threads = new AtomicInteger();
+		workers = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), r -> {
+					Thread t = new Thread(r, "image-import-" + threads.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		workers.allowCoreThreadTimeOut(true);
+		retries = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "image-import-retry");
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		retries.shutdownNow();
+		workers.shutdown();
+		if (!workers.awaitTermination(TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Queue an import.
+	 *
+	 * @param name
+	 *            the name to save the image as
+	 * @param url
+	 *            the http or https URL of the image
+	 * @return the job or null if the queue is full
+	 * @throws IllegalArgumentException
+	 *             if the name is missing or the URL is invalid
+	 */
+	public Job submit(String name, String url) {
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("Missing name");
+		}
+		URI uri;
+		try {
+			uri = URI.create(url);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("Invalid URL " + url);
+		}
+		if (!"http".equalsIgnoreCase(uri.getScheme()) && !"https".equalsIgnoreCase(uri.getScheme())) {
+			throw new IllegalArgumentException("Only http and https URLs can be imported");
+		}
+		if (!isRunning()) {
+			throw new IllegalStateException("The importer is not running");
+		}
+		if (pending.incrementAndGet() > capacity) {
+			pending.decrementAndGet();
+			return null;
+		}
+		Job job = new Job(name, url);
+		synchronized (jobs) {
+			jobs.put(job.id, job);
+		}
+		workers.execute(() -> run(job));
+		return job;
+	}
+
+	/**
+	 * @return the job with the id, null if it is unknown or was finished
+	 *         long ago
+	 */
+	public Job getJob(String id) {
+		synchronized (jobs) {
+			return jobs.get(id);
+		}
+	}
+
+	/**
+	 * @return the number of jobs per state and the limits
+	 */
+	public Document getStats() {
+		Document states = new Document();
+		for (State state : State.values()) {
+			states.append(state.name().toLowerCase(), 0);
+		}
+		synchronized (jobs) {
+			for (Job job : jobs.values()) {
+				String state = job.state.name().toLowerCase();
+				states.put(state, states.getInteger(state) + 1);
+			}
+		}
+		return new Document("jobs", states)
+				.append("pending", pending.get())
+				.append("concurrency", concurrency)
+				.append("capacity", capacity);
+	}
+
+	private void run(Job job) {
+		job.update(State.RUNNING, null);
+		job.attempts++;
+		try {
+			Request request = http.newRequest(job.url).timeout(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+			FutureResponseListener listener = new FutureResponseListener(request, (int) maxBytes);
+			request.send(listener);
+			ContentResponse response = listener.get();
+			int status = response.getStatus();
+			if (status != 200) {
+				failed(job, "HTTP " + status, status == 429 || status >= 500);
+				return;
+			}
+			ms.saveFile(job.name, new ByteArrayInputStream(response.getContent()), response.getMediaType());
+			finish(job, State.DONE, null);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			finish(job, State.FAILED, "Interrupted");
+		} catch (ExecutionException e) {
+			// Connection errors and timeouts are retried, too large images aren't
+			Throwable cause = e.getCause();
+			failed(job, String.valueOf(cause), cause instanceof IOException || cause instanceof TimeoutException);
+		} catch (MongoException e) {
+			e.printStackTrace();
+			failed(job, String.valueOf(e), true);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			finish(job, State.FAILED, String.valueOf(e));
+		}
+	}
+
+	private void failed(Job job, String error, boolean retry) {
+		if (!retry || job.attempts >= MAX_ATTEMPTS || !isRunning()) {
+			System.err.println("Import of " + job.url + " failed: " + error);
+			finish(job, State.FAILED, error);
+			return;
+		}
+		// 1s, 2s, 4s, ... with jitter, so failed imports of one host don't retry in lockstep
+		long delay = BACKOFF_MS << (job.attempts - 1);
+		delay += ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+		job.update(State.RETRYING, error);
+		retries.schedule(() -> workers.execute(() -> run(job)), delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void finish(Job job, State state, String error) {
+		job.update(state, error);
+		pending.decrementAndGet();
+		synchronized (jobs) {
+			// Keep the status of the newest finished jobs
+			if (jobs.size() > MAX_FINISHED_JOBS + capacity) {
+				jobs.values().removeIf(j -> (j.state == State.DONE || j.state == State.FAILED)
+						&& jobs.size() > MAX_FINISHED_JOBS);
+			}
+		}
+	}
+
+	/**
+	 * An import and its status.
+	 */
+	public static class Job {
+		private final String id = new ObjectId().toHexString();
+		private final String name;
+		private final String url;
+		private final Date created = new Date();
+		private volatile State state = State.QUEUED;
+		private volatile String error;
+		private volatile Date updated = created;
+		private volatile int attempts;
+
+		Job(String name, String url) {
+			this.name = name;
+			this.url = url;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		void update(State state, String error) {
+			this.state = state;
+			this.error = error;
+			this.updated = new Date();
+		}
+
+		public Document toDocument() {
+			return new Document("id", id)
+					.append("name", name)
+					.append("url", url)
+					.append("state", state.name().toLowerCase())
+					.append("attempts", attempts)
+					.append("error", error)
+					.append("created", created)
+					.append("updated", updated);
+		}
+	}
+}
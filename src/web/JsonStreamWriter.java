@@ -0,0 +1,280 @@
+package web;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.Array;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.Map;
+
+import org.bson.Document;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecConfigurationException;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.json.JsonMode;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.util.JSON;
+
+import logic.Page;
+
+/**
+ * Writes the results of {@link RestServer.MongoHandler#getData} as JSON
+ * directly to an output stream. Cursors are walked document by document and
+ * every document is encoded straight into one UTF-8 buffer per response,
+ * which is passed on to the stream whenever it is full, so no more than one
+ * document is held in memory at a time.
+ * <p>
+ * Supported values are documents (Document, BasicDBObject, any Map),
+ * iterables (FindIterable, lists), arrays, strings, numbers, booleans,
+ * dates, ObjectIds, null and {@link Page pages} of paged queries, they are
+ * written like the relaxed extended JSON of the driver. Other BSON values
+ * are encoded with the driver's codecs, anything else is serialized with the
+ * legacy {@link JSON} class.
+ */
+public class JsonStreamWriter {
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/** The last millisecond of the year 9999, later dates are written as numbers */
+	private static final long MAX_ISO_DATE = 253402300799999L;
+
+	private static final CodecRegistry REGISTRY = MongoClientSettings.getDefaultCodecRegistry();
+
+	private static final JsonWriterSettings SETTINGS = JsonWriterSettings.builder().outputMode(JsonMode.RELAXED)
+			.build();
+
+	private static final EncoderContext CONTEXT = EncoderContext.builder().build();
+
+	private final OutputStream out;
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int position;
+
+	private JsonStreamWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Write a value as JSON. The output stream is flushed but not closed.
+	 *
+	 * @param value
+	 *            the value returned by a handler
+	 * @param out
+	 *            the stream to write to
+	 */
+	public static void write(Object value, OutputStream out) throws IOException {
+		JsonStreamWriter w = new JsonStreamWriter(out);
+		w.writeValue(value);
+		w.flushBuffer();
+		out.flush();
+	}
+
+	private void writeValue(Object value) throws IOException {
+		if (value == null) {
+			writeAscii("null");
+		} else if (value instanceof Map) {
+			writeDocument((Map<?, ?>) value);
+		} else if (value instanceof Page) {
+			Page page = (Page) value;
+			writeAscii("{\"results\":");
+			writeValue(page.getResults());
+			writeAscii(",\"next\":");
+			writeValue(page.getNext());
+			writeAscii('}');
+		} else if (value instanceof Iterable) {
+			writeAscii('[');
+			boolean first = true;
+			for (Object item : (Iterable<?>) value) {
+				if (!first)
+					writeAscii(',');
+				first = false;
+				writeValue(item);
+			}
+			writeAscii(']');
+		} else if (value.getClass().isArray()) {
+			writeAscii('[');
+			int n = Array.getLength(value);
+			for (int i = 0; i < n; i++) {
+				if (i > 0)
+					writeAscii(',');
+				writeValue(Array.get(value, i));
+			}
+			writeAscii(']');
+		} else if (value instanceof CharSequence) {
+			writeString(value.toString());
+		} else if (value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if (Double.isNaN(d) || Double.isInfinite(d)) {
+				writeAscii("{\"$numberDouble\":\"");
+				writeAscii(Double.toString(d));
+				writeAscii("\"}");
+			} else {
+				writeAscii(Double.toString(d));
+			}
+		} else if (value instanceof Decimal128) {
+			writeAscii("{\"$numberDecimal\":\"");
+			writeAscii(value.toString());
+			writeAscii("\"}");
+		} else if (value instanceof Number || value instanceof Boolean) {
+			writeAscii(value.toString());
+		} else if (value instanceof Date) {
+			writeDate(((Date) value).getTime());
+		} else if (value instanceof ObjectId) {
+			writeAscii("{\"$oid\":\"");
+			writeAscii(((ObjectId) value).toHexString());
+			writeAscii("\"}");
+		} else {
+			writeOther(value);
+		}
+	}
+
+	private void writeDocument(Map<?, ?> document) throws IOException {
+		writeAscii('{');
+		boolean first = true;
+		for (Map.Entry<?, ?> field : document.entrySet()) {
+			if (!first)
+				writeAscii(',');
+			first = false;
+			writeString(String.valueOf(field.getKey()));
+			writeAscii(':');
+			writeValue(field.getValue());
+		}
+		writeAscii('}');
+	}
+
+	private void writeDate(long millis) throws IOException {
+		if (millis < 0 || millis > MAX_ISO_DATE) {
+			writeAscii("{\"$date\":{\"$numberLong\":\"");
+			writeAscii(Long.toString(millis));
+			writeAscii("\"}}");
+		} else {
+			writeAscii("{\"$date\":\"");
+			writeAscii(DateTimeFormatter.ISO_OFFSET_DATE_TIME
+					.format(Instant.ofEpochMilli(millis).atOffset(ZoneOffset.UTC)));
+			writeAscii("\"}");
+		}
+	}
+
+	/**
+	 * Values without a JSON form of their own, e.g. binary data or
+	 * timestamps, are rare: they are encoded by the driver as the field of a
+	 * temporary document.
+	 */
+	private void writeOther(Object value) throws IOException {
+		String json;
+		try {
+			StringWriter s = new StringWriter();
+			new DocumentCodec(REGISTRY).encode(new JsonWriter(s, SETTINGS), new Document("v", value), CONTEXT);
+			// {"v": value}
+			json = s.toString();
+			json = json.substring(json.indexOf(':') + 1, json.length() - 1).trim();
+		} catch (CodecConfigurationException e) {
+			json = JSON.serialize(value);
+		}
+		writeString(json, false);
+	}
+
+	private void writeString(String s) throws IOException {
+		writeString(s, true);
+	}
+
+	/**
+	 * @param quote
+	 *            write the string as JSON string, otherwise it is JSON
+	 *            already and only encoded
+	 */
+	private void writeString(String s, boolean quote) throws IOException {
+		if (quote)
+			writeAscii('"');
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			char c = s.charAt(i);
+			if (position + 6 > buffer.length)
+				flushBuffer();
+			if (c < 0x80) {
+				if (!quote || (c >= 0x20 && c != '"' && c != '\\')) {
+					buffer[position++] = (byte) c;
+				} else {
+					writeEscape(c);
+				}
+			} else if (c < 0x800) {
+				buffer[position++] = (byte) (0xc0 | c >> 6);
+				buffer[position++] = (byte) (0x80 | c & 0x3f);
+			} else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				buffer[position++] = (byte) (0xf0 | cp >> 18);
+				buffer[position++] = (byte) (0x80 | cp >> 12 & 0x3f);
+				buffer[position++] = (byte) (0x80 | cp >> 6 & 0x3f);
+				buffer[position++] = (byte) (0x80 | cp & 0x3f);
+			} else if (Character.isSurrogate(c)) {
+				// Unpaired, replaced like the UTF-8 encoder of the JDK does
+				buffer[position++] = '?';
+			} else {
+				buffer[position++] = (byte) (0xe0 | c >> 12);
+				buffer[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+				buffer[position++] = (byte) (0x80 | c & 0x3f);
+			}
+		}
+		if (quote)
+			writeAscii('"');
+	}
+
+	/**
+	 * Escape a quote, a backslash or a control character, there is room for
+	 * six bytes in the buffer.
+	 */
+	private void writeEscape(char c) {
+		buffer[position++] = '\\';
+		switch (c) {
+		case '"':
+			buffer[position++] = '"';
+			break;
+		case '\\':
+			buffer[position++] = '\\';
+			break;
+		case '\n':
+			buffer[position++] = 'n';
+			break;
+		case '\r':
+			buffer[position++] = 'r';
+			break;
+		case '\t':
+			buffer[position++] = 't';
+			break;
+		default:
+			buffer[position++] = 'u';
+			buffer[position++] = '0';
+			buffer[position++] = '0';
+			buffer[position++] = (byte) Character.forDigit(c >> 4, 16);
+			buffer[position++] = (byte) Character.forDigit(c & 0xf, 16);
+		}
+	}
+
+	private void writeAscii(String s) throws IOException {
+		int n = s.length();
+		for (int i = 0; i < n; i++) {
+			if (position == buffer.length)
+				flushBuffer();
+			buffer[position++] = (byte) s.charAt(i);
+		}
+	}
+
+	private void writeAscii(char c) throws IOException {
+		if (position == buffer.length)
+			flushBuffer();
+		buffer[position++] = (byte) c;
+	}
+
+	private void flushBuffer() throws IOException {
+		out.write(buffer, 0, position);
+		position = 0;
+	}
+}
@@ -1,10 +1,17 @@
 package web;
 
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -12,22 +19,28 @@ import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 import java.util.stream.Collector;
-import java.util.stream.Collectors;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import logic.ImageFile;
+import logic.ImageVariants;
+import logic.MovieQuery;
 import logic.MovieService;
+import logic.QueryCache;
+import logic.QueryCache.QueryType;
 
-import org.apache.commons.fileupload.FileItem;
-import org.apache.commons.fileupload.FileItemFactory;
-import org.apache.commons.fileupload.disk.DiskFileItemFactory;
+import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileItemStream;
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.bson.Document;
+import org.bson.types.ObjectId;
 import org.eclipse.jetty.client.HttpClient;
-import org.eclipse.jetty.client.api.ContentResponse;
 import org.eclipse.jetty.server.Handler;
+import org.eclipse.jetty.server.HttpOutput;
 import org.eclipse.jetty.server.NCSARequestLog;
 import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
@@ -40,18 +53,21 @@ import org.eclipse.jetty.server.handler.ResourceHandler;
 import org.eclipse.jetty.util.resource.Resource;
 import org.eclipse.jetty.util.ssl.SslContextFactory;
 
-import twitter.MovieTweetHandler;
-import twitter.TweetStream;
 
 import com.mongodb.BasicDBObject;
 import com.mongodb.DBCursor;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.mongodb.gridfs.GridFSDBFile;
-import com.mongodb.util.JSON;
 
 
 public class RestServer {
+
+	/**
+	 * The maximum size of an uploaded image, larger uploads are answered
+	 * with 413.
+	 */
+	private static final long MAX_UPLOAD_BYTES = Long.getLong("images.maxUploadBytes", 16L * 1024 * 1024);
 	
 	/**
 	 * A very simple Jetty-based REST server that serves static content and
@@ -60,6 +76,30 @@ public class RestServer {
 	public static void main(String[] args) throws Exception {
 		Server server = new Server(5900);
 		final MovieService ms = new MovieService();
+		// -Dmovies.async=true runs the queries with the reactive driver
+		if (Boolean.getBoolean("movies.async")) {
+			ms.enableAsync();
+			System.out.println("Running queries asynchronously");
+		}
+
+		// One outbound HTTP client with pooled connections, it is started and
+		// stopped with the server
+		final HttpClient http = new HttpClient(new SslContextFactory.Client());
+		http.setMaxConnectionsPerDestination(8);
+		http.setConnectTimeout(10000);
+		http.setIdleTimeout(60000);
+		http.setFollowRedirects(true);
+		server.addBean(http);
+		// -Dimports.concurrency and -Dimports.capacity limit the URL imports
+		final ImageImporter importer = new ImageImporter(http, ms, Integer.getInteger("imports.concurrency", 4),
+				Integer.getInteger("imports.capacity", 1000), MAX_UPLOAD_BYTES);
+		server.addBean(importer);
+		final TmdbClient tmdb = new TmdbClient(http);
+		server.setStopAtShutdown(true);
+		// -Dstreams.concurrency and -Dstreams.capacity limit the Twitter streams
+		final StreamJobManager streams = new StreamJobManager(ms, Integer.getInteger("streams.concurrency", 2),
+				Integer.getInteger("streams.capacity", 10));
+		server.addBean(streams);
 
 		// Serve static files
 		ResourceHandler resource_handler = new ResourceHandler();
@@ -68,7 +108,12 @@ public class RestServer {
 		resource_handler.setBaseResource(Resource.newClassPathResource("/web"));
 
 		// Define Resources and Actions
-		ContextHandler tweetedMovies = handle("/movie_tweets", new MongoHandler() {
+		ContextHandler tweetedMovies = handle("/movie_tweets", new MongoHandler(ms) {
+			@Override
+			protected QueryType queryType(HttpServletRequest request) {
+				return QueryType.TAGGED_TWEETS;
+			}
+
 			@Override
 			public Object getData(HttpServletRequest request) {
 				System.out.println("Update movies tweets on map");
@@ -76,7 +121,25 @@ public class RestServer {
 				String limitParam = request.getParameter("limit");
 				if (limitParam != null)
 					limit = Integer.parseInt(limitParam);
-				return ms.getTaggedTweets().limit(limit);
+				return ms.taggedTweetsQuery().limit(limit);
+			}
+		});
+
+		ContextHandler tweetClusters = handle("/tweet_clusters", new MongoHandler(ms) {
+			@Override
+			protected QueryType queryType(HttpServletRequest request) {
+				return QueryType.CLUSTERS;
+			}
+
+			@Override
+			public Object getData(HttpServletRequest request) {
+				//bbox=west,south,east,north as sent by Leaflet's toBBoxString()
+				String bbox = request.getParameter("bbox");
+				String[] parts = (bbox == null ? "-180,-90,180,90" : bbox).split(",");
+				String zoom = request.getParameter("zoom");
+				return ms.getTweetClusters(Double.parseDouble(parts[1]), Double.parseDouble(parts[0]),
+						Double.parseDouble(parts[3]), Double.parseDouble(parts[2]),
+						zoom == null ? 0 : Integer.parseInt(zoom));
 			}
 		});
 
@@ -84,7 +147,7 @@ public class RestServer {
 			@Override
 			public Object getData(HttpServletRequest request) {
 				String query = request.getParameter("query");
-				return MovieService.extract(ms.suggest(query, 8), "title");
+				return ms.suggestTitles(query, 8);
 			}
 		});
 		
@@ -101,49 +164,114 @@ public class RestServer {
 			}
 		});
 
-		ContextHandler stream = handle("/stream", new MongoHandler() {
+		// POST starts a stream job, GET lists them (or one with id=), DELETE cancels one
+		ContextHandler stream = handle("/stream", new AbstractHandler() {
 			@Override
-			public Object getData(HttpServletRequest request) {
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+					throws IOException, ServletException {
+				response.setContentType("application/json;charset=utf-8");
+				baseRequest.setHandled(true);
+				String id = request.getParameter("id");
 				if (request.getMethod().equals("POST")) {
-					final Integer limit = Integer.valueOf(request.getParameter("limit"));
-					String onlyTagged = request.getParameter("tagged");
-					final boolean tagged;
-					if(onlyTagged != null)
-						tagged = Boolean.parseBoolean(onlyTagged);
-					else
-						tagged = false;
-					String keywords = request.getParameter("keywords");
-					String[] titles = null;
-					if (keywords == null) {
-						String year = String.valueOf(Calendar.getInstance().get(Calendar.YEAR));
-						ArrayList<Document> docs = loadPopularMovies(year);
-						
-						titles = new String[docs.size()];
-						ArrayList<String> titlesList = (ArrayList<String>) docs.stream().map(d -> d.getString("title")).collect(Collectors.toList());
-						titlesList.toArray(titles);
+					StreamJobManager.Job job;
+					try {
+						int limit = Integer.parseInt(request.getParameter("limit"));
+						boolean tagged = Boolean.parseBoolean(request.getParameter("tagged"));
+						String keywords = request.getParameter("keywords");
+						String[] titles;
+						if (keywords == null) {
+							// The popular movies of this year, cached by the TMDB client
+							String year = String.valueOf(Calendar.getInstance().get(Calendar.YEAR));
+							List<Document> docs = tmdb.popularMovies(Collections.singletonList(year), 1);
+							titles = docs.stream().map(d -> d.getString("title")).toArray(String[]::new);
+						} else {
+							titles = keywords.split(",");
+						}
+						job = streams.submit(titles, limit, tagged);
+					} catch (IllegalArgumentException e) {
+						response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+						response.getWriter().print(new Document("error", e.getMessage()).toJson());
+						return;
+					}
+					if (job == null) {
+						response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+						response.setHeader("Retry-After", "60");
+						response.getWriter().print(new Document("error", "Too many streams").toJson());
 					} else {
-						titles = (keywords).split(",");
+						response.setStatus(HttpServletResponse.SC_ACCEPTED);
+						response.getWriter().print(job.toDocument().toJson());
 					}
-					final String[] titlesFinal = titles;
-					// Run asynchronously in order not to get blocked.
-					Thread thread = new Thread() {
-						public void run() {
-							TweetStream ts = new TweetStream();
-							
-							
-							
-							MovieTweetHandler handler = new MovieTweetHandler(ms, limit, titlesFinal);
-							handler.setIgnoreUntagged(tagged);
-							ts.listenToStream(handler);
-						}
-					};
-					thread.start();
+				} else if (request.getMethod().equals("DELETE") || id != null) {
+					StreamJobManager.Job job = request.getMethod().equals("DELETE") ? streams.cancel(id)
+							: streams.getJob(id);
+					if (job == null) {
+						response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+						response.getWriter().print(new Document("error", "Unknown stream " + id).toJson());
+					} else {
+						response.setStatus(HttpServletResponse.SC_OK);
+						response.getWriter().print(job.toDocument().toJson());
+					}
+				} else {
+					response.setStatus(HttpServletResponse.SC_OK);
+					JsonStreamWriter.write(streams.list(), response.getOutputStream());
 				}
-				return new BasicDBObject("ok", true);
 			}
 		});
 
-		ContextHandler movieSearch = handle("/movies", new MongoHandler() {
+		ContextHandler stats = handle("/stats", new MongoHandler() {
+			@Override
+			public Object getData(HttpServletRequest request) {
+				return new Document("tweetBuffer", ms.getTweetBufferStats())
+						.append("queryCache", ms.getQueryCache().getStats())
+						.append("fileCache", ms.getFileCacheStats())
+						.append("imports", importer.getStats())
+						.append("tweetSearch", ms.getTweetSearchStats())
+						.append("streams", streams.getStats());
+			}
+		});
+
+		// Status of an image import, or of all imports without id
+		ContextHandler imports = handle("/imports", new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
+					throws IOException, ServletException {
+				response.setContentType("application/json;charset=utf-8");
+				baseRequest.setHandled(true);
+				String id = request.getParameter("id");
+				if (id == null) {
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.getWriter().print(importer.getStats().toJson());
+					return;
+				}
+				ImageImporter.Job job = importer.getJob(id);
+				if (job == null) {
+					response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+					response.getWriter().print(new Document("error", "Unknown import " + id).toJson());
+				} else {
+					response.setStatus(HttpServletResponse.SC_OK);
+					response.getWriter().print(job.toDocument().toJson());
+				}
+			}
+		});
+
+		ContextHandler movieSearch = handle("/movies", new MongoHandler(ms) {
+			@Override
+			protected QueryType queryType(HttpServletRequest request) {
+				if (request.getParameter("title") != null)
+					return Boolean.parseBoolean(request.getParameter("exact")) ? QueryType.MOVIE : QueryType.PREFIX;
+				String type = request.getParameter("type");
+				if ("rating-greater".equals(type))
+					return QueryType.BEST_MOVIES;
+				else if ("genre".equals(type))
+					return QueryType.GENRE;
+				else if ("geo".equals(type))
+					return QueryType.KEYWORD;
+				else if ("tweeted".equals(type))
+					return QueryType.TWEETED;
+				else
+					return QueryType.PREFIX;
+			}
+
 			@Override
 			public Object getData(HttpServletRequest request) {
 				String title = request.getParameter("title");
@@ -151,14 +279,10 @@ public class RestServer {
 				if (title != null) {
 					Boolean exact = Boolean.parseBoolean(request.getParameter("exact"));
 					if (exact) {
-						return ms.findMovieByTitle(title);
+						return ms.findMovieByTitleQuery(title);
 					} else {
-						FindIterable<Document> cursor = ms.searchByPrefix(title, 1);
 						//Extract a single object
-						if(cursor.iterator().hasNext())
-							return cursor.iterator().next();
-						else
-							return null;
+						return ms.searchByPrefixQuery(title, 1).single();
 					}
 				}
 				//handle different kinds of queries
@@ -170,23 +294,38 @@ public class RestServer {
 					Integer limit = Integer.valueOf(request.getParameter("limit"));
 					if (type.equals("rating-greater")) {
 						if(query.equals("")) query = "0.0";
-						return ms.getBestMovies(1000, Double.parseDouble(query), limit);
+						return ms.bestMoviesQuery(1000, Double.parseDouble(query), limit);
 					}
 					else if (type.equals("genre")) {
 						if(query.equals("")) query = "Action";
-						return ms.getByGenre(query, limit);
+						return ms.byGenreQuery(query, limit);
 					}
 					else if (type.equals("geo"))
-						return ms.getByTweetsKeywordRegex(query, limit);
+						return ms.byTweetsKeywordRegexQuery(query, limit);
 					else if (type.equals("tweeted"))
-						return ms.getTweetedMovies().limit(limit);
+						return ms.tweetedMoviesQuery().limit(limit);
 					else
-						return ms.searchByPrefix(query, limit);
+						return ms.searchByPrefixQuery(query, limit);
 				}
 			}
 		});
 
-		ContextHandler tweetSearch = handle("/tweets", new MongoHandler() {
+		ContextHandler tweetSearch = handle("/tweets", new MongoHandler(ms) {
+			@Override
+			protected QueryType queryType(HttpServletRequest request) {
+				String type = request.getParameter("type");
+				if ("geo".equals(type))
+					return QueryType.GEO_TWEETS;
+				else if ("fts".equals(type))
+					return QueryType.FTS;
+				else if ("near".equals(type))
+					return QueryType.NEAR;
+				else if ("movie".equals(type))
+					return QueryType.MOVIE_TWEETS;
+				else
+					return QueryType.NEWEST_TWEETS;
+			}
+
 			@Override
 			public Object getData(HttpServletRequest request) {
 				String query = request.getParameter("query");
@@ -197,16 +336,23 @@ public class RestServer {
 				Integer limit = Integer.valueOf(request.getParameter("limit"));
 				limit = limit > 2000 ? 2000 : limit;
 				if (type.equals("geo"))
-					return ms.getGeotaggedTweets(limit);
+					return ms.geotaggedTweetsQuery(limit);
 				else if (type.equals("fts")) {
-					return ms.searchTweets(query);
+					// Ranked by relevance, not a MovieQuery: "cursor" and the
+					// async mode don't apply, the results are a single list
+					return ms.searchTweets(query, limit);
 				}
 				else if (type.equals("near")) {
 					String[] parts = query.split(",");
-					return ms.getTweetsNear(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
+					return ms.tweetsNearQuery(Double.parseDouble(parts[0]), Double.parseDouble(parts[1]),
 							Integer.parseInt(parts[2]));
+				} else if (type.equals("movie")) {
+					//Tweets of the movie with the _id query, paged
+					String page = request.getParameter("page");
+					Object id = ObjectId.isValid(query) ? new ObjectId(query) : query;
+					return ms.getMovieTweets(id, page == null ? 0 : Integer.parseInt(page), limit);
 				} else
-					return ms.getNewestTweets(limit);
+					return ms.newestTweetsQuery(limit);
 			}
 		});
 		
@@ -214,39 +360,12 @@ public class RestServer {
 			@Override
 			public Object getData(HttpServletRequest request) {
 				if (request.getMethod().equals("POST")) {
-						
-					final String year = request.getParameter("year");
-					ArrayList<Document> docs = loadPopularMovies(year);
-					
-						for (Document d : docs) {
-							
-							String id = String.valueOf(d.get("id"));					
-							ArrayList<Integer> genre_ids = (ArrayList<Integer>) d.get("genre_ids");
-							ArrayList<String> genres = new ArrayList<String>();
-							for (Integer genre : genre_ids) {
-								if(GENRES.containsKey(genre)) {
-									genres.add(GENRES.get(genre));
-								}
-							}
-							String plot = d.getString("overview");
-							Double rating = Double.valueOf(String.valueOf(d.get("vote_average")));	
-							String date = "ISODATE("+ d.getString("release_date").replaceAll(" ", "")  +"T23:00:00Z)";
-							String runtime = "";
-							String title = d.getString("title");
-							Integer votes = new Random().nextInt(200);
-							
-							Document movie = new Document("_id", id).
-							append("actors", "").
-							append("genre", genres).
-							append("movie", true).
-							append("plot", plot).
-							append("rating", rating).
-							append("releases", new Document("country", "USA").
-									append("date", date)).
-							append("runtime", "").append("title", title).append("votes", votes).append("year", year);
-											
-							ms.upsertMovie(movie);						
-						}
+					// year=2019,2020 and pages=3 fetch the 60 most popular movies of each year
+					List<String> years = Arrays.asList(request.getParameter("year").split(","));
+					String pages = request.getParameter("pages");
+					List<Document> docs = tmdb.popularMovies(years, pages == null ? 1 : Integer.parseInt(pages));
+					// The placeholders don't overwrite the values of existing movies
+					return ms.upsertMovies(docs, "actors", "movie", "runtime", "votes").append("ok", true);
 				}
 				return new Document("ok", true);
 			}
@@ -262,40 +381,102 @@ public class RestServer {
 				if (request.getMethod().equals("GET")) {
 					//Serve from Gridfs
 					if(url == null) {
-						GridFSFile file = ms.getFile(name);
-						response.setStatus(HttpServletResponse.SC_OK);
-						response.setContentLength((int) file.getLength());
-						response.setContentType(file.getMetadata().get("contentType").toString());
-						ms.downloadFile(file, response.getOutputStream());
+						// size=thumb|small|medium serves a scaled-down variant
+						ImageVariants.Size size = null;
+						try {
+							if (request.getParameter("size") != null)
+								size = ImageVariants.Size.parse(request.getParameter("size"));
+						} catch (IllegalArgumentException e) {
+							response.setContentType("application/json;charset=utf-8");
+							response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+							response.getWriter().print(new Document("error", e.getMessage()).toJson());
+							baseRequest.setHandled(true);
+							return;
+						}
+						ImageFile file = size == null ? ms.getImage(name) : ms.getImage(name, size);
 						baseRequest.setHandled(true);
+						// Revalidate with the ETag, it changes with every upload
+						response.setHeader("ETag", file.getETag());
+						response.setDateHeader("Last-Modified", file.getLastModified());
+						response.setHeader("Cache-Control", "no-cache");
+						response.setHeader("Accept-Ranges", "bytes");
+						if (notModified(request, file)) {
+							response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+							return;
+						}
+						long length = file.getLength();
+						List<ByteRange> ranges = ranges(request, file);
+						if (ranges != null && ranges.isEmpty()) {
+							response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+							response.setHeader("Content-Range", "bytes */" + length);
+							return;
+						}
+						WritableByteChannel out = channel(response.getOutputStream());
+						if (ranges == null) {
+							response.setStatus(HttpServletResponse.SC_OK);
+							response.setContentLengthLong(length);
+							response.setContentType(file.getContentType());
+							ms.downloadFile(file, 0, length, out);
+						} else if (ranges.size() == 1) {
+							ByteRange range = ranges.get(0);
+							response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+							response.setHeader("Content-Range", range.contentRange(length));
+							response.setContentLengthLong(range.getLength());
+							response.setContentType(file.getContentType());
+							ms.downloadFile(file, range.getFirst(), range.getLength(), out);
+						} else {
+							writeRanges(ms, file, ranges, response, out);
+						}
 						return;
 					}
-					//Import from IMDB
+					//Import from IMDB in the background, poll /imports?id= for the status
 					else {
 						System.out.println("load from imdb: " + name);
-						SslContextFactory sslContextFactory = new SslContextFactory();
-						HttpClient client = new HttpClient(sslContextFactory);
-						client.start();
-						ContentResponse r = client.GET(url);
-						byte[] content = r.getContent();
-						String contentType = r.getHeaders().get("Content-Type");
-						InputStream stream = new ByteArrayInputStream(content);
-						ms.saveFile(name, stream, contentType);
+						response.setContentType("application/json;charset=utf-8");
+						baseRequest.setHandled(true);
+						try {
+							ImageImporter.Job job = importer.submit(name, url);
+							if (job == null) {
+								response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+								response.setHeader("Retry-After", "5");
+								response.getWriter().print(new Document("error", "Too many imports").toJson());
+							} else {
+								response.setStatus(HttpServletResponse.SC_ACCEPTED);
+								response.getWriter().print(job.toDocument().toJson());
+							}
+						} catch (IllegalArgumentException e) {
+							response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+							response.getWriter().print(new Document("error", e.getMessage()).toJson());
+						}
+						return;
 					}
 				}
-				//Upload to GridFS
+				//Upload to GridFS, streamed from the request without temp files
 				else if (request.getMethod().equals("POST")) {
-					FileItemFactory factory = new DiskFileItemFactory();
-					ServletFileUpload upload = new ServletFileUpload(factory);
-					List<FileItem> items = upload.parseRequest(request);
-					for(FileItem item : items) {
-						System.out.println(item.getName());
-						if(!item.isFormField()) {
-						    String contentType = item.getContentType();
-						    System.out.println(item.getName());
-							ms.saveFile(name, item.getInputStream(), contentType);
-						    return;
+					ServletFileUpload upload = new ServletFileUpload();
+					upload.setFileSizeMax(MAX_UPLOAD_BYTES);
+					upload.setSizeMax(MAX_UPLOAD_BYTES + 64 * 1024);
+					try {
+						FileItemIterator items = upload.getItemIterator(request);
+						while (items.hasNext()) {
+							FileItemStream item = items.next();
+							if (!item.isFormField()) {
+								System.out.println(item.getName());
+								try (InputStream in = item.openStream()) {
+									ms.saveFile(name, in, item.getContentType());
+								}
+								break;
+							}
 						}
+					} catch (Exception e) {
+						if (!sizeLimitExceeded(e))
+							throw e;
+						response.setContentType("application/json;charset=utf-8");
+						response.setStatus(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+						response.getWriter().print(new Document("error", "Upload larger than " + MAX_UPLOAD_BYTES
+								+ " bytes").toJson());
+						baseRequest.setHandled(true);
+						return;
 					}
 				}
 				response.setContentType("application/json;charset=utf-8");
@@ -314,7 +495,7 @@ public class RestServer {
 		
 		// Register all Resources
 		HandlerList handlers = new HandlerList();
-		handlers.setHandlers(new Handler[] { logging, tweetedMovies, newMovies, stream, comment, movieSearch, images, searchSuggestions, tweetSearch,
+		handlers.setHandlers(new Handler[] { logging, tweetedMovies, newMovies, stream, comment, movieSearch, images, searchSuggestions, tweetSearch, stats, tweetClusters, imports,
 				resource_handler,  new DefaultHandler() });
 		server.setHandler(handlers);
 
@@ -322,27 +503,143 @@ public class RestServer {
 		server.join();
 	}
 	
-	private static ArrayList<Document> loadPopularMovies(String year) {
-		SslContextFactory sslContextFactory = new SslContextFactory();
-		HttpClient client = new HttpClient(sslContextFactory);
-		ArrayList<Document> docs = new ArrayList<Document>();
+	/**
+	 * @return true if the exception was caused by an upload that exceeded
+	 *         the size limits, also if it is wrapped (e.g. in the exception
+	 *         of the aborted GridFS upload)
+	 */
+	private static boolean sizeLimitExceeded(Throwable e) {
+		for (Throwable t = e; t != null; t = t.getCause()) {
+			if (t instanceof FileUploadBase.FileSizeLimitExceededException
+					|| t instanceof FileUploadBase.SizeLimitExceededException)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The ranges to send for the Range header of a request. If-Range makes
+	 * the Range header only apply if the file didn't change.
+	 * 
+	 * @return the ranges, an empty list if none is satisfiable or null to
+	 *         send the whole file
+	 */
+	private static List<ByteRange> ranges(HttpServletRequest request, ImageFile file) {
+		String range = request.getHeader("Range");
+		if (range == null || !request.getMethod().equals("GET")) {
+			return null;
+		}
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange != null) {
+			if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+				// Only strong validators match
+				if (!ifRange.equals(file.getETag()))
+					return null;
+			} else {
+				try {
+					if (request.getDateHeader("If-Range") / 1000 != file.getLastModified() / 1000)
+						return null;
+				} catch (IllegalArgumentException e) {
+					return null;
+				}
+			}
+		}
+		return ByteRange.parse(range, file.getLength());
+	}
+
+	/**
+	 * Send several ranges as multipart/byteranges.
+	 */
+	private static void writeRanges(MovieService ms, ImageFile file, List<ByteRange> ranges,
+			HttpServletResponse response, WritableByteChannel out) throws IOException {
+		String boundary = Long.toHexString(System.nanoTime()) + Long.toHexString(new Random().nextLong());
+		long length = file.getLength();
+		List<byte[]> headers = new ArrayList<byte[]>(ranges.size());
+		long contentLength = 0;
+		for (ByteRange range : ranges) {
+			byte[] header = ("\r\n--" + boundary + "\r\nContent-Type: " + file.getContentType()
+					+ "\r\nContent-Range: " + range.contentRange(length) + "\r\n\r\n")
+							.getBytes(StandardCharsets.US_ASCII);
+			headers.add(header);
+			contentLength += header.length + range.getLength();
+		}
+		byte[] end = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+		contentLength += end.length;
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setContentType("multipart/byteranges; boundary=" + boundary);
+		response.setContentLengthLong(contentLength);
+		for (int i = 0; i < ranges.size(); i++) {
+			write(out, headers.get(i));
+			ms.downloadFile(file, ranges.get(i).getFirst(), ranges.get(i).getLength(), out);
+		}
+		write(out, end);
+	}
+
+	private static void write(WritableByteChannel out, byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			out.write(buffer);
+		}
+	}
+
+	/**
+	 * A channel that passes the buffers directly to Jetty's output, so they
+	 * aren't copied into its aggregation buffer.
+	 */
+	private static WritableByteChannel channel(OutputStream out) {
+		if (out instanceof HttpOutput) {
+			final HttpOutput http = (HttpOutput) out;
+			return new WritableByteChannel() {
+				@Override
+				public int write(ByteBuffer src) throws IOException {
+					int n = src.remaining();
+					http.write(src);
+					src.position(src.limit());
+					return n;
+				}
+
+				@Override
+				public boolean isOpen() {
+					return !http.isClosed();
+				}
+
+				@Override
+				public void close() throws IOException {
+					http.close();
+				}
+			};
+		}
+		return Channels.newChannel(out);
+	}
+
+	/**
+	 * Check the conditional request headers: If-None-Match takes precedence
+	 * over If-Modified-Since.
+	 * 
+	 * @return true if the client's copy of the file is current
+	 */
+	private static boolean notModified(HttpServletRequest request, ImageFile file) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.startsWith("W/"))
+					tag = tag.substring(2);
+				if (tag.equals("*") || tag.equals(file.getETag()))
+					return true;
+			}
+			return false;
+		}
 		try {
-			client.start();
-			ContentResponse r = client.GET("https://api.themoviedb.org/3/discover/movie?primary_release_year="+year+"&sort_by=popularity.desc&api_key=0e5d3cf45c19570f6451afd826cfd801");
-			byte[] content = r.getContent();
-			String contentType = r.getHeaders().get("Content-Type");
-			InputStream stream = new ByteArrayInputStream(content);
-			int n = stream.available();
-			byte[] bytes = new byte[n];
-			stream.read(bytes, 0, n);
-			String s = new String(bytes);
-			 docs = (ArrayList<Document>) Document.parse(s).get("results");
-			
-		} catch (Exception e) {
-			e.printStackTrace();
+			long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			// HTTP dates have a precision of seconds
+			return ifModifiedSince >= 0 && file.getLastModified() / 1000 <= ifModifiedSince / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
 		}
-		return docs;
 	}
+
 	
 
 	/**
@@ -370,16 +667,173 @@ public class RestServer {
 	 */
 	public abstract static class MongoHandler extends AbstractHandler {
 
+		private static final long ASYNC_TIMEOUT_MS = 30000;
+
+		private final MovieService ms;
+
+		public MongoHandler() {
+			this(null);
+		}
+
+		/**
+		 * @param ms
+		 *            the service that runs the {@link MovieQuery MovieQueries}
+		 *            returned by getData() and whose query cache holds the
+		 *            results of GET requests, see
+		 *            {@link #queryType(HttpServletRequest)}
+		 */
+		public MongoHandler(MovieService ms) {
+			this.ms = ms;
+		}
+
 		public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response)
 				throws IOException, ServletException {
 			response.setContentType("application/json;charset=utf-8");
 			response.setStatus(HttpServletResponse.SC_OK);
 			baseRequest.setHandled(true);
-			response.getWriter().print(JSON.serialize(getData(request)));
+			QueryCache.QueryType type = ms != null && request.getMethod().equals("GET") ? queryType(request) : null;
+			QueryCache.Key key = null;
+			long stamp = 0;
+			if (type != null) {
+				key = QueryCache.key(type, request.getParameterMap());
+				byte[] bytes = ms.getQueryCache().get(key);
+				if (bytes != null) {
+					response.setContentLength(bytes.length);
+					response.getOutputStream().write(bytes);
+					return;
+				}
+				stamp = ms.getQueryCache().stamp(key);
+			}
+			Object data = getData(request);
+			if (data instanceof MovieQuery) {
+				MovieQuery query = (MovieQuery) data;
+				String cursor = request.getParameter("cursor");
+				if (cursor != null && !query.isSingle()) {
+					// Paged: {"results": [...], "next": token of the next page}
+					try {
+						respond(ms.page(query, cursor), response, key, stamp);
+					} catch (IllegalArgumentException e) {
+						response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+						JsonStreamWriter.write(new Document("error", e.getMessage()), response.getOutputStream());
+					}
+					return;
+				}
+				if (ms.isAsync()) {
+					respondAsync(query, request, response, key, stamp);
+					return;
+				}
+				data = query.isSingle() ? ms.find(query).first() : query.rank(ms.find(query));
+			}
+			respond(data, response, key, stamp);
 		}
 
+		/**
+		 * Run the query with the reactive driver and release the request
+		 * thread until the results are there. Writing the response is
+		 * dispatched back to the server's thread pool.
+		 */
+		private void respondAsync(MovieQuery query, HttpServletRequest request, HttpServletResponse response,
+				QueryCache.Key key, long stamp) {
+			AsyncContext ctx = request.startAsync();
+			ctx.setTimeout(ASYNC_TIMEOUT_MS);
+			ms.findAsync(query).whenComplete((result, error) -> ctx.start(() -> {
+				try {
+					if (error != null) {
+						error.printStackTrace();
+						response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						JsonStreamWriter.write(new Document("error", String.valueOf(error.getMessage())),
+								response.getOutputStream());
+					} else {
+						respond(result, response, key, stamp);
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					ctx.complete();
+				}
+			}));
+		}
+
+		private void respond(Object data, HttpServletResponse response, QueryCache.Key key, long stamp)
+				throws IOException {
+			if (key == null) {
+				// Stream the result document by document
+				JsonStreamWriter.write(data, response.getOutputStream());
+				return;
+			}
+			// Stream it and keep a copy for the cache, unless it is too large
+			// to be cached anyway
+			CapturingOutputStream out = new CapturingOutputStream(response.getOutputStream(),
+					ms.getQueryCache().getMaxValueBytes());
+			JsonStreamWriter.write(data, out);
+			byte[] bytes = out.toByteArray();
+			if (bytes != null)
+				ms.getQueryCache().put(key, stamp, bytes);
+		}
+
+		/**
+		 * Return data that can be written as JSON. A {@link MovieQuery} is
+		 * run by the handler, synchronously or asynchronously depending on the
+		 * mode of the MovieService. If the request has a "cursor" parameter,
+		 * it is run page by page, see {@link MovieService#page}. Other data,
+		 * e.g. the ranked tweets of /tweets?type=fts, is written as it is.
+		 */
 		abstract public Object getData(HttpServletRequest request);
 
+		/**
+		 * The type of the query a request runs. Results of typed GET requests
+		 * are cached with the time to live of their type.
+		 * 
+		 * @return the query type or null if the result must not be cached
+		 */
+		protected QueryCache.QueryType queryType(HttpServletRequest request) {
+			return null;
+		}
+
+		/**
+		 * Passes everything on to the response and copies it as long as it is
+		 * not larger than the limit.
+		 */
+		private static class CapturingOutputStream extends OutputStream {
+			private final OutputStream out;
+			private final long limit;
+			private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+
+			CapturingOutputStream(OutputStream out, long limit) {
+				this.out = out;
+				this.limit = limit;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+				if (copy != null) {
+					if (copy.size() + len > limit) {
+						copy = null;
+					} else {
+						copy.write(b, off, len);
+					}
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				out.flush();
+			}
+
+			/**
+			 * @return the bytes written, null if they exceeded the limit
+			 */
+			byte[] toByteArray() {
+				return copy == null ? null : copy.toByteArray();
+			}
+		}
+
 	}
 	
 	public static final  Map<Integer, String> GENRES = new HashMap<Integer, String>()
@@ -0,0 +1,337 @@
+package web;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+
+import logic.MovieService;
+import twitter.MovieTweetHandler;
+import twitter.TweetStream;
+
+/**
+ * Runs the Twitter streams started with /stream as jobs. At most
+ * "concurrency" streams run at the same time and at most "capacity" more
+ * wait for a thread, further ones are rejected. A stream with the same
+ * keywords as a queued or running one isn't started again, the running job
+ * is returned instead. Jobs can be listed with their progress and
+ * cancelled. The manager is a bean of the Jetty server, stopping the server
+ * cancels all streams.
+ */
+public class StreamJobManager extends AbstractLifeCycle {
+
+	public enum State {
+		QUEUED, RUNNING, DONE, FAILED, CANCELLED
+	}
+
+	/** The number of finished jobs that are listed */
+	private static final int MAX_FINISHED_JOBS = 100;
+	private static final long STOP_TIMEOUT_MS = 30000;
+
+	private final MovieService ms;
+	private final int concurrency;
+	private final int capacity;
+	private final Map<String, Job> jobs = new LinkedHashMap<String, Job>();
+	private ThreadPoolExecutor executor;
+
+	/**
+	 * @param ms
+	 *            the service to save the tweets with
+	 * @param concurrency
+	 *            the maximum number of running streams
+	 * @param capacity
+	 *            the maximum number of waiting streams
+	 */
+	public StreamJobManager(MovieService ms, int concurrency, int capacity) {
+		this.ms = ms;
+		this.concurrency = concurrency;
+		this.capacity = capacity;
+	}
+
+	@Override
+	protected void doStart() throws Exception {
+		AtomicInteger threads = new AtomicInteger();
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(capacity), r -> {
+					Thread t = new Thread(r, "tweet-stream-" + threads.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	protected void doStop() throws Exception {
+		synchronized (jobs) {
+			for (Job job : jobs.values()) {
+				job.cancel();
+			}
+		}
+		executor.shutdown();
+		if (!executor.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Start a stream, unless the same one is queued or running.
+	 *
+	 * @param keywords
+	 *            the movie titles to filter the stream by
+	 * @param limit
+	 *            the number of tweets to save
+	 * @param tagged
+	 *            only save geotagged tweets
+	 * @return the new or the identical job, null if too many are waiting
+	 * @throws IllegalArgumentException
+	 *             if there are no keywords or the limit isn't positive
+	 */
+	public Job submit(String[] keywords, int limit, boolean tagged) {
+		TreeSet<String> normalized = new TreeSet<String>();
+		for (String keyword : keywords) {
+			if (keyword != null && !keyword.trim().isEmpty())
+				normalized.add(keyword.trim());
+		}
+		if (normalized.isEmpty()) {
+			throw new IllegalArgumentException("Missing keywords");
+		}
+		if (limit < 1) {
+			throw new IllegalArgumentException("The limit must be positive");
+		}
+		if (!isRunning()) {
+			throw new IllegalStateException("The stream manager is not running");
+		}
+		String key = tagged + ":" + String.join(",", normalized).toLowerCase();
+		synchronized (jobs) {
+			for (Job job : jobs.values()) {
+				if (job.key.equals(key) && job.isActive())
+					return job;
+			}
+			Job job = new Job(key, normalized.toArray(new String[normalized.size()]), limit, tagged);
+			try {
+				job.future = executor.submit(() -> run(job));
+			} catch (RejectedExecutionException e) {
+				return null;
+			}
+			jobs.put(job.id, job);
+			prune();
+			return job;
+		}
+	}
+
+	/**
+	 * @return the job with the id, null if it is unknown or was finished
+	 *         long ago
+	 */
+	public Job getJob(String id) {
+		synchronized (jobs) {
+			return jobs.get(id);
+		}
+	}
+
+	/**
+	 * @return all jobs, oldest first
+	 */
+	public List<Document> list() {
+		List<Document> list = new ArrayList<Document>();
+		synchronized (jobs) {
+			for (Job job : jobs.values()) {
+				list.add(job.toDocument());
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Cancel a queued or running job. A running stream is disconnected, the
+	 * tweets it received are still saved.
+	 *
+	 * @return the job, null if it is unknown
+	 */
+	public Job cancel(String id) {
+		Job job = getJob(id);
+		if (job != null) {
+			job.cancel();
+		}
+		return job;
+	}
+
+	/**
+	 * @return the number of jobs per state and the limits
+	 */
+	public Document getStats() {
+		Document states = new Document();
+		for (State state : State.values()) {
+			states.append(state.name().toLowerCase(), 0);
+		}
+		synchronized (jobs) {
+			for (Job job : jobs.values()) {
+				String state = job.state.name().toLowerCase();
+				states.put(state, states.getInteger(state) + 1);
+			}
+		}
+		return new Document("jobs", states)
+				.append("concurrency", concurrency)
+				.append("capacity", capacity);
+	}
+
+	private void run(Job job) {
+		synchronized (job) {
+			if (job.state != State.QUEUED)
+				return;
+			job.update(State.RUNNING, null);
+		}
+		MovieTweetHandler handler = null;
+		State result = State.DONE;
+		String error = null;
+		try {
+			handler = new MovieTweetHandler(ms, job.limit, job.keywords);
+			handler.setIgnoreUntagged(job.tagged);
+			synchronized (job) {
+				job.handler = handler;
+				if (job.cancelled)
+					handler.stop();
+			}
+			TweetStream.create().listenToStream(handler);
+			if (handler.getError() != null) {
+				result = State.FAILED;
+				error = String.valueOf(handler.getError());
+			} else if (job.cancelled) {
+				result = State.CANCELLED;
+			}
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			result = State.FAILED;
+			error = String.valueOf(e);
+		} finally {
+			// Save what is still in the pipeline and stop its threads
+			// before the job counts as finished
+			if (handler != null) {
+				handler.close();
+			}
+			job.finished = new Date();
+			job.update(result, error);
+		}
+	}
+
+	/**
+	 * Forget the oldest finished jobs.
+	 */
+	private void prune() {
+		int finished = 0;
+		for (Job job : jobs.values()) {
+			if (!job.isActive())
+				finished++;
+		}
+		for (Iterator<Job> i = jobs.values().iterator(); i.hasNext() && finished > MAX_FINISHED_JOBS;) {
+			if (!i.next().isActive()) {
+				i.remove();
+				finished--;
+			}
+		}
+	}
+
+	/**
+	 * A stream and its progress.
+	 */
+	public static class Job {
+		private final String id = new ObjectId().toHexString();
+		private final String key;
+		private final String[] keywords;
+		private final int limit;
+		private final boolean tagged;
+		private final Date created = new Date();
+		private volatile Date started;
+		private volatile Date finished;
+		private volatile State state = State.QUEUED;
+		private volatile String error;
+		private volatile boolean cancelled;
+		private volatile MovieTweetHandler handler;
+		private volatile Future<?> future;
+
+		Job(String key, String[] keywords, int limit, boolean tagged) {
+			this.key = key;
+			this.keywords = keywords;
+			this.limit = limit;
+			this.tagged = tagged;
+		}
+
+		public String getId() {
+			return id;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public boolean isActive() {
+			return state == State.QUEUED || state == State.RUNNING;
+		}
+
+		synchronized void update(State state, String error) {
+			if (state == State.RUNNING)
+				started = new Date();
+			this.state = state;
+			this.error = error;
+		}
+
+		synchronized void cancel() {
+			if (!isActive())
+				return;
+			cancelled = true;
+			if (state == State.QUEUED) {
+				// Not started yet, it won't be
+				state = State.CANCELLED;
+				finished = new Date();
+				if (future != null)
+					future.cancel(false);
+			} else if (handler != null) {
+				handler.stop();
+			}
+		}
+
+		public Document toDocument() {
+			Document progress = new Document();
+			MovieTweetHandler h = handler;
+			long seconds = 0;
+			if (h != null) {
+				long end = finished == null ? System.currentTimeMillis() : finished.getTime();
+				seconds = Math.max(1, (end - started.getTime()) / 1000);
+				progress.append("block", h.getCurrentBlock() + 1)
+						.append("blocks", h.getBlockCount())
+						.append("seen", h.getSeen())
+						.append("accepted", h.getAccepted())
+						.append("stored", h.getStored())
+						.append("perSecond", (double) h.getStored() / seconds);
+			}
+			Document doc = new Document("id", id)
+					.append("keywords", Arrays.asList(keywords))
+					.append("limit", limit)
+					.append("tagged", tagged)
+					.append("state", state.name().toLowerCase())
+					.append("error", error)
+					.append("created", created)
+					.append("started", started)
+					.append("finished", finished)
+					.append("progress", progress);
+			if (h != null && state == State.RUNNING) {
+				doc.append("pipeline", h.getPipelineStats());
+			}
+			return doc;
+		}
+	}
+}
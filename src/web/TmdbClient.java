@@ -0,0 +1,249 @@
+package web;
+
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+
+/**
+ * Client for the movie lists of The Movie Database (TMDB). All pages of all
+ * requested years are fetched concurrently with the shared, non-blocking
+ * {@link HttpClient}. The responses are cached on disk, so e.g. the popular
+ * movies of the current year are fetched once per TTL and not for every
+ * stream that is started. A stale response is used if TMDB can't be
+ * reached.
+ * <p>
+ * The base URL is "tmdb.baseUrl", e.g. to use a local stand-in for the
+ * API. "tmdb.apiKey", "tmdb.cacheDir" and "tmdb.cacheTtlMinutes" configure
+ * the key, the cache directory and the TTL.
+ */
+public class TmdbClient {
+
+	public static final String DEFAULT_BASE_URL = "https://api.themoviedb.org/3";
+	public static final int MAX_PAGES = 20;
+	public static final int MAX_YEARS = 20;
+	private static final int MAX_RESPONSE_BYTES = 4 * 1024 * 1024;
+	private static final long TIMEOUT_MS = 30000;
+
+	private final HttpClient http;
+	private final String baseUrl;
+	private final String apiKey;
+	private final Path cacheDir;
+	private final long ttlMs;
+
+	public TmdbClient(HttpClient http) {
+		this(http, System.getProperty("tmdb.baseUrl", DEFAULT_BASE_URL),
+				System.getProperty("tmdb.apiKey", "0e5d3cf45c19570f6451afd826cfd801"),
+				Paths.get(System.getProperty("tmdb.cacheDir", System.getProperty("java.io.tmpdir") + "/tmdb-cache")),
+				TimeUnit.MINUTES.toMillis(Long.getLong("tmdb.cacheTtlMinutes", 360)));
+	}
+
+	/**
+	 * @param http
+	 *            the client to send the requests with
+	 * @param baseUrl
+	 *            the URL of the API, without trailing slash
+	 * @param apiKey
+	 *            the API key
+	 * @param cacheDir
+	 *            the directory of the cached responses
+	 * @param ttlMs
+	 *            how long a cached response is used
+	 */
+	public TmdbClient(HttpClient http, String baseUrl, String apiKey, Path cacheDir, long ttlMs) {
+		this.http = http;
+		this.baseUrl = baseUrl;
+		this.apiKey = apiKey;
+		this.cacheDir = cacheDir;
+		this.ttlMs = ttlMs;
+	}
+
+	/**
+	 * Fetch the most popular movies released in the given years.
+	 *
+	 * @param years
+	 *            the release years
+	 * @param pages
+	 *            the number of pages (of 20 movies) per year
+	 * @return the movie documents, see {@link #toMovie(Document, String)}, by
+	 *         descending popularity per year, without duplicates
+	 * @throws IllegalArgumentException
+	 *             if there are too many years or pages
+	 */
+	public List<Document> popularMovies(Collection<String> years, int pages) {
+		if (years.size() > MAX_YEARS || pages < 1 || pages > MAX_PAGES) {
+			throw new IllegalArgumentException("At most " + MAX_YEARS + " years and 1 to " + MAX_PAGES + " pages");
+		}
+		// Send all requests first, then wait for the responses in order
+		Map<String, List<CompletableFuture<Document>>> requests = new LinkedHashMap<String, List<CompletableFuture<Document>>>();
+		for (String year : years) {
+			List<CompletableFuture<Document>> responses = new ArrayList<CompletableFuture<Document>>();
+			for (int page = 1; page <= pages; page++) {
+				responses.add(get("/discover/movie?primary_release_year=" + encode(year)
+						+ "&sort_by=popularity.desc&page=" + page));
+			}
+			requests.put(year, responses);
+		}
+		Map<Object, Document> movies = new LinkedHashMap<Object, Document>();
+		for (Map.Entry<String, List<CompletableFuture<Document>>> entry : requests.entrySet()) {
+			for (CompletableFuture<Document> response : entry.getValue()) {
+				Document page;
+				try {
+					page = response.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+				} catch (Exception e) {
+					System.err.println("TMDB request failed: " + e);
+					continue;
+				}
+				@SuppressWarnings("unchecked")
+				List<Document> results = (List<Document>) page.get("results");
+				if (results == null)
+					continue;
+				for (Document result : results) {
+					movies.putIfAbsent(result.get("id"), toMovie(result, entry.getKey()));
+				}
+			}
+		}
+		return new ArrayList<Document>(movies.values());
+	}
+
+	/**
+	 * Convert a TMDB result into a movie document.
+	 */
+	public static Document toMovie(Document d, String year) {
+		String id = String.valueOf(d.get("id"));
+		@SuppressWarnings("unchecked")
+		List<Integer> genre_ids = (List<Integer>) d.get("genre_ids");
+		ArrayList<String> genres = new ArrayList<String>();
+		if (genre_ids != null) {
+			for (Integer genre : genre_ids) {
+				if (RestServer.GENRES.containsKey(genre)) {
+					genres.add(RestServer.GENRES.get(genre));
+				}
+			}
+		}
+		Object rating = d.get("vote_average");
+		String releaseDate = d.getString("release_date");
+		String date = releaseDate == null ? null : "ISODATE(" + releaseDate.replaceAll(" ", "") + "T23:00:00Z)";
+		return new Document("_id", id)
+				.append("actors", "")
+				.append("genre", genres)
+				.append("movie", true)
+				.append("plot", d.getString("overview"))
+				.append("rating", rating == null ? null : Double.valueOf(String.valueOf(rating)))
+				.append("releases", new Document("country", "USA").append("date", date))
+				.append("runtime", "")
+				.append("title", d.getString("title"))
+				.append("votes", new Random().nextInt(200))
+				.append("year", year);
+	}
+
+	/**
+	 * GET a resource of the API, from the cache if it is fresh.
+	 *
+	 * @param path
+	 *            the path and query, without API key
+	 */
+	CompletableFuture<Document> get(String path) {
+		CompletableFuture<Document> future = new CompletableFuture<Document>();
+		Path file = cacheDir.resolve(hash(baseUrl + path) + ".json");
+		try {
+			if (Files.exists(file) && System.currentTimeMillis() - Files.getLastModifiedTime(file).toMillis() < ttlMs) {
+				future.complete(Document.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+				return future;
+			}
+		} catch (IOException | RuntimeException e) {
+			// Unreadable or corrupt, fetch it again
+			System.err.println("Ignoring cached " + file + ": " + e);
+		}
+		String separator = path.contains("?") ? "&" : "?";
+		http.newRequest(baseUrl + path + separator + "api_key=" + apiKey)
+				.timeout(TIMEOUT_MS, TimeUnit.MILLISECONDS)
+				.send(new BufferingResponseListener(MAX_RESPONSE_BYTES) {
+					@Override
+					public void onComplete(Result result) {
+						try {
+							if (result.isFailed() || result.getResponse().getStatus() != 200) {
+								String error = result.isFailed() ? String.valueOf(result.getFailure())
+										: "HTTP " + result.getResponse().getStatus();
+								stale(file, future, path + ": " + error);
+								return;
+							}
+							String json = getContentAsString(StandardCharsets.UTF_8);
+							Document document = Document.parse(json);
+							store(file, json);
+							future.complete(document);
+						} catch (RuntimeException e) {
+							future.completeExceptionally(e);
+						}
+					}
+				});
+		return future;
+	}
+
+	/**
+	 * Complete with the stale cached response, if there is one.
+	 */
+	private static void stale(Path file, CompletableFuture<Document> future, String error) {
+		try {
+			if (Files.exists(file)) {
+				System.err.println("Using stale TMDB response, " + error);
+				future.complete(Document.parse(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)));
+				return;
+			}
+		} catch (IOException | RuntimeException e) {
+			// Fall through
+		}
+		future.completeExceptionally(new IOException(error));
+	}
+
+	private void store(Path file, String json) {
+		try {
+			Files.createDirectories(cacheDir);
+			// Concurrent readers see the old or the new file, never a partial one
+			Path tmp = Files.createTempFile(cacheDir, "tmdb", ".tmp");
+			Files.write(tmp, json.getBytes(StandardCharsets.UTF_8));
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static String encode(String value) {
+		try {
+			return URLEncoder.encode(value, "UTF-8");
+		} catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hash(String value) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (int i = 0; i < 16; i++) {
+				hex.append(String.format("%02x", digest[i]));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
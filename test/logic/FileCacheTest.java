@@ -0,0 +1,70 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.gridfs.GridFSBuckets;
+
+/**
+ * Names that share the content of the {@link ContentStore} in the
+ * {@link FileCache}, against an in-memory MongoDB.
+ */
+public class FileCacheTest {
+
+	@Rule
+	public final InMemoryMongo mongo = new InMemoryMongo();
+
+	private ContentStore store;
+	private FileCache cache;
+
+	@Before
+	public void setUp() {
+		store = new ContentStore(GridFSBuckets.create(mongo.getDatabase()), mongo.getCollection("fs.files"),
+				mongo.getCollection("file_aliases"), 1024);
+		cache = new FileCache(store, "default.png");
+	}
+
+	private Document save(String name, String content) throws IOException {
+		return store.save(name, new ByteArrayInputStream(content.getBytes("UTF-8")), "image/png");
+	}
+
+	@Test
+	public void namesOfTheSameContentHaveTheirOwnUploadDate() throws Exception {
+		Document first = save("first.png", "the same image");
+		Thread.sleep(20);
+		Document second = save("second.png", "the same image");
+		assertEquals(first.get("fileId"), second.get("fileId"));
+
+		ImageFile a = cache.get("first.png");
+		ImageFile b = cache.get("second.png");
+		assertEquals(a.getETag(), b.getETag());
+		assertEquals(first.getDate("uploadDate").getTime(), a.getLastModified());
+		assertEquals(second.getDate("uploadDate").getTime(), b.getLastModified());
+		assertTrue(b.getLastModified() > a.getLastModified());
+
+		// Uploading the content again changes the date of the name only
+		Thread.sleep(20);
+		Document again = save("first.png", "the same image");
+		cache.invalidate("first.png");
+		assertEquals(again.getDate("uploadDate").getTime(), cache.get("first.png").getLastModified());
+		assertEquals(b.getLastModified(), cache.get("second.png").getLastModified());
+	}
+
+	@Test
+	public void unknownNamesFallBackToTheDefaultFile() throws Exception {
+		assertNull(cache.getExisting("missing.png"));
+		assertNull(cache.get("missing.png"));
+		Document image = save("default.png", "the default image");
+		cache.invalidate("default.png");
+		assertEquals(image.getDate("uploadDate").getTime(), cache.get("missing.png").getLastModified());
+	}
+}
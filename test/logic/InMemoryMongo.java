@@ -0,0 +1,56 @@
+package logic;
+
+import java.net.InetSocketAddress;
+
+import org.bson.Document;
+import org.junit.rules.ExternalResource;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * An in-memory MongoDB for a test, started before and shut down after every
+ * test method:
+ * 
+ * <pre>
+ * &#64;Rule
+ * public final InMemoryMongo mongo = new InMemoryMongo();
+ * </pre>
+ */
+public class InMemoryMongo extends ExternalResource {
+
+	private MongoServer server;
+	private MongoClient client;
+
+	@Override
+	protected void before() {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+		client = MongoClients.create("mongodb://127.0.0.1:" + address.getPort());
+	}
+
+	@Override
+	protected void after() {
+		client.close();
+		server.shutdownNow();
+	}
+
+	/**
+	 * @return the database of the application
+	 */
+	public MongoDatabase getDatabase() {
+		return client.getDatabase("imdb");
+	}
+
+	/**
+	 * @return a collection of the database of the application
+	 */
+	public MongoCollection<Document> getCollection(String name) {
+		return getDatabase().getCollection(name);
+	}
+}
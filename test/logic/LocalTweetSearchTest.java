@@ -0,0 +1,232 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import logic.LocalTweetSearch.Hit;
+
+/**
+ * Ranking, query syntax, refreshes and merges of the {@link LocalTweetSearch}.
+ */
+public class LocalTweetSearchTest {
+
+	private static final String[] WORDS = { "movie", "great", "boring", "premiere", "actor", "scene", "ending",
+			"trailer", "sequel", "popcorn", "cinema", "director", "plot", "twist", "soundtrack", "villain", "hero",
+			"camera", "ticket", "review", "award", "script", "cast", "screen", "drama", "comedy", "horror",
+			"thriller", "romance", "classic" };
+
+	/** The documents, by id, as indexed */
+	private final Map<Object, String> texts = new HashMap<Object, String>();
+
+	/**
+	 * Random tweets, the first words of the vocabulary are much more frequent
+	 * than the last ones, so the terms of a query have very different
+	 * maximum scores.
+	 */
+	private List<Document> randomTweets(Random random, int from, int count) {
+		List<Document> tweets = new ArrayList<Document>();
+		for (int i = from; i < from + count; i++) {
+			StringBuilder text = new StringBuilder();
+			int length = 3 + random.nextInt(15);
+			for (int j = 0; j < length; j++) {
+				double r = random.nextDouble();
+				text.append(WORDS[(int) (r * r * r * WORDS.length)]).append(' ');
+			}
+			tweets.add(tweet(i, text.toString()));
+		}
+		return tweets;
+	}
+
+	private Document tweet(Object id, String text) {
+		texts.put(id, text);
+		return new Document("_id", id).append("text", text);
+	}
+
+	/**
+	 * Score every document of the index with BM25 for a query of words and
+	 * negated words.
+	 *
+	 * @return the scores of the matching documents by id
+	 */
+	private Map<Object, Double> exhaustive(String query) {
+		Set<String> positive = new LinkedHashSet<String>();
+		Set<String> negative = new HashSet<String>();
+		for (String word : query.split(" ")) {
+			if (word.startsWith("-")) {
+				negative.addAll(TextAnalyzer.analyze(word.substring(1)));
+			} else {
+				positive.addAll(TextAnalyzer.analyze(word));
+			}
+		}
+		Map<Object, List<String>> terms = new HashMap<Object, List<String>>();
+		long totalLength = 0;
+		Map<String, Integer> df = new HashMap<String, Integer>();
+		for (Map.Entry<Object, String> text : texts.entrySet()) {
+			List<String> t = TextAnalyzer.analyze(text.getValue() + " ");
+			terms.put(text.getKey(), t);
+			totalLength += t.size();
+			for (String term : new HashSet<String>(t)) {
+				df.merge(term, 1, Integer::sum);
+			}
+		}
+		int docs = texts.size();
+		double avgLength = Math.max(1.0, (double) totalLength / docs);
+		Map<Object, Double> scores = new HashMap<Object, Double>();
+		for (Map.Entry<Object, List<String>> doc : terms.entrySet()) {
+			List<String> t = doc.getValue();
+			if (!Collections.disjoint(t, negative))
+				continue;
+			double score = 0;
+			boolean matches = false;
+			for (String term : positive) {
+				int freq = 0;
+				for (String s : t) {
+					if (s.equals(term))
+						freq++;
+				}
+				if (freq == 0)
+					continue;
+				matches = true;
+				int n = df.get(term);
+				double idf = Math.log(1 + (docs - n + 0.5) / (n + 0.5));
+				score += idf * freq * 2.2 / (freq + 1.2 * (1 - 0.75 + 0.75 * t.size() / avgLength));
+			}
+			if (matches)
+				scores.put(doc.getKey(), score);
+		}
+		return scores;
+	}
+
+	private static List<Object> ids(List<Hit> hits) {
+		List<Object> ids = new ArrayList<Object>();
+		for (Hit hit : hits) {
+			ids.add(hit.getId());
+		}
+		return ids;
+	}
+
+	@Test
+	public void prunedResultsAreTheBestByExhaustiveScoring() {
+		LocalTweetSearch search = new LocalTweetSearch(null);
+		Random random = new Random(42);
+		// Several segments, so the statistics have to be of the whole index
+		for (int batch = 0; batch < 5; batch++) {
+			search.add(randomTweets(random, batch * 400, 400));
+			search.refresh();
+		}
+		String[] queries = { "movie classic", "great romance thriller", "movie great boring premiere classic",
+				"classic", "actor -movie", "horror comedy -great -boring", "movies screens" };
+		for (String query : queries) {
+			Map<Object, Double> expected = exhaustive(query);
+			List<Double> best = new ArrayList<Double>(expected.values());
+			best.sort(Collections.reverseOrder());
+			for (int limit : new int[] { 1, 5, 20, 100 }) {
+				List<Hit> hits = search.rank(query, limit);
+				assertEquals(query, Math.min(limit, expected.size()), hits.size());
+				for (int i = 0; i < hits.size(); i++) {
+					Hit hit = hits.get(i);
+					assertEquals(query, expected.get(hit.getId()), hit.getScore(), 1e-9);
+					assertEquals(query + " #" + i, best.get(i), hit.getScore(), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void matchesPhrasesAndExcludesNegations() {
+		LocalTweetSearch search = new LocalTweetSearch(null);
+		search.add(Arrays.asList(tweet(1, "A great movie, really"), tweet(2, "The movie was great"),
+				tweet(3, "Great movie but a very boring ending"), tweet(4, "The best of the year"),
+				tweet(5, "best year ever"), tweet(6, "Great Movie!")));
+		search.refresh();
+
+		assertEquals(new HashSet<Object>(Arrays.asList(1, 3, 6)),
+				new HashSet<Object>(ids(search.rank("\"great movie\"", 10))));
+		assertEquals(new HashSet<Object>(Arrays.asList(1, 6)),
+				new HashSet<Object>(ids(search.rank("\"great movie\" -boring", 10))));
+		// A negated phrase only excludes the tweets with the phrase
+		assertEquals(new HashSet<Object>(Arrays.asList(1, 2, 6)),
+				new HashSet<Object>(ids(search.rank("movie -\"very boring\"", 10))));
+		assertEquals(new HashSet<Object>(Arrays.asList(1, 2, 3, 6)),
+				new HashSet<Object>(ids(search.rank("movie -\"boring movie\"", 10))));
+		// Stop words are dropped from phrases as from the tweets
+		assertEquals(new HashSet<Object>(Arrays.asList(4, 5)),
+				new HashSet<Object>(ids(search.rank("\"best of the year\"", 10))));
+		// Only stop words, or only negations: nothing to score
+		assertTrue(search.rank("the of a", 10).isEmpty());
+		assertTrue(search.rank("-boring", 10).isEmpty());
+		assertEquals(ids(search.rank("movie", 10)), ids(search.rank("the movie", 10)));
+		// Words, unlike phrases, match any of them
+		assertEquals(new HashSet<Object>(Arrays.asList(1, 2, 3, 4, 5, 6)),
+				new HashSet<Object>(ids(search.rank("movie year", 10))));
+		// Stemmed like the tweets
+		assertEquals(new HashSet<Object>(Arrays.asList(1, 2, 3, 6)),
+				new HashSet<Object>(ids(search.rank("MOVIES", 10))));
+	}
+
+	@Test
+	public void mergesDoNotChangeTheResults() {
+		LocalTweetSearch search = new LocalTweetSearch(null);
+		Random random = new Random(7);
+		String[] queries = { "movie classic", "great -boring", "\"great movie\"", "\"plot twist\" -sequel",
+				"horror comedy thriller" };
+		Map<String, List<Hit>> before = new HashMap<String, List<Hit>>();
+		search.setRefreshListener(() -> {
+			// Runs before the merges of the refresh
+			if (((Number) search.getStats().get("segments")).intValue() == LocalTweetSearch.MERGE_FACTOR) {
+				for (String query : queries) {
+					before.put(query, search.rank(query, 20));
+				}
+			}
+		});
+		// Segments of the same order of magnitude
+		for (int batch = 0; batch < LocalTweetSearch.MERGE_FACTOR; batch++) {
+			search.add(randomTweets(random, batch * 50, 50));
+			search.refresh();
+		}
+		Document stats = search.getStats();
+		assertEquals(1L, stats.get("merges"));
+		assertEquals(1L, ((Number) stats.get("segments")).longValue());
+		assertEquals(queries.length, before.size());
+		for (String query : queries) {
+			List<Hit> after = search.rank(query, 20);
+			assertEquals(query, ids(before.get(query)), ids(after));
+			for (int i = 0; i < after.size(); i++) {
+				assertEquals(query, before.get(query).get(i).getScore(), after.get(i).getScore(), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void notifiesWhenAddedTweetsBecomeSearchable() {
+		LocalTweetSearch search = new LocalTweetSearch(null);
+		AtomicInteger refreshes = new AtomicInteger();
+		search.setRefreshListener(refreshes::incrementAndGet);
+		ObjectId id = new ObjectId();
+		search.add(Arrays.asList(new Document("_id", id).append("text", "a great premiere")));
+		assertEquals(0, search.rank("premiere", 10).size());
+
+		search.refresh();
+		assertEquals(1, refreshes.get());
+		assertEquals(id, search.rank("premiere", 10).get(0).getId());
+		// Nothing new, nothing to invalidate
+		search.refresh();
+		assertEquals(1, refreshes.get());
+	}
+}
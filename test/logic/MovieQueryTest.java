@@ -0,0 +1,35 @@
+package logic;
+
+import static com.mongodb.client.model.Filters.in;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Test;
+
+public class MovieQueryTest {
+
+	@Test
+	public void ranksTheResultsByTheOrderOfTheIds() {
+		List<Object> ids = Arrays.<Object> asList("c", "a", "missing", "b");
+		MovieQuery query = MovieQuery.movies(in("_id", ids)).ranking(ids);
+		// As returned by MongoDB, in the order of the collection
+		List<Document> found = Arrays.asList(new Document("_id", "a"), new Document("_id", "b"),
+				new Document("_id", "c"));
+		List<Object> ranked = new ArrayList<Object>();
+		for (Document movie : query.rank(found)) {
+			ranked.add(movie.get("_id"));
+		}
+		assertEquals(Arrays.asList("c", "a", "b"), ranked);
+	}
+
+	@Test
+	public void keepsTheResultsWithoutRanking() {
+		List<Document> found = Arrays.asList(new Document("_id", "b"), new Document("_id", "a"));
+		assertSame(found, MovieQuery.movies(new Document()).rank(found));
+	}
+}
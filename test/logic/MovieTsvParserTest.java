@@ -0,0 +1,198 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * The {@link MovieTsvParser} against the line parsing that
+ * {@link MovieServiceBase#loadMovies(String)} and
+ * {@link MovieServiceBase#loadMovies_megaNice(String)} did before, on the 500
+ * movies of the benchmark fixtures and on lines with unusual fields.
+ */
+public class MovieTsvParserTest {
+
+	private static final Path FIXTURES = Paths.get("benchmarks", "src", "main", "resources", "fixtures");
+
+	/** Lines with empty fields, odd dates and releases, escaped plots and few votes */
+	private static final String MEGA_NICE_EDGE_CASES = String.join("\n",
+			"tt1\tEmpty Fields\t\t7.5\t100\t\t\t\t\t\ttrue",
+			"tt2\tOdd Dates\t2001\t6.0\t50\t90\tDrama\tA B\tUSA:2001-13-40|France:soon|Japan:1999-1-2x|2002\tplot\tfalse",
+			"tt3\tPlots\t2002\t5.0\t20\t95\tComedy|\tC|D\tUK:2002-02-02\ta       b        c         d       \tFALSE",
+			"tt4\tFew Votes\t2003\t5.0\t5\t80\tDrama\tE\tUK:2003-03-03\tplot\ttrue",
+			"tt5\tNo Votes\t2004\t5.0\t\t80\tDrama\tE\tUK:2004-04-04\tplot\ttrue",
+			"tt7\tTrailing Tabs\t2006\t4.4\t60\t100\tWar\t\t\t\t\t",
+			"tt8\tComma, Movie\t2007\t3.3\t70\t110\tWar,Drama\tF\tUSA:2007-07-07\ta, b\tt,rue");
+
+	private static final String NICER_EDGE_CASES = String.join("\n",
+			"Comma, Movie\t2007\t3.3\t70\tWar,Drama",
+			"Trailing Genres\t2006\t4.4\t60\tWar,,",
+			"No Genre\t2005\t8.1\t1000\t",
+			"Few Fields\t2004\t2.0");
+
+	/**
+	 * The body of the loop of {@link MovieServiceBase#loadMovies(String)} as
+	 * it was before the {@link MovieTsvParser}.
+	 */
+	private static BasicDBObject nicer(String line) {
+		String[] names = new String[] { "title", "year", "rating", "votes", "genre" };
+		BasicDBObject dbo = new BasicDBObject();
+		String[] fields = line.split("\t");
+		for (int i = 0; i < fields.length - 1; i++) {
+			if (i == 2) {
+				dbo.append(names[i], Double.valueOf(fields[i]));
+			} else if (i == 3) {
+				dbo.append(names[i], Integer.valueOf(fields[i]));
+			} else {
+				dbo.append(names[i], fields[i]);
+			}
+		}
+		dbo.append(names[fields.length - 1], fields[fields.length - 1].split(","));
+		return dbo;
+	}
+
+	/**
+	 * The body of the loop of
+	 * {@link MovieServiceBase#loadMovies_megaNice(String)} as it was before
+	 * the {@link MovieTsvParser}.
+	 *
+	 * @return the movie or null if it was dropped
+	 */
+	private static BasicDBObject megaNice(String line) {
+		String[] names = new String[] { "_id", "title", "year", "rating", "votes", "runtime", "genre", "actors",
+				"releases", "plot", "movie" };
+		SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+		BasicDBObject dbo = new BasicDBObject();
+		String[] fields = line.split("\t");
+		for (int i = 0; i < fields.length - 1; i++) {
+			if (fields[i] == null || fields[i].length() == 0) {
+				dbo.append(names[i], "");
+			} else if (i == 3) {// rating
+				dbo.append(names[i], Double.valueOf(fields[i]));
+			} else if (i == 4) {// votes
+				dbo.append(names[i], Integer.valueOf(fields[i]));
+			} else if (i == 5) {// runtime
+				dbo.append(names[i], fields[i]);
+			} else if (i == 6) {// genre
+				dbo.append(names[i], fields[i].split(Pattern.quote("|")));
+			} else if (i == 7) {// actors
+				dbo.append(names[i], fields[i].split(Pattern.quote("|")));
+			} else if (i == 8) {// releases
+				List<BasicDBObject> releases = new LinkedList<BasicDBObject>();
+				for (String release : fields[i].split(Pattern.quote("|"))) {
+					String[] parts = release.split(":");
+					if (parts.length > 1) {
+						try {
+							releases.add(new BasicDBObject("country", parts[0]).append("date",
+									dateFormat.parse(parts[1])));
+						} catch (ParseException e) {
+							releases.add(new BasicDBObject("country", parts[0]).append("date", parts[1]));
+						}
+					} else {
+						releases.add(new BasicDBObject("date", parts[0]));
+					}
+				}
+				dbo.append(names[i], releases);
+			} else if (i == 9) {// plots
+				dbo.append(names[i], fields[i].replaceAll("       ", "\t").replaceAll("        ", "\n"));
+			} else if (i == 10) {// movie
+				dbo.append(names[i], Boolean.parseBoolean(fields[i]));
+			} else {
+				dbo.append(names[i], fields[i]);
+			}
+		}
+		dbo.append(names[fields.length - 1], fields[fields.length - 1].split(","));
+		if (dbo.get("votes") != null && !dbo.get("votes").equals("") && dbo.getInt("votes") > 5) {
+			return dbo;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the lines as the Scanner of the old loaders read them
+	 */
+	private static List<String> lines(Scanner scanner) {
+		List<String> lines = new ArrayList<String>();
+		while (scanner.hasNextLine()) {
+			lines.add(scanner.nextLine());
+		}
+		scanner.close();
+		return lines;
+	}
+
+	private static List<String> json(List<? extends DBObject> movies) {
+		List<String> json = new ArrayList<String>();
+		for (DBObject movie : movies) {
+			json.add(movie == null ? null : ((BasicDBObject) movie).toJson());
+		}
+		return json;
+	}
+
+	private static void assertSameMovies(MovieTsvParser parser, boolean megaNice, List<String> lines) {
+		List<BasicDBObject> expected = new ArrayList<BasicDBObject>();
+		List<BasicDBObject> actual = new ArrayList<BasicDBObject>();
+		for (String line : lines) {
+			expected.add(megaNice ? megaNice(line) : nicer(line));
+			actual.add(parser.parseLine(line));
+		}
+		// The JSON shows the types of the values and the order of the fields
+		assertEquals(json(expected), json(actual));
+		assertEquals(expected, actual);
+	}
+
+	/**
+	 * Parse the whole file both ways, the parser reads it through its
+	 * memory-mapped line stream.
+	 */
+	private static void assertSameFile(MovieTsvParser parser, boolean megaNice, Path file) throws IOException {
+		List<BasicDBObject> expected = new ArrayList<BasicDBObject>();
+		for (String line : lines(new Scanner(file.toFile()))) {
+			BasicDBObject movie = megaNice ? megaNice(line) : nicer(line);
+			if (movie != null)
+				expected.add(movie);
+		}
+		assertEquals(500, expected.size());
+		for (boolean parallel : new boolean[] { false, true }) {
+			List<DBObject> actual = parser.stream(file, parallel).collect(Collectors.toList());
+			assertEquals(json(expected), json(actual));
+		}
+	}
+
+	@Test
+	public void parsesTheNicerFixtureLikeLoadMovies() throws IOException {
+		File file = FIXTURES.resolve("movies_nicer.tsv").toFile();
+		assertSameMovies(MovieTsvParser.nicer(), false, lines(new Scanner(file)));
+		assertSameFile(MovieTsvParser.nicer(), false, file.toPath());
+	}
+
+	@Test
+	public void parsesTheMegaNiceFixtureLikeLoadMoviesMegaNice() throws IOException {
+		File file = FIXTURES.resolve("movies_megaNice.tsv").toFile();
+		assertSameMovies(MovieTsvParser.megaNice(), true, lines(new Scanner(file)));
+		assertSameFile(MovieTsvParser.megaNice(), true, file.toPath());
+	}
+
+	@Test
+	public void parsesUnusualLinesLikeTheOldLoaders() {
+		assertSameMovies(MovieTsvParser.nicer(), false, lines(new Scanner(new StringReader(NICER_EDGE_CASES))));
+		assertSameMovies(MovieTsvParser.megaNice(), true,
+				lines(new Scanner(new StringReader(MEGA_NICE_EDGE_CASES))));
+	}
+}
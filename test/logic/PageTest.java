@@ -0,0 +1,85 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Keyset pagination with {@link Page#find(MongoCollection, MovieQuery, String, int)}
+ * against an in-memory MongoDB.
+ */
+public class PageTest {
+
+	@Rule
+	public final InMemoryMongo mongo = new InMemoryMongo();
+
+	private MongoCollection<Document> tweets;
+
+	@Before
+	public void setUp() {
+		tweets = mongo.getCollection("tweets");
+		List<Document> docs = new ArrayList<Document>();
+		for (int i = 0; i < 5; i++) {
+			docs.add(new Document("id", 100L + i).append("text", "tweet " + i).append("movie", "Movie")
+					.append("user", new Document("name", "user " + i))
+					.append("coordinates", new Document("type", "Point").append("coordinates", Arrays.asList(9.9, 53.5)))
+					.append("lang", "en"));
+		}
+		tweets.insertMany(docs);
+	}
+
+	/**
+	 * Like {@link MovieService#taggedTweetsQuery()}: sorted by a key that
+	 * its projection doesn't return.
+	 */
+	private static MovieQuery taggedTweets() {
+		return MovieQuery.tweets(new Document("coordinates", new Document("$exists", true)))
+				.projection(new Document("text", true).append("movie", true).append("user.name", true)
+						.append("coordinates", true))
+				.sort(new Document("id", -1)).limit(2);
+	}
+
+	@Test
+	public void pagesThroughAQueryWhoseProjectionLacksTheSortKey() {
+		List<Object> ids = new ArrayList<Object>();
+		Page page = Page.find(tweets, taggedTweets(), null, 100);
+		int pages = 1;
+		page.getResults().forEach(d -> ids.add(d.get("id")));
+		while (page.getNext() != null) {
+			page = Page.find(tweets, taggedTweets(), page.getNext(), 100);
+			page.getResults().forEach(d -> ids.add(d.get("id")));
+			pages++;
+		}
+		assertEquals(3, pages);
+		assertEquals(Arrays.asList(104L, 103L, 102L, 101L, 100L), ids);
+		assertNull(page.getResults().get(0).get("lang"));
+	}
+
+	@Test
+	public void keepsTheSortKeyOutOfExclusions() {
+		MovieQuery query = MovieQuery.tweets(new Document()).projection(new Document("id", 0).append("text", 0))
+				.sort(new Document("id", 1)).limit(3);
+		Page page = Page.find(tweets, query, null, 100);
+		assertNotNull(page.getNext());
+		assertEquals(100L, page.getResults().get(0).get("id"));
+		assertNull(page.getResults().get(0).get("text"));
+		query = MovieQuery.tweets(new Document()).projection(new Document("id", 0).append("text", 0))
+				.sort(new Document("id", 1)).limit(3);
+		page = Page.find(tweets, query, page.getNext(), 100);
+		assertNull(page.getNext());
+		assertEquals(2, page.getResults().size());
+		assertTrue(page.getResults().get(1).containsKey("id"));
+	}
+}
@@ -0,0 +1,56 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+/**
+ * Tokenizing and stemming of the {@link TextAnalyzer}.
+ */
+public class TextAnalyzerTest {
+
+	@Test
+	public void stemsPluralsAndVerbForms() {
+		// Step 1a
+		assertEquals("caress", TextAnalyzer.stem("caresses"));
+		assertEquals("poni", TextAnalyzer.stem("ponies"));
+		assertEquals("caress", TextAnalyzer.stem("caress"));
+		assertEquals("cat", TextAnalyzer.stem("cats"));
+		// Step 1b, with the cleanup of the remaining stem
+		assertEquals("feed", TextAnalyzer.stem("feed"));
+		assertEquals("agre", TextAnalyzer.stem("agreed"));
+		assertEquals("plaster", TextAnalyzer.stem("plastered"));
+		assertEquals("sing", TextAnalyzer.stem("sing"));
+		assertEquals("conflat", TextAnalyzer.stem("conflated"));
+		assertEquals("hop", TextAnalyzer.stem("hopping"));
+		assertEquals("fall", TextAnalyzer.stem("falling"));
+		assertEquals("hope", TextAnalyzer.stem("hoping"));
+		// Step 1c and 5a
+		assertEquals("happi", TextAnalyzer.stem("happy"));
+		assertEquals("rate", TextAnalyzer.stem("rate"));
+		assertEquals("movi", TextAnalyzer.stem("movie"));
+		// Short words stay
+		assertEquals("is", TextAnalyzer.stem("is"));
+	}
+
+	@Test
+	public void findsTheFormsOfAWordByTheSameTerm() {
+		assertEquals(TextAnalyzer.stem("movie"), TextAnalyzer.stem("movies"));
+		assertEquals(TextAnalyzer.stem("watch"), TextAnalyzer.stem("watching"));
+		assertEquals(TextAnalyzer.stem("watch"), TextAnalyzer.stem("watched"));
+		assertEquals(TextAnalyzer.stem("agree"), TextAnalyzer.stem("agreed"));
+		assertEquals(TextAnalyzer.stem("hope"), TextAnalyzer.stem("hoped"));
+	}
+
+	@Test
+	public void splitsLowerCasesAndDropsStopWords() {
+		assertEquals(Arrays.asList("watch", "movi", "2020", "great"),
+				TextAnalyzer.analyze("RT Watching the MOVIES of 2020: it is... GREAT!"));
+		// The scheme and domain of the shortened links are stop words
+		assertEquals(Arrays.asList("t", "abc"), TextAnalyzer.analyze("https://t.co/abc"));
+		assertEquals(Arrays.asList(), TextAnalyzer.analyze("the and of a"));
+		assertEquals(Arrays.asList("\u00fcber", "caf\u00e9"), TextAnalyzer.analyze("\u00dcber Caf\u00e9"));
+	}
+}
@@ -0,0 +1,58 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoCollection;
+
+/**
+ * Adding titles to the {@link TitleIndex} while it is rebuilt.
+ */
+public class TitleIndexTest {
+
+	@Rule
+	public final InMemoryMongo mongo = new InMemoryMongo();
+
+	private MongoCollection<Document> movies;
+
+	@Before
+	public void setUp() {
+		movies = mongo.getCollection("movies");
+		List<Document> docs = new ArrayList<Document>();
+		for (int i = 0; i < 500; i++) {
+			docs.add(new Document("_id", "db" + i).append("title", "Stored " + i).append("votes", i));
+		}
+		movies.insertMany(docs);
+	}
+
+	@Test
+	public void keepsTitlesAddedDuringCompactionsAndBuilds() throws InterruptedException {
+		TitleIndex index = new TitleIndex();
+		index.build(movies);
+		int added = 5000;
+		Thread builder = new Thread(() -> {
+			for (int i = 0; i < 5; i++) {
+				index.build(movies);
+			}
+		});
+		builder.start();
+		for (int i = 0; i < added; i++) {
+			index.add("new" + i, "Added " + i, i);
+		}
+		builder.join();
+
+		assertEquals(added, index.searchIds("added ", added * 2).size());
+		assertEquals(500, index.searchIds("stored ", added).size());
+		for (int i = 0; i < added; i += 97) {
+			assertTrue(index.searchIds("added " + i, added).contains("new" + i));
+		}
+	}
+}
@@ -0,0 +1,159 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.UpdateOneModel;
+
+import logic.TweetBuckets.Appended;
+
+/**
+ * Appending to the {@link TweetBuckets} against an in-memory MongoDB.
+ */
+public class TweetBucketsTest {
+
+	@Rule
+	public final InMemoryMongo mongo = new InMemoryMongo();
+
+	private MongoDatabase db;
+	private TweetBuckets buckets;
+
+	@Before
+	public void setUp() {
+		db = mongo.getDatabase();
+		buckets = new TweetBuckets(db.getCollection("movie_tweets"));
+		// As registered by the IndexManager
+		buckets.getCollection().createIndex(Indexes.ascending("movie", "n"), new IndexOptions().unique(true));
+	}
+
+	private static List<Document> tweets(int from, int to) {
+		List<Document> tweets = new ArrayList<Document>();
+		for (int i = from; i < to; i++) {
+			tweets.add(new Document("_id", new ObjectId()).append("text", "tweet " + i));
+		}
+		return tweets;
+	}
+
+	private List<Appended> append(TweetBuckets buckets, List<Document> tweets) {
+		return buckets.append(Collections.<Object, List<Document>> singletonMap("m1", tweets),
+				Collections.<Object, String> singletonMap("m1", "Movie"));
+	}
+
+	@Test
+	public void fillsBucketsAcrossTheirBoundary() {
+		List<Document> first = tweets(0, 150);
+		List<Document> second = tweets(150, 300);
+		assertEquals(0, append(buckets, first).get(0).getPosition());
+		Appended appended = append(buckets, second).get(0);
+		assertEquals(150, appended.getPosition());
+		assertEquals(150, appended.getTweets().size());
+
+		assertEquals(2, buckets.getCollection().countDocuments());
+		assertEquals(Long.valueOf(300), new TweetBuckets(buckets.getCollection())
+				.counts(Collections.<Object> singletonList("m1")).get("m1"));
+		List<Document> page = buckets.page("m1", 0, 120);
+		assertEquals("tweet 299", page.get(0).getString("text"));
+		assertEquals("tweet 180", page.get(119).getString("text"));
+	}
+
+	@Test
+	public void doesNotAppendTweetsTwiceWhenAWriteIsRepeated() {
+		// The first write was applied, but its writer didn't learn about it
+		TweetBuckets stale = new TweetBuckets(buckets.getCollection());
+		stale.counts(Collections.<Object> singletonList("m1"));
+		List<Document> tweets = tweets(0, 4);
+		append(buckets, tweets.subList(0, 3));
+
+		List<Appended> appended = append(stale, tweets);
+		assertEquals(1, appended.size());
+		assertEquals(0, appended.get(0).getPosition());
+		assertEquals(4, appended.get(0).getTweets().size());
+		List<Document> page = buckets.page("m1", 0, 10);
+		assertEquals(4, page.size());
+		assertEquals("tweet 3", page.get(0).getString("text"));
+		assertEquals("tweet 0", page.get(3).getString("text"));
+	}
+
+	@Test
+	public void countsTweetsOfAMovieOnce() {
+		MongoCollection<Document> movies = db.getCollection("movies");
+		movies.insertOne(new Document("_id", "m1").append("title", "Movie"));
+		List<Document> tweets = tweets(0, 3);
+		tweets.get(1).append("coordinates", Arrays.asList(52.5, 13.4));
+		UpdateOneModel<Document> update = TweetBuckets.movieUpdate(append(buckets, tweets).get(0));
+		for (int i = 0; i < 2; i++) {
+			movies.updateOne(update.getFilter(), update.getUpdate());
+		}
+		Document movie = movies.find().first();
+		assertEquals(3, ((Number) movie.get("tweetCount")).intValue());
+		assertEquals(1, ((Number) movie.get("geoTweetCount")).intValue());
+		assertEquals(3, movie.getList("latestTweets", Document.class).size());
+	}
+
+	@Test
+	public void findsMoviesByALiteralKeyword() {
+		for (String movie : Arrays.asList("m1", "m2", "m3")) {
+			buckets.append(Collections.<Object, List<Document>> singletonMap(movie,
+					Arrays.asList(new Document("text", "Loved it (really) " + movie))),
+					Collections.<Object, String> singletonMap(movie, movie));
+		}
+		Pattern literal = Pattern.compile(Pattern.quote("(REALLY)"), Pattern.CASE_INSENSITIVE);
+		assertEquals(3, buckets.findMovieIds(Filters.eq("tweets.text", literal), 0).size());
+		assertEquals(2, buckets.findMovieIds(Filters.eq("tweets.text", literal), 2).size());
+		assertEquals(0, buckets.findMovieIds(Filters.eq("tweets.text", Pattern.compile(Pattern.quote(".*"))), 0)
+				.size());
+	}
+
+	@Test
+	public void resumesAnInterruptedMigration() {
+		MongoCollection<Document> movies = db.getCollection("movies");
+		List<Document> embedded = tweets(0, 5);
+		// Two tweets were appended before, the run was interrupted after
+		// three of the array
+		append(buckets, tweets(-2, 0));
+		movies.insertOne(new Document("_id", "m1").append("title", "Movie").append("tweets", embedded)
+				.append("tweetsMigration", 2));
+		append(buckets, embedded.subList(0, 3));
+
+		assertEquals(1, new TweetBuckets(buckets.getCollection()).migrate(movies));
+		List<Document> page = buckets.page("m1", 0, 10);
+		assertEquals(7, page.size());
+		assertEquals("tweet 4", page.get(0).getString("text"));
+		assertEquals("tweet -2", page.get(6).getString("text"));
+		Document movie = movies.find().first();
+		assertEquals(7, ((Number) movie.get("tweetCount")).intValue());
+		assertEquals(null, movie.get("tweets"));
+		assertEquals(null, movie.get("tweetsMigration"));
+		// Nothing left to do
+		assertEquals(0, buckets.migrate(movies));
+	}
+
+	@Test
+	public void finishesAMigrationInterruptedBeforeRemovingTheArray() {
+		MongoCollection<Document> movies = db.getCollection("movies");
+		List<Document> embedded = tweets(0, 3);
+		movies.insertOne(new Document("_id", "m1").append("title", "Movie").append("tweets", embedded)
+				.append("tweetsMigration", 0));
+		append(buckets, embedded);
+
+		assertEquals(1, new TweetBuckets(buckets.getCollection()).migrate(movies));
+		assertEquals(3, buckets.page("m1", 0, 10).size());
+		assertEquals(3, ((Number) movies.find().first().get("tweetCount")).intValue());
+	}
+}
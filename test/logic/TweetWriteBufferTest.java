@@ -0,0 +1,154 @@
+package logic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+
+import logic.TweetBuckets.Appended;
+
+/**
+ * Flushes of the {@link TweetWriteBuffer} against an in-memory MongoDB.
+ */
+public class TweetWriteBufferTest {
+
+	@Rule
+	public final InMemoryMongo mongo = new InMemoryMongo();
+
+	private MongoCollection<Document> tweets;
+	private MongoCollection<Document> movies;
+	private TweetBuckets buckets;
+	private TweetWriteBuffer buffer;
+
+	@Before
+	public void setUp() {
+		MongoDatabase db = mongo.getDatabase();
+		tweets = db.getCollection("tweets");
+		movies = db.getCollection("movies");
+		buckets = new TweetBuckets(db.getCollection("movie_tweets"));
+		buffer = new TweetWriteBuffer(tweets, movies, buckets, 100, 50, 1000);
+	}
+
+	@After
+	public void tearDown() {
+		buffer.close();
+	}
+
+	private void add(String movie, List<Object> ids, Object id, String text) {
+		buffer.add(movie, ids, new Document("_id", id).append("text", text), new Document("text", text));
+	}
+
+	@Test
+	public void writesTheRestOfABatchWithARejectedTweet() {
+		movies.insertOne(new Document("_id", "m1").append("title", "Movie"));
+		ObjectId duplicate = new ObjectId();
+		tweets.insertOne(new Document("_id", duplicate).append("text", "already there"));
+		List<Object> ids = Arrays.<Object> asList("m1");
+		add("Movie", ids, new ObjectId(), "first");
+		add("Movie", ids, duplicate, "duplicate");
+		add("Movie", ids, new ObjectId(), "second");
+		buffer.awaitFlush();
+
+		assertEquals(3, tweets.countDocuments());
+		assertEquals(2, ((Number) movies.find().first().get("tweetCount")).intValue());
+		List<Document> page = buckets.page("m1", 0, 10);
+		assertEquals(2, page.size());
+		assertEquals("second", page.get(0).getString("text"));
+		assertEquals("first", page.get(1).getString("text"));
+		Document stats = buffer.getStats();
+		assertEquals(2L, stats.get("flushedTweets"));
+		assertEquals(1L, stats.get("failedTweets"));
+	}
+
+	@Test
+	public void createsMoviesOfUnknownTitles() {
+		List<Object> created = new ArrayList<Object>();
+		buffer.setMovieCreatedListener((title, id) -> created.add(id));
+		add("New Movie", null, new ObjectId(), "first");
+		add("New Movie", null, new ObjectId(), "second");
+		buffer.awaitFlush();
+
+		assertEquals(1, created.size());
+		Document movie = movies.find().first();
+		assertEquals(created.get(0), movie.get("_id"));
+		assertEquals("New Movie", movie.getString("title"));
+		assertEquals(2, ((Number) movie.get("tweetCount")).intValue());
+		assertEquals(2, buckets.page(movie.get("_id"), 0, 10).size());
+	}
+
+	@Test
+	public void appendsTheTweetsOfATitleToEveryMovieWithIt() {
+		movies.insertOne(new Document("_id", "m1").append("title", "Remake"));
+		movies.insertOne(new Document("_id", "m2").append("title", "Remake"));
+		add("Remake", null, new ObjectId(), "which one?");
+		buffer.awaitFlush();
+
+		assertEquals(2, movies.countDocuments());
+		for (Document movie : movies.find()) {
+			assertEquals(1, ((Number) movie.get("tweetCount")).intValue());
+			assertEquals(1, buckets.page(movie.get("_id"), 0, 10).size());
+		}
+	}
+
+	@Test
+	public void retriesTheWriteOfInsertedTweets() {
+		buffer.close();
+		AtomicInteger failures = new AtomicInteger(1);
+		TweetBuckets failing = new TweetBuckets(buckets.getCollection()) {
+			@Override
+			public List<Appended> append(Map<Object, List<Document>> tweets, Map<Object, String> titles) {
+				if (failures.getAndDecrement() > 0)
+					throw new MongoException("unavailable");
+				return super.append(tweets, titles);
+			}
+		};
+		buffer = new TweetWriteBuffer(tweets, movies, failing, 100, 50, 1000);
+		movies.insertOne(new Document("_id", "m1").append("title", "Movie"));
+		List<Object> ids = Arrays.<Object> asList("m1");
+		add("Movie", ids, new ObjectId(), "first");
+		add("Movie", ids, new ObjectId(), "second");
+		buffer.awaitFlush();
+
+		assertEquals(2, tweets.countDocuments());
+		assertEquals(2, ((Number) movies.find().first().get("tweetCount")).intValue());
+		assertEquals(2, buckets.page("m1", 0, 10).size());
+		Document stats = buffer.getStats();
+		assertEquals(2L, stats.get("flushedTweets"));
+		assertEquals(0L, stats.get("failedTweets"));
+	}
+
+	@Test
+	public void dropsTweetsAfterTheLastAttempt() {
+		buffer.close();
+		TweetBuckets failing = new TweetBuckets(buckets.getCollection()) {
+			@Override
+			public List<Appended> append(Map<Object, List<Document>> tweets, Map<Object, String> titles) {
+				throw new MongoException("unavailable");
+			}
+		};
+		buffer = new TweetWriteBuffer(tweets, movies, failing, 100, 50, 1000);
+		movies.insertOne(new Document("_id", "m1").append("title", "Movie"));
+		add("Movie", Arrays.<Object> asList("m1"), new ObjectId(), "lost");
+		buffer.close();
+
+		assertEquals(1, tweets.countDocuments());
+		Document stats = buffer.getStats();
+		assertEquals(0L, stats.get("flushedTweets"));
+		assertEquals(1L, stats.get("failedTweets"));
+		assertEquals((long) TweetWriteBuffer.MAX_ATTEMPTS, stats.get("flushes"));
+	}
+}
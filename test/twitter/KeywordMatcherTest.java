@@ -0,0 +1,90 @@
+package twitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Matching of the {@link KeywordMatcher} automaton.
+ */
+public class KeywordMatcherTest {
+
+	/**
+	 * @return the keywords found in the text, in the order they are reported
+	 */
+	private static List<String> matches(KeywordMatcher matcher, String text) {
+		List<String> found = new ArrayList<String>();
+		int count = matcher.forEachMatch(text, k -> found.add(matcher.getKeyword(k)));
+		assertEquals(found.size(), count);
+		return found;
+	}
+
+	@Test
+	public void followsFailureLinksToOverlappingKeywords() {
+		KeywordMatcher matcher = new KeywordMatcher("he", "she", "his", "hers");
+		assertEquals(Arrays.asList("she", "hers", "his", "he"), matches(matcher, "she saw hers and his, he said"));
+		// "he" ends in "she" and starts "hers", but is no word there
+		assertEquals(Collections.emptyList(), matches(matcher, "ushers"));
+
+		// After "new york " the automaton is on the way to "new york times",
+		// the "c" continues from the failure link to "york "
+		matcher = new KeywordMatcher("new york times", "new york", "york city");
+		assertEquals(Arrays.asList("new york", "york city"), matches(matcher, "new york city"));
+		assertEquals(Arrays.asList("new york", "new york times"), matches(matcher, "the new york times"));
+	}
+
+	@Test
+	public void reportsKeywordsThatEndTogether() {
+		KeywordMatcher matcher = new KeywordMatcher("wars", "star wars", "star");
+		assertEquals(Arrays.asList("star", "star wars", "wars"), matches(matcher, "star wars"));
+		// The same keyword twice: both ids are reported
+		matcher = new KeywordMatcher("up", "Up");
+		assertEquals(Arrays.asList("up", "Up"), matches(matcher, "going up"));
+	}
+
+	@Test
+	public void respectsWordBoundaries() {
+		KeywordMatcher matcher = new KeywordMatcher("avatar", "it");
+		assertEquals(Arrays.asList("avatar"), matches(matcher, "avatar"));
+		assertEquals(Arrays.asList("avatar"), matches(matcher, "#Avatar!"));
+		assertEquals(Arrays.asList("avatar"), matches(matcher, "(avatar)"));
+		assertEquals(Collections.emptyList(), matches(matcher, "avatars"));
+		assertEquals(Collections.emptyList(), matches(matcher, "avatar2"));
+		assertEquals(Collections.emptyList(), matches(matcher, "navatar"));
+		assertEquals(Arrays.asList("it"), matches(matcher, "with it"));
+		assertEquals(Collections.emptyList(), matches(matcher, "without"));
+	}
+
+	@Test
+	public void foldsCase() {
+		KeywordMatcher matcher = new KeywordMatcher("Star Wars", "am\u00e9lie");
+		assertEquals(Arrays.asList("Star Wars"), matches(matcher, "STAR WARS"));
+		assertEquals(Arrays.asList("Star Wars"), matches(matcher, "star wars"));
+		assertEquals(Arrays.asList("am\u00e9lie"), matches(matcher, "AM\u00c9LIE"));
+	}
+
+	@Test
+	public void reportsEachKeywordOncePerText() {
+		KeywordMatcher matcher = new KeywordMatcher("up", "cars");
+		assertEquals(Arrays.asList("up", "cars"), matches(matcher, "Up up UP, cars and up"));
+		// The next text reports them again
+		assertEquals(Arrays.asList("cars", "up"), matches(matcher, "cars up"));
+		assertTrue(matcher.matches("going up"));
+		assertFalse(matcher.matches("going upwards"));
+	}
+
+	@Test
+	public void ignoresEmptyKeywords() {
+		KeywordMatcher matcher = new KeywordMatcher("", "up");
+		assertEquals(2, matcher.size());
+		assertEquals(Arrays.asList("up"), matches(matcher, "up"));
+		assertEquals(Collections.emptyList(), matches(matcher, ""));
+	}
+}
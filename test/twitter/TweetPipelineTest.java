@@ -0,0 +1,108 @@
+package twitter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+import org.bson.Document;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import twitter.TweetPipeline.Overflow;
+import twitter4j.TwitterException;
+import twitter4j.TwitterObjectFactory;
+
+/**
+ * Spilling of the {@link TweetPipeline}. The keywords never match, so no
+ * tweet reaches the database, and the matcher is slowed down so the ring
+ * buffer overflows.
+ */
+public class TweetPipelineTest {
+
+	@Rule
+	public final TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * A matcher that takes a millisecond per tweet.
+	 */
+	private static class SlowMatcher extends KeywordMatcher {
+		SlowMatcher() {
+			super("no such movie");
+		}
+
+		@Override
+		public int forEachMatch(CharSequence text, IntConsumer handler) {
+			try {
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.forEachMatch(text, handler);
+		}
+	}
+
+	private TweetPipeline pipeline(int capacity, long spillLimit) throws Exception {
+		List<List<Object>> movieIds = Collections.singletonList(null);
+		return new TweetPipeline(null, new SlowMatcher(), new String[] { "no such movie" }, movieIds, capacity, 1,
+				Overflow.SPILL, folder.getRoot().toPath().resolve("spill.jsonl"), spillLimit);
+	}
+
+	private static void publish(TweetPipeline pipeline, long id) throws TwitterException {
+		String json = "{\"id\":" + id + ",\"text\":\"tweet " + id
+				+ "\",\"created_at\":\"Mon Oct 19 10:00:00 +0000 2020\",\"user\":{\"id\":1,\"screen_name\":\"u\"}}";
+		pipeline.publish(TwitterObjectFactory.createStatus(json), json);
+	}
+
+	private static long count(Document stats, String counter) {
+		return ((Number) stats.get(counter)).longValue();
+	}
+
+	@Test
+	public void drainsSpilledTweetsWhileTweetsKeepArriving() throws Exception {
+		TweetPipeline pipeline = pipeline(8, 1000);
+		for (int i = 0; i < 200; i++) {
+			publish(pipeline, i);
+		}
+		assertTrue(count(pipeline.getStats(), "spilled") > 0);
+		// New tweets keep coming, slower than they are matched, so the ring
+		// buffer is never empty for long
+		long deadline = System.currentTimeMillis() + 10000;
+		int id = 200;
+		while (count(pipeline.getStats(), "spillPending") > 0 && System.currentTimeMillis() < deadline) {
+			publish(pipeline, id++);
+			Thread.sleep(5);
+		}
+		assertEquals(0, count(pipeline.getStats(), "spillPending"));
+		pipeline.close();
+
+		Document stats = pipeline.getStats();
+		assertEquals(id, count(stats, "published"));
+		assertEquals(0, count(stats, "dropped"));
+		assertEquals(id, count(stats, "unmatched"));
+		assertFalse(Files.exists(folder.getRoot().toPath().resolve("spill.jsonl.draining")));
+	}
+
+	@Test
+	public void dropsTweetsOverTheSpillLimit() throws Exception {
+		TweetPipeline pipeline = pipeline(4, 20);
+		for (int i = 0; i < 200; i++) {
+			publish(pipeline, i);
+		}
+		pipeline.close();
+
+		Document stats = pipeline.getStats();
+		assertEquals(200, count(stats, "published"));
+		assertTrue(count(stats, "dropped") > 0);
+		assertEquals(0, count(stats, "spillPending"));
+		assertEquals(0, count(stats, "failed"));
+		// Every tweet is either processed or counted as dropped
+		assertEquals(200, count(stats, "unmatched") + count(stats, "dropped"));
+	}
+}
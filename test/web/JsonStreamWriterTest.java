@@ -0,0 +1,71 @@
+package web;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.bson.types.Binary;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import logic.Page;
+
+/**
+ * The output of the {@link JsonStreamWriter} reads back as the documents that
+ * were written.
+ */
+public class JsonStreamWriterTest {
+
+	private static String json(Object value) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		JsonStreamWriter.write(value, out);
+		return new String(out.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void writesDocumentsThatParseBackUnchanged() throws IOException {
+		Document doc = new Document("_id", new ObjectId())
+				.append("text", "quote \" backslash \\ tab \t line\n\u0001 umlaut \u00e4 euro \u20ac emoji \ud83c\udfac")
+				.append("retweet", true)
+				.append("count", 42)
+				.append("id", 1265000000000000000L)
+				.append("rating", 7.5)
+				.append("date", new Date(1582841087123L))
+				.append("old", new Date(-1000))
+				.append("price", Decimal128.parse("9.99"))
+				.append("bytes", new Binary(new byte[] { 1, 2, 3 }))
+				.append("coordinates", Arrays.asList(52.5, 13.4))
+				.append("genre", new String[] { "Action", "Comedy" })
+				.append("user", new Document("name", "Patricia").append("location", null));
+		Document parsed = Document.parse(json(doc));
+		assertEquals(Arrays.asList("Action", "Comedy"), parsed.get("genre"));
+		parsed.put("genre", doc.get("genre"));
+		assertEquals(doc, parsed);
+	}
+
+	@Test
+	public void writesListsAndPages() throws IOException {
+		List<Document> docs = Arrays.asList(new Document("a", 1), new Document("b", "\u00e4"));
+		assertEquals("[{\"a\":1},{\"b\":\"\u00e4\"}]", json(docs));
+		assertEquals("{\"results\":[{\"a\":1},{\"b\":\"\u00e4\"}],\"next\":\"token\"}", json(new Page(docs, "token")));
+		assertEquals("[]", json(Arrays.asList()));
+		assertEquals("null", json(null));
+	}
+
+	@Test
+	public void writesResponsesLargerThanTheBuffer() throws IOException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 10000; i++) {
+			sb.append("\u20ac\"");
+		}
+		Document doc = new Document("text", sb.toString());
+		assertEquals(doc, Document.parse(json(doc)));
+	}
+}
@@ -0,0 +1,199 @@
+package web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.bson.Document;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import com.mongodb.client.MongoCollection;
+
+import logic.InMemoryMongo;
+import logic.MovieUpserter;
+
+/**
+ * Runs the {@link TmdbClient} against a local stand-in for /discover/movie
+ * and upserts its movies into an in-memory MongoDB.
+ */
+public class TmdbClientTest {
+
+	private static final int MOVIES_PER_PAGE = 5;
+	/** The insert-only fields of the TMDB import in RestServer */
+	private static final String[] INSERT_ONLY = { "actors", "movie", "runtime", "votes" };
+
+	@Rule
+	public final InMemoryMongo mongo = new InMemoryMongo();
+
+	private Server server;
+	private String baseUrl;
+	private HttpClient http;
+	private Path cacheDir;
+	private final AtomicInteger requests = new AtomicInteger();
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final AtomicInteger maxInFlight = new AtomicInteger();
+	private volatile int status = 200;
+	private volatile double rating = 7.5;
+
+	@Before
+	public void setUp() throws Exception {
+		server = new Server(new InetSocketAddress("127.0.0.1", 0));
+		server.setHandler(new AbstractHandler() {
+			@Override
+			public void handle(String target, Request baseRequest, HttpServletRequest request,
+					HttpServletResponse response) throws IOException {
+				baseRequest.setHandled(true);
+				requests.incrementAndGet();
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				try {
+					// Slow enough that concurrent requests overlap
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					inFlight.decrementAndGet();
+				}
+				if (!target.equals("/discover/movie") || request.getParameter("api_key") == null) {
+					response.sendError(404);
+					return;
+				}
+				if (status != 200) {
+					response.sendError(status);
+					return;
+				}
+				response.setContentType("application/json");
+				response.getOutputStream().write(page(Integer.parseInt(request.getParameter("primary_release_year")),
+						Integer.parseInt(request.getParameter("page"))).toJson().getBytes(StandardCharsets.UTF_8));
+			}
+		});
+		server.start();
+		baseUrl = "http://127.0.0.1:" + ((ServerConnector) server.getConnectors()[0]).getLocalPort();
+		http = new HttpClient();
+		http.start();
+		cacheDir = Files.createTempDirectory("tmdb-test");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		http.stop();
+		server.stop();
+		try (Stream<Path> files = Files.walk(cacheDir)) {
+			files.sorted((a, b) -> b.compareTo(a)).forEach(f -> f.toFile().delete());
+		}
+	}
+
+	/**
+	 * A page of the stand-in, the ids are unique per year and page.
+	 */
+	private Document page(int year, int page) {
+		List<Document> results = new ArrayList<Document>();
+		for (int i = 0; i < MOVIES_PER_PAGE; i++) {
+			int id = year * 1000 + page * 10 + i;
+			results.add(new Document("id", id)
+					.append("title", "Movie " + id)
+					.append("genre_ids", Arrays.asList(28, 35))
+					.append("vote_average", rating)
+					.append("release_date", year + "-05-01")
+					.append("overview", "Plot of " + id));
+		}
+		return new Document("page", page).append("results", results);
+	}
+
+	private TmdbClient client(long ttlMs) {
+		return new TmdbClient(http, baseUrl, "key", cacheDir, ttlMs);
+	}
+
+	@Test
+	public void fetchesAllPagesOfAllYearsConcurrently() {
+		List<Document> movies = client(TimeUnit.HOURS.toMillis(1)).popularMovies(Arrays.asList("2019", "2020"), 3);
+		assertEquals(6, requests.get());
+		assertTrue("requests overlapped: " + maxInFlight.get(), maxInFlight.get() > 1);
+		assertEquals(2 * 3 * MOVIES_PER_PAGE, movies.size());
+		// By year, then page
+		assertEquals("2019010", movies.get(0).getString("_id"));
+		assertEquals("2019", movies.get(0).getString("year"));
+		assertEquals("2020034", movies.get(movies.size() - 1).getString("_id"));
+		assertEquals(Arrays.asList("Action", "Comedy"), movies.get(0).get("genre"));
+		assertEquals(7.5, movies.get(0).getDouble("rating"), 0);
+	}
+
+	@Test
+	public void answersFromTheCacheWithinTheTtl() {
+		TmdbClient client = client(TimeUnit.HOURS.toMillis(1));
+		List<Document> first = client.popularMovies(Arrays.asList("2020"), 2);
+		assertEquals(2, requests.get());
+		List<Document> second = client.popularMovies(Arrays.asList("2020"), 2);
+		assertEquals(2, requests.get());
+		assertEquals(ids(first), ids(second));
+	}
+
+	@Test
+	public void fallsBackToStaleResponsesOnServerErrors() {
+		// Every cached response is stale immediately
+		TmdbClient client = client(0);
+		List<Document> fresh = client.popularMovies(Arrays.asList("2020"), 2);
+		status = 503;
+		List<Document> stale = client.popularMovies(Arrays.asList("2020"), 2);
+		assertEquals(4, requests.get());
+		assertEquals(ids(fresh), ids(stale));
+		// Without a cached response the page is skipped
+		assertTrue(client.popularMovies(Arrays.asList("2021"), 1).isEmpty());
+	}
+
+	@Test
+	public void countsInsertedUpdatedAndUnchangedMovies() {
+		MongoCollection<Document> movies = mongo.getCollection("movies");
+		MovieUpserter upserter = new MovieUpserter(movies);
+		TmdbClient client = client(0);
+		List<Document> inserted = new ArrayList<Document>();
+
+		Document result = upserter.upsert(client.popularMovies(Arrays.asList("2020"), 1), inserted::add,
+				INSERT_ONLY);
+		assertEquals(new Document("inserted", MOVIES_PER_PAGE).append("updated", 0).append("unchanged", 0),
+				result);
+		assertEquals(MOVIES_PER_PAGE, inserted.size());
+
+		// The random votes are insert-only, nothing changed
+		result = upserter.upsert(client.popularMovies(Arrays.asList("2020"), 1), inserted::add, INSERT_ONLY);
+		assertEquals(new Document("inserted", 0).append("updated", 0).append("unchanged", MOVIES_PER_PAGE),
+				result);
+
+		// A new rating for the first page, a second page of new movies
+		rating = 8.0;
+		result = upserter.upsert(client.popularMovies(Arrays.asList("2020"), 2), inserted::add, INSERT_ONLY);
+		assertEquals(new Document("inserted", MOVIES_PER_PAGE).append("updated", MOVIES_PER_PAGE)
+				.append("unchanged", 0), result);
+		assertEquals(2 * MOVIES_PER_PAGE, inserted.size());
+		assertEquals(2 * MOVIES_PER_PAGE, movies.countDocuments());
+	}
+
+	private static List<Object> ids(List<Document> movies) {
+		List<Object> ids = new ArrayList<Object>();
+		for (Document movie : movies) {
+			ids.add(movie.get("_id"));
+		}
+		return ids;
+	}
+}